@@ -0,0 +1,155 @@
+package wikidata;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Hands everything written to it over to a separate thread which writes it
+ * to the underlying writer. Thereby, a slow disk does not stall the thread
+ * that produces the output (as long as the bounded queue between both is
+ * not full).
+ *
+ * Wrap it into a {@link java.io.BufferedWriter} to avoid handing over many
+ * small chunks.
+ *
+ */
+public class AsyncWriter extends Writer {
+
+	private static final char[] FLUSH = new char[0];
+	private static final char[] CLOSE = new char[0];
+
+	private final Writer out;
+	private final BlockingQueue<char[]> queue;
+	private final Thread thread;
+
+	// first error of the writer thread, reported to the producer
+	private volatile IOException error = null;
+	private boolean closed = false;
+
+	/**
+	 *
+	 * @param out
+	 *            the writer to write to
+	 * @param capacity
+	 *            number of chunks that can be queued before write() blocks
+	 */
+	public AsyncWriter(final Writer out, final int capacity) {
+		this.out = out;
+		this.queue = new ArrayBlockingQueue<char[]>(capacity);
+		this.thread = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "async-writer");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	public AsyncWriter(final Writer out) {
+		this(out, 64);
+	}
+
+	private void drain() {
+		try {
+			char[] chunk;
+			while ((chunk = queue.take()) != CLOSE) {
+				if (error != null) {
+					// discard, but keep on draining so that the producer does not block
+					continue;
+				}
+				try {
+					if (chunk == FLUSH) {
+						out.flush();
+					} else {
+						out.write(chunk);
+					}
+				} catch (final IOException e) {
+					error = e;
+				}
+			}
+		} catch (final InterruptedException e) {
+			error = new IOException("writer thread interrupted", e);
+		}
+	}
+
+	@Override
+	public void write(final char[] cbuf, final int off, final int len) throws IOException {
+		if (len == 0) {
+			return;
+		}
+		enqueue(Arrays.copyOfRange(cbuf, off, off + len));
+	}
+
+	@Override
+	public void write(final String str, final int off, final int len) throws IOException {
+		if (len == 0) {
+			return;
+		}
+		final char[] chunk = new char[len];
+		str.getChars(off, off + len, chunk, 0);
+		enqueue(chunk);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		enqueue(FLUSH);
+	}
+
+	/**
+	 * Waits until all queued chunks have been written and closes the
+	 * underlying writer.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		put(CLOSE);
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (final InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			out.close();
+		} catch (final IOException e) {
+			if (error == null) {
+				error = e;
+			}
+		}
+		checkError();
+	}
+
+	private void enqueue(final char[] chunk) throws IOException {
+		if (closed) {
+			throw new IOException("writer closed");
+		}
+		checkError();
+		put(chunk);
+	}
+
+	private void put(final char[] chunk) throws IOException {
+		try {
+			queue.put(chunk);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while waiting for the writer thread", e);
+		}
+	}
+
+	private void checkError() throws IOException {
+		if (error != null) {
+			throw error;
+		}
+	}
+}
@@ -0,0 +1,351 @@
+package wikidata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Compares the JSON files of two runs of {@link WriterExtractor} and writes
+ * the differences as change feed, one JSON object per line:
+ *
+ * <pre>
+ * {"op":"added","gnd":"118540238","record":{...}}
+ * {"op":"updated","gnd":"118540238","record":{...}}
+ * {"op":"removed","gnd":"118540238"}
+ * </pre>
+ *
+ * Records are compared in a canonical form, with the fields of objects and
+ * the values of arrays (which are sets of property values) sorted, such
+ * that only changes of the content are reported, not of the order in which
+ * the values were written.
+ *
+ * Both files are read in one pass and merged by GND id, so memory does not
+ * depend on their size. This requires the records to be sorted by GND id,
+ * which {@link JsonWriter} does; files from older runs are sorted first
+ * (externally, in chunks of {@link #SORT_CHUNK_SIZE} records).
+ *
+ */
+public class ChangeFeed {
+
+	private static final int SORT_CHUNK_SIZE = 200000;
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private long added = 0;
+	private long updated = 0;
+	private long removed = 0;
+	private long unchanged = 0;
+
+	/**
+	 * Writes the changes from the previous to the current file.
+	 *
+	 * @param previousFile
+	 * @param currentFile
+	 * @param outputFile
+	 * @throws IOException
+	 */
+	public void diff(final File previousFile, final File currentFile, final File outputFile) throws IOException {
+		final File previous = sortIfNeeded(previousFile);
+		final File current = sortIfNeeded(currentFile);
+
+		final RecordReader prev = new RecordReader(previous);
+		final RecordReader curr = new RecordReader(current);
+		final JsonGenerator out = JSON_FACTORY.createGenerator(new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 16), "utf-8"));
+		// one change per line, without separator
+		out.setRootValueSeparator(null);
+		try {
+			while (prev.hasNext() || curr.hasNext()) {
+				final int c;
+				if (!prev.hasNext()) {
+					c = 1;
+				} else if (!curr.hasNext()) {
+					c = -1;
+				} else {
+					c = prev.gnd.compareTo(curr.gnd);
+				}
+				if (c < 0) {
+					write(out, "removed", prev.gnd, null);
+					removed++;
+					prev.next();
+				} else if (c > 0) {
+					write(out, "added", curr.gnd, curr.record);
+					added++;
+					curr.next();
+				} else {
+					if (prev.record.equals(curr.record)) {
+						unchanged++;
+					} else {
+						write(out, "updated", curr.gnd, curr.record);
+						updated++;
+					}
+					prev.next();
+					curr.next();
+				}
+			}
+		} finally {
+			out.close();
+			prev.close();
+			curr.close();
+			deleteIfTemporary(previous, previousFile);
+			deleteIfTemporary(current, currentFile);
+		}
+	}
+
+	private static void write(final JsonGenerator out, final String op, final String gnd, final String record) throws IOException {
+		out.writeStartObject();
+		out.writeStringField("op", op);
+		out.writeStringField("gnd", gnd);
+		if (record != null) {
+			out.writeFieldName("record");
+			out.writeRawValue(record);
+		}
+		out.writeEndObject();
+		out.writeRaw('\n');
+	}
+
+	/**
+	 * Returns the file if its records are sorted by GND id, otherwise a
+	 * sorted temporary copy.
+	 */
+	static File sortIfNeeded(final File file) throws IOException {
+		return sortIfNeeded(file, SORT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Sorts in chunks of the given number of records.
+	 */
+	static File sortIfNeeded(final File file, final int chunkSize) throws IOException {
+		if (isSorted(file)) {
+			return file;
+		}
+		System.out.println("sorting " + file + " by GND id");
+		final List<File> chunks = new ArrayList<File>();
+		final RecordReader reader = new RecordReader(file);
+		try {
+			final List<String[]> chunk = new ArrayList<String[]>(chunkSize);
+			while (reader.hasNext()) {
+				chunk.add(new String[] { reader.gnd, reader.record });
+				reader.next();
+				if (chunk.size() == chunkSize || !reader.hasNext()) {
+					Collections.sort(chunk, BY_GND);
+					final File tmp = File.createTempFile("gnditems", ".json");
+					writeRecords(chunk, tmp);
+					chunks.add(tmp);
+					chunk.clear();
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		if (chunks.size() == 1) {
+			return chunks.get(0);
+		}
+
+		// merge the sorted chunks
+		final File sorted = File.createTempFile("gnditems", ".json");
+		final PriorityQueue<RecordReader> queue = new PriorityQueue<RecordReader>(Math.max(1, chunks.size()), new Comparator<RecordReader>() {
+			public int compare(final RecordReader o1, final RecordReader o2) {
+				return o1.gnd.compareTo(o2.gnd);
+			}
+		});
+		for (final File chunk : chunks) {
+			final RecordReader r = new RecordReader(chunk);
+			if (r.hasNext()) {
+				queue.add(r);
+			} else {
+				r.close();
+			}
+		}
+		final RecordWriter writer = new RecordWriter(sorted);
+		try {
+			while (!queue.isEmpty()) {
+				final RecordReader r = queue.poll();
+				writer.write(r.gnd, r.record);
+				r.next();
+				if (r.hasNext()) {
+					queue.add(r);
+				} else {
+					r.close();
+				}
+			}
+		} finally {
+			writer.close();
+			for (final RecordReader r : queue) {
+				r.close();
+			}
+			for (final File chunk : chunks) {
+				chunk.delete();
+			}
+		}
+		return sorted;
+	}
+
+	private static boolean isSorted(final File file) throws IOException {
+		final RecordReader reader = new RecordReader(file);
+		try {
+			String last = null;
+			while (reader.hasNext()) {
+				if (last != null && last.compareTo(reader.gnd) > 0) {
+					return false;
+				}
+				last = reader.gnd;
+				reader.next();
+			}
+			return true;
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static void writeRecords(final List<String[]> records, final File file) throws IOException {
+		final RecordWriter writer = new RecordWriter(file);
+		try {
+			for (final String[] record : records) {
+				writer.write(record[0], record[1]);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static void deleteIfTemporary(final File file, final File original) {
+		if (!file.equals(original)) {
+			file.delete();
+		}
+	}
+
+	private static final Comparator<String[]> BY_GND = new Comparator<String[]>() {
+		public int compare(final String[] o1, final String[] o2) {
+			return o1[0].compareTo(o2[0]);
+		}
+	};
+
+	/**
+	 * Streams over the records of a file written by {@link JsonWriter}. The
+	 * current record is available in {@link #gnd} and {@link #record} (as
+	 * JSON string in canonical form, see {@link ChangeFeed}).
+	 */
+	static class RecordReader {
+		private final JsonParser parser;
+		String gnd;
+		String record;
+
+		public RecordReader(final File file) throws IOException {
+			this.parser = JSON_FACTORY.createParser(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				parser.close();
+				throw new IOException("expected a JSON object in " + file);
+			}
+			next();
+		}
+
+		public boolean hasNext() {
+			return gnd != null;
+		}
+
+		public void next() throws IOException {
+			if (parser.nextToken() != JsonToken.FIELD_NAME) {
+				gnd = null;
+				record = null;
+				return;
+			}
+			gnd = parser.getCurrentName();
+			parser.nextToken();
+			record = canonical(parser);
+		}
+
+		public void close() throws IOException {
+			parser.close();
+		}
+	}
+
+	/**
+	 * Returns the value at the current token of the parser as JSON, with the
+	 * fields of objects and the values of arrays sorted.
+	 */
+	static String canonical(final JsonParser parser) throws IOException {
+		final StringWriter buf = new StringWriter();
+		final JsonGenerator gen = JSON_FACTORY.createGenerator(buf);
+		final JsonToken token = parser.getCurrentToken();
+		if (token == JsonToken.START_OBJECT) {
+			final Map<String, String> fields = new TreeMap<String, String>();
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String name = parser.getCurrentName();
+				parser.nextToken();
+				fields.put(name, canonical(parser));
+			}
+			gen.writeStartObject();
+			for (final Entry<String, String> field : fields.entrySet()) {
+				gen.writeFieldName(field.getKey());
+				gen.writeRawValue(field.getValue());
+			}
+			gen.writeEndObject();
+		} else if (token == JsonToken.START_ARRAY) {
+			final List<String> values = new ArrayList<String>();
+			while (parser.nextToken() != JsonToken.END_ARRAY) {
+				values.add(canonical(parser));
+			}
+			Collections.sort(values);
+			gen.writeStartArray();
+			for (final String value : values) {
+				gen.writeRawValue(value);
+			}
+			gen.writeEndArray();
+		} else {
+			gen.copyCurrentEvent(parser);
+		}
+		gen.close();
+		return buf.toString();
+	}
+
+	/**
+	 * Writes records in the format of {@link JsonWriter}.
+	 */
+	private static class RecordWriter {
+		private final JsonGenerator json;
+
+		public RecordWriter(final File file) throws IOException {
+			this.json = JSON_FACTORY.createGenerator(new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(file), 1 << 16), "utf-8"));
+			json.writeStartObject();
+		}
+
+		public void write(final String gnd, final String record) throws IOException {
+			json.writeFieldName(gnd);
+			json.writeRawValue(record);
+			json.writeRaw('\n');
+		}
+
+		public void close() throws IOException {
+			json.writeEndObject();
+			json.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3) {
+			System.err.println("usage: ChangeFeed PREVIOUS.json CURRENT.json CHANGES.ndjson");
+			System.exit(1);
+		}
+		final ChangeFeed feed = new ChangeFeed();
+		feed.diff(new File(args[0]), new File(args[1]), new File(args[2]));
+		System.out.println(feed.added + " added, " + feed.updated + " updated, " + feed.removed + " removed, " + feed.unchanged + " unchanged");
+	}
+}
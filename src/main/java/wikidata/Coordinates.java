@@ -0,0 +1,209 @@
+package wikidata;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Coordinates of places, keyed by their Wikidata id and stored without an
+ * object per place: an open addressing hash table over the numeric part of
+ * the id with parallel int arrays for latitude and longitude in fixed point
+ * (units of 10^-7 degrees, about a centimeter).
+ *
+ * Not thread safe; filled by one thread (see
+ * {@link PropertyValueCollector}) and read afterwards.
+ *
+ */
+public class Coordinates {
+
+	// degrees -> fixed point
+	static final double SCALE = 1e7;
+
+	private static final int INITIAL_CAPACITY = 1 << 10;
+	private static final double MAX_LOAD = 0.6;
+
+	// numeric ids (0 = empty slot), latitudes, longitudes
+	private int[] keys = new int[INITIAL_CAPACITY];
+	private int[] latitudes = new int[INITIAL_CAPACITY];
+	private int[] longitudes = new int[INITIAL_CAPACITY];
+	private int size = 0;
+
+	/**
+	 * Adds or replaces the coordinates of a place.
+	 *
+	 * @param id
+	 *            Wikidata id of the place, like Q64
+	 * @param latitude
+	 * @param longitude
+	 * @return false if the id is not an item id and the coordinates were
+	 *         thus not stored
+	 */
+	public boolean put(final String id, final double latitude, final double longitude) {
+		final int key = parseId(id);
+		if (key <= 0) {
+			return false;
+		}
+		put(key, toFixed(latitude), toFixed(longitude));
+		return true;
+	}
+
+	private void put(final int key, final int latitude, final int longitude) {
+		if (size + 1 > keys.length * MAX_LOAD) {
+			resize(keys.length * 2);
+		}
+		int slot = slot(key, keys.length);
+		while (keys[slot] != 0 && keys[slot] != key) {
+			slot = (slot + 1) & (keys.length - 1);
+		}
+		if (keys[slot] == 0) {
+			keys[slot] = key;
+			size++;
+		}
+		latitudes[slot] = latitude;
+		longitudes[slot] = longitude;
+	}
+
+	/**
+	 * Returns the slot holding the coordinates of the place.
+	 *
+	 * @param id
+	 * @return the slot or -1 if we have no coordinates for the place
+	 */
+	public int find(final String id) {
+		final int key = parseId(id);
+		if (key <= 0) {
+			return -1;
+		}
+		int slot = slot(key, keys.length);
+		while (keys[slot] != 0) {
+			if (keys[slot] == key) {
+				return slot;
+			}
+			slot = (slot + 1) & (keys.length - 1);
+		}
+		return -1;
+	}
+
+	public boolean contains(final String id) {
+		return find(id) >= 0;
+	}
+
+	public double getLatitude(final int slot) {
+		return latitudes[slot] / SCALE;
+	}
+
+	public double getLongitude(final int slot) {
+		return longitudes[slot] / SCALE;
+	}
+
+	/**
+	 * Latitude in units of 10^-7 degrees.
+	 */
+	int getFixedLatitude(final int slot) {
+		return latitudes[slot];
+	}
+
+	/**
+	 * Longitude in units of 10^-7 degrees.
+	 */
+	int getFixedLongitude(final int slot) {
+		return longitudes[slot];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Estimated size in bytes of the arrays (see {@link MemoryBudget}).
+	 *
+	 * @return
+	 */
+	public long estimateBytes() {
+		return 3 * (16 + 4L * keys.length);
+	}
+
+	/**
+	 * Writes the coordinates such that {@link #read(DataInput)} restores
+	 * them.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(final DataOutput out) throws IOException {
+		out.writeInt(size);
+		for (int slot = 0; slot < keys.length; slot++) {
+			if (keys[slot] != 0) {
+				out.writeInt(keys[slot]);
+				out.writeInt(latitudes[slot]);
+				out.writeInt(longitudes[slot]);
+			}
+		}
+	}
+
+	/**
+	 * Adds the coordinates written by {@link #write(DataOutput)}.
+	 *
+	 * @param in
+	 * @throws IOException
+	 */
+	public void read(final DataInput in) throws IOException {
+		final int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			put(in.readInt(), in.readInt(), in.readInt());
+		}
+	}
+
+	private void resize(final int capacity) {
+		final int[] oldKeys = keys;
+		final int[] oldLatitudes = latitudes;
+		final int[] oldLongitudes = longitudes;
+		keys = new int[capacity];
+		latitudes = new int[capacity];
+		longitudes = new int[capacity];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != 0) {
+				int slot = slot(oldKeys[i], capacity);
+				while (keys[slot] != 0) {
+					slot = (slot + 1) & (capacity - 1);
+				}
+				keys[slot] = oldKeys[i];
+				latitudes[slot] = oldLatitudes[i];
+				longitudes[slot] = oldLongitudes[i];
+			}
+		}
+	}
+
+	private static int slot(final int key, final int capacity) {
+		// spread consecutive ids over the table
+		final int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & (capacity - 1);
+	}
+
+	/**
+	 * Returns the number of an item id (Q64 -> 64) or -1 if it is none.
+	 */
+	private static int parseId(final String id) {
+		if (id == null || id.length() < 2 || id.length() > 10 || id.charAt(0) != 'Q') {
+			return -1;
+		}
+		long key = 0;
+		for (int i = 1; i < id.length(); i++) {
+			final char c = id.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			key = key * 10 + (c - '0');
+		}
+		return key > Integer.MAX_VALUE ? -1 : (int) key;
+	}
+
+	static int toFixed(final double degrees) {
+		return (int) Math.round(degrees * SCALE);
+	}
+
+	@Override
+	public String toString() {
+		return size + " coordinates in " + keys.length + " slots";
+	}
+}
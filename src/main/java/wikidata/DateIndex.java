@@ -0,0 +1,356 @@
+package wikidata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import wikidata.WikidataUtils.DateValue;
+import wikidata.WikidataUtils.PropertyValue;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Finds the items whose date (of birth or death) lies in a range, e.g., all
+ * writers born 1800-1850, with two binary searches over the items sorted by
+ * their packed date (see {@link Dates}).
+ *
+ * Items with several dates are indexed by the first one. Dates coarser than
+ * a year (decade, century, ...) are indexed at the year Wikidata gives for
+ * them.
+ *
+ * {@link WriterExtractor} writes an index for each of {@link #FIELDS} next
+ * to its output (see {@link #getIndexFile(File, String)}), which
+ * {@link #DateIndex(File)} maps into memory:
+ *
+ * <pre>
+ * header:  magic (int), version (int), #items (int)
+ * dates:   packed dates, sorted (long[#items])
+ * ids:     offsets of the ids (int[#items + 1]), UTF-8 bytes of all ids
+ * </pre>
+ *
+ * Instances are immutable and thread-safe.
+ *
+ */
+public class DateIndex {
+
+	/*
+	 * fields of the items that are indexed by WriterExtractor
+	 */
+	static final String[] FIELDS = { "date_of_birth", "date_of_death" };
+
+	private static final Charset UTF8 = Charset.forName("utf-8");
+
+	private static final int MAGIC = 0x57444449; // "WDDI"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 12;
+
+	// either the arrays (sorted by date) ...
+	private final long[] dates;
+	// GND ids of the items, in the order of their dates
+	private final String[] ids;
+	// ... or a mapped index file
+	private final LookupIndex.MappedFile file;
+	private final int count;
+	private final long idOffsetsStart;
+	private final long idsStart;
+
+	/**
+	 * Sorts the items by their dates.
+	 *
+	 * @param ids
+	 * @param dates
+	 *            packed, one per id
+	 */
+	DateIndex(final List<String> ids, final long[] dates) {
+		final Integer[] order = new Integer[ids.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(final Integer o1, final Integer o2) {
+				return Long.compare(dates[o1], dates[o2]);
+			}
+		});
+		this.dates = new long[order.length];
+		this.ids = new String[order.length];
+		for (int i = 0; i < order.length; i++) {
+			this.dates[i] = dates[order[i]];
+			this.ids[i] = ids.get(order[i]);
+		}
+		this.file = null;
+		this.count = order.length;
+		this.idOffsetsStart = 0;
+		this.idsStart = 0;
+	}
+
+	/**
+	 * Maps an index file written by {@link #write(File)} into memory.
+	 *
+	 * @param indexFile
+	 * @throws IOException
+	 */
+	public DateIndex(final File indexFile) throws IOException {
+		this.file = new LookupIndex.MappedFile(indexFile);
+		if (file.getInt(0) != MAGIC || file.getInt(4) != VERSION) {
+			throw new IOException(indexFile + " is not a date index of version " + VERSION);
+		}
+		this.count = file.getInt(8);
+		this.idOffsetsStart = HEADER_SIZE + 8L * count;
+		this.idsStart = idOffsetsStart + 4L * (count + 1);
+		this.dates = null;
+		this.ids = null;
+	}
+
+	/**
+	 * Returns the index file of the given field for a JSON file written by
+	 * {@link JsonWriter}, e.g., "gnditems.date_of_birth.dates" for
+	 * "gnditems.json".
+	 *
+	 * @param jsonFile
+	 * @param field
+	 * @return
+	 */
+	public static File getIndexFile(final File jsonFile, final String field) {
+		final String path = jsonFile.getPath();
+		final String base = path.endsWith(".json") ? path.substring(0, path.length() - ".json".length()) : path;
+		return new File(base + "." + field + ".dates");
+	}
+
+	/**
+	 * Writes the index such that it can be mapped with
+	 * {@link #DateIndex(File)}.
+	 *
+	 * @param indexFile
+	 * @throws IOException
+	 */
+	public void write(final File indexFile) throws IOException {
+		final byte[][] keys = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			keys[i] = getId(i).getBytes(UTF8);
+		}
+		// new files replace the old ones, which might be linked into the StageCache
+		final File tmp = new File(indexFile.getPath() + ".tmp");
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(count);
+			for (int i = 0; i < count; i++) {
+				out.writeLong(getDate(i));
+			}
+			int offset = 0;
+			for (final byte[] key : keys) {
+				out.writeInt(offset);
+				offset += key.length;
+			}
+			out.writeInt(offset);
+			for (final byte[] key : keys) {
+				out.write(key);
+			}
+		} finally {
+			out.close();
+		}
+		StageCache.replace(tmp, indexFile);
+	}
+
+	/**
+	 * Indexes the items by the first of their dates in the given field.
+	 *
+	 * @param items
+	 *            GND id -> properties, as collected by {@link WriterCollector}
+	 * @param field
+	 *            e.g., "date_of_birth"
+	 * @param requiredField
+	 *            only items having this field (e.g., "occupation_writer")
+	 *            are indexed, or null for all items
+	 * @return
+	 */
+	public static DateIndex build(final Map<String, Map<String, List<PropertyValue>>> items, final String field, final String requiredField) {
+		final List<String> ids = new ArrayList<String>();
+		long[] dates = new long[1024];
+		for (final Entry<String, Map<String, List<PropertyValue>>> item : items.entrySet()) {
+			final Map<String, List<PropertyValue>> properties = item.getValue();
+			final List<PropertyValue> values = properties.get(field);
+			if (values == null || values.isEmpty() || (requiredField != null && !properties.containsKey(requiredField))) {
+				continue;
+			}
+			final PropertyValue value = values.get(0);
+			if (ids.size() == dates.length) {
+				dates = Arrays.copyOf(dates, 2 * dates.length);
+			}
+			dates[ids.size()] = value instanceof DateValue ? ((DateValue) value).date : Dates.parse(value.toString());
+			ids.add(item.getKey());
+		}
+		return new DateIndex(ids, dates);
+	}
+
+	/**
+	 * Indexes the items of a file written by {@link JsonWriter} by the first
+	 * of their dates in the given field.
+	 *
+	 * @param file
+	 * @param field
+	 *            e.g., "date_of_birth"
+	 * @param requiredField
+	 *            only items having this field (e.g., "occupation_writer")
+	 *            are indexed, or null for all items
+	 * @return
+	 * @throws IOException
+	 */
+	public static DateIndex read(final File file, final String field, final String requiredField) throws IOException {
+		final List<String> ids = new ArrayList<String>();
+		long[] dates = new long[1024];
+		final JsonParser parser = new JsonFactory().createParser(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("expected a JSON object in " + file);
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String gnd = parser.getCurrentName();
+				parser.nextToken();
+				boolean required = requiredField == null;
+				String date = null;
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					final String name = parser.getCurrentName();
+					final JsonToken value = parser.nextToken();
+					if (name.equals(requiredField)) {
+						required = true;
+					}
+					if (name.equals(field)) {
+						if (value == JsonToken.VALUE_STRING) {
+							date = parser.getText();
+						} else if (value == JsonToken.START_ARRAY) {
+							while (parser.nextToken() != JsonToken.END_ARRAY) {
+								// the first date
+								if (date == null && parser.getCurrentToken() == JsonToken.VALUE_STRING) {
+									date = parser.getText();
+								}
+								parser.skipChildren();
+							}
+						}
+					} else {
+						parser.skipChildren();
+					}
+				}
+				if (required && date != null && date.indexOf('-', 1) > 0) {
+					if (ids.size() == dates.length) {
+						dates = Arrays.copyOf(dates, 2 * dates.length);
+					}
+					dates[ids.size()] = Dates.parse(date);
+					ids.add(gnd);
+				}
+			}
+		} finally {
+			parser.close();
+		}
+		return new DateIndex(ids, dates);
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the GND ids of the items whose date lies in the range, ordered
+	 * by date.
+	 *
+	 * @param from
+	 *            packed date (inclusive)
+	 * @param to
+	 *            packed date (inclusive)
+	 * @return
+	 */
+	public List<String> between(final long from, final long to) {
+		final int start = lowerBound(from);
+		final int end = to == Long.MAX_VALUE ? count : lowerBound(to + 1);
+		if (file == null) {
+			return Collections.unmodifiableList(Arrays.asList(ids).subList(start, Math.max(start, end)));
+		}
+		final List<String> result = new ArrayList<String>(Math.max(0, end - start));
+		for (int i = start; i < end; i++) {
+			result.add(getId(i));
+		}
+		return Collections.unmodifiableList(result);
+	}
+
+	/**
+	 * Returns the GND ids of the items whose date lies in the years (both
+	 * inclusive), ordered by date.
+	 *
+	 * @param fromYear
+	 * @param toYear
+	 * @return
+	 */
+	public List<String> betweenYears(final long fromYear, final long toYear) {
+		return between(Dates.startOfYear(fromYear), Dates.endOfYear(toYear));
+	}
+
+	/**
+	 * Returns the date of the item at the position (in date order).
+	 */
+	public long getDate(final int position) {
+		return file == null ? dates[position] : file.getLong(HEADER_SIZE + 8L * position);
+	}
+
+	/**
+	 * Returns the GND id of the item at the position (in date order).
+	 */
+	public String getId(final int position) {
+		if (file == null) {
+			return ids[position];
+		}
+		final int from = file.getInt(idOffsetsStart + 4L * position);
+		final int to = file.getInt(idOffsetsStart + 4L * (position + 1));
+		return new String(file.getBytes(idsStart + from, to - from), UTF8);
+	}
+
+	/**
+	 * Position of the first date that is not smaller than the given one.
+	 */
+	private int lowerBound(final long date) {
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (getDate(mid) < date) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 4) {
+			System.err.println("usage: DateIndex gnditems.json date_of_birth|date_of_death FROM_YEAR TO_YEAR [REQUIRED_FIELD]");
+			System.exit(1);
+		}
+		long start = System.currentTimeMillis();
+		// the index written by WriterExtractor, unless a required field is given
+		final File indexFile = getIndexFile(new File(args[0]), args[1]);
+		final DateIndex index = args.length <= 4 && indexFile.exists() ? new DateIndex(indexFile) : read(new File(args[0]), args[1], args.length > 4 ? args[4] : null);
+		System.out.println("indexed " + index.size() + " items in " + (System.currentTimeMillis() - start) + " ms");
+
+		start = System.nanoTime();
+		final List<String> result = index.betweenYears(Long.parseLong(args[2]), Long.parseLong(args[3]));
+		System.out.println("found " + result.size() + " items in " + (System.nanoTime() - start) / 1000 + " us");
+		for (int i = 0; i < Math.min(20, result.size()); i++) {
+			System.out.println(result.get(i));
+		}
+	}
+}
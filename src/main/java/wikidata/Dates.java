@@ -0,0 +1,180 @@
+package wikidata;
+
+import org.wikidata.wdtk.datamodel.interfaces.TimeValue;
+
+/**
+ * Dates packed into a long: the year (signed, 51 bits), month (4 bits), day
+ * (5 bits), and precision (4 bits, as in {@link TimeValue}, e.g.,
+ * {@link TimeValue#PREC_DAY}). Month and day are 0 when the precision is
+ * coarser. Packed dates compare like the dates they encode, so they can be
+ * sorted and searched as plain longs.
+ *
+ * Dates in the proleptic Julian calendar are converted to the proleptic
+ * Gregorian calendar, such that all dates are comparable. Only dates with
+ * at least day precision are converted: for coarser ones the shift of a
+ * few days would suggest a precision they do not have. Years are numbered
+ * as in Wikidata, without a year 0 (-1 is 1 BCE).
+ *
+ */
+public class Dates {
+
+	private static final int PRECISION_BITS = 4;
+	private static final int DAY_BITS = 5;
+	private static final int MONTH_BITS = 4;
+	private static final int DAY_SHIFT = PRECISION_BITS;
+	private static final int MONTH_SHIFT = DAY_SHIFT + DAY_BITS;
+	private static final int YEAR_SHIFT = MONTH_SHIFT + MONTH_BITS;
+
+	/**
+	 * Packs a date, without converting it. Dumps contain dates like
+	 * 1900-00-00 with day precision or months beyond 12; instead of failing,
+	 * the precision is reduced to the parts that are valid (e.g., to year
+	 * precision for an invalid month).
+	 *
+	 * @param year
+	 * @param month
+	 *            1 to 12, or 0 if unknown
+	 * @param day
+	 *            1 to 31, or 0 if unknown
+	 * @param precision
+	 *            0 to 14, see {@link TimeValue}; clamped to that range
+	 * @return
+	 */
+	public static long pack(final long year, final int month, final int day, final int precision) {
+		final int validMonth = month >= 1 && month <= 12 ? month : 0;
+		final int validDay = validMonth > 0 && day >= 1 && day <= 31 ? day : 0;
+		int validPrecision = Math.max(0, Math.min(TimeValue.PREC_SECOND, precision));
+		if (validMonth == 0) {
+			validPrecision = Math.min(validPrecision, TimeValue.PREC_YEAR);
+		} else if (validDay == 0) {
+			validPrecision = Math.min(validPrecision, TimeValue.PREC_MONTH);
+		}
+		return (year << YEAR_SHIFT) | ((long) validMonth << MONTH_SHIFT) | ((long) validDay << DAY_SHIFT) | validPrecision;
+	}
+
+	/**
+	 * Packs the date of a time value in the proleptic Gregorian calendar.
+	 * Month and day are dropped when the precision is coarser than them.
+	 *
+	 * @param time
+	 * @return
+	 */
+	public static long pack(final TimeValue time) {
+		final int precision = time.getPrecision();
+		final int month = precision >= TimeValue.PREC_MONTH ? time.getMonth() : 0;
+		final int day = precision >= TimeValue.PREC_DAY ? time.getDay() : 0;
+		final long date = pack(time.getYear(), month, day, precision);
+		if (getDay(date) > 0 && TimeValue.CM_JULIAN_PRO.equals(time.getPreferredCalendarModel())) {
+			final long gregorian = julianToGregorian(getYear(date), getMonth(date), getDay(date));
+			return pack(getYear(gregorian), getMonth(gregorian), getDay(gregorian), getPrecision(date));
+		}
+		return date;
+	}
+
+	/**
+	 * Parses a date formatted by {@link #format(long)}. The precision is
+	 * day, month, or year, depending on which parts are 0.
+	 *
+	 * @param date
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if the date can not be parsed
+	 */
+	public static long parse(final String date) {
+		final int daySeparator = date.lastIndexOf('-');
+		final int monthSeparator = date.lastIndexOf('-', daySeparator - 1);
+		if (monthSeparator <= 0) {
+			throw new IllegalArgumentException("not a date: " + date);
+		}
+		try {
+			final long year = Long.parseLong(date.substring(0, monthSeparator));
+			final int month = Integer.parseInt(date.substring(monthSeparator + 1, daySeparator));
+			final int day = Integer.parseInt(date.substring(daySeparator + 1));
+			final int precision = day > 0 ? TimeValue.PREC_DAY : (month > 0 ? TimeValue.PREC_MONTH : TimeValue.PREC_YEAR);
+			return pack(year, month, day, precision);
+		} catch (final NumberFormatException e) {
+			throw new IllegalArgumentException("not a date: " + date, e);
+		}
+	}
+
+	public static long getYear(final long date) {
+		return date >> YEAR_SHIFT;
+	}
+
+	public static int getMonth(final long date) {
+		return (int) (date >>> MONTH_SHIFT) & ((1 << MONTH_BITS) - 1);
+	}
+
+	public static int getDay(final long date) {
+		return (int) (date >>> DAY_SHIFT) & ((1 << DAY_BITS) - 1);
+	}
+
+	public static int getPrecision(final long date) {
+		return (int) date & ((1 << PRECISION_BITS) - 1);
+	}
+
+	/**
+	 * The smallest packed date in the year.
+	 *
+	 * @param year
+	 * @return
+	 */
+	public static long startOfYear(final long year) {
+		return year << YEAR_SHIFT;
+	}
+
+	/**
+	 * The largest packed date in the year.
+	 *
+	 * @param year
+	 * @return
+	 */
+	public static long endOfYear(final long year) {
+		return startOfYear(year + 1) - 1;
+	}
+
+	/**
+	 * Formats a date as year-MM-dd, e.g., 1749-08-28 or 1749-00-00 (for
+	 * year precision).
+	 *
+	 * @param date
+	 * @return
+	 */
+	public static String format(final long date) {
+		final StringBuilder buf = new StringBuilder(12);
+		buf.append(getYear(date)).append('-');
+		appendTwoDigits(buf, getMonth(date)).append('-');
+		return appendTwoDigits(buf, getDay(date)).toString();
+	}
+
+	private static StringBuilder appendTwoDigits(final StringBuilder buf, final int value) {
+		return buf.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+	}
+
+	/**
+	 * Converts a date of the proleptic Julian calendar via its Julian day
+	 * number.
+	 *
+	 * @return the date in the proleptic Gregorian calendar, packed with
+	 *         precision 0
+	 */
+	static long julianToGregorian(final long year, final int month, final int day) {
+		// astronomical year numbering has a year 0
+		final long astronomicalYear = year < 0 ? year + 1 : year;
+		final long a = (14 - month) / 12;
+		final long y = astronomicalYear + 4800 - a;
+		final long m = month + 12 * a - 3;
+		final long julianDay = day + (153 * m + 2) / 5 + 365 * y + Math.floorDiv(y, 4) - 32083;
+
+		final long b = julianDay + 32044;
+		final long c = Math.floorDiv(4 * b + 3, 146097);
+		final long d = b - Math.floorDiv(146097 * c, 4);
+		final long e = (4 * d + 3) / 1461;
+		final long f = d - 1461 * e / 4;
+		final long g = (5 * f + 2) / 153;
+		final int gregorianDay = (int) (f - (153 * g + 2) / 5 + 1);
+		final int gregorianMonth = (int) (g + 3 - 12 * (g / 10));
+		final long gregorianYear = 100 * c + e - 4800 + g / 10;
+		return pack(gregorianYear <= 0 ? gregorianYear - 1 : gregorianYear, gregorianMonth, gregorianDay, 0);
+	}
+}
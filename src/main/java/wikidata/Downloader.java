@@ -4,63 +4,155 @@ import java.io.BufferedWriter;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
-import org.wikidata.wdtk.datamodel.helpers.Datamodel;
 import org.wikidata.wdtk.datamodel.interfaces.EntityDocumentProcessor;
 import org.wikidata.wdtk.datamodel.interfaces.ItemDocument;
 import org.wikidata.wdtk.datamodel.interfaces.ItemIdValue;
 import org.wikidata.wdtk.datamodel.interfaces.MonolingualTextValue;
 import org.wikidata.wdtk.datamodel.interfaces.PropertyDocument;
-import org.wikidata.wdtk.datamodel.interfaces.Value;
 
 public class Downloader implements EntityDocumentProcessor {
 
-	static final String filterPropertyId = "P31"; // "instance of"
-	static final Value filterValue = Datamodel.makeWikidataItemIdValue("Q5"); // "human"
+	static final String DEFAULT_FILTER = "P31=Q5"; // "instance of" "human"
 
 	int itemsWithPropertyCount;
 	int itemCount = 0;
-	BufferedWriter buf;
+	// one writer per language
+	final BufferedWriter[] bufs;
+	final String[] languages;
+	final EntityFilter filter;
 
 	public Downloader(final BufferedWriter buf) {
-		this.buf = buf;
+		this(buf, EntityFilter.parse(DEFAULT_FILTER));
+	}
+
+	/**
+	 * Writes the labels and aliases in the first of the
+	 * {@link ExampleHelpers#LANGUAGES}.
+	 *
+	 * @param buf
+	 * @param filter
+	 *            the items to write
+	 */
+	public Downloader(final BufferedWriter buf, final EntityFilter filter) {
+		this(new BufferedWriter[] { buf }, new String[] { ExampleHelpers.LANGUAGES[0] }, filter);
+	}
+
+	/**
+	 *
+	 * @param bufs
+	 *            where to write the labels and aliases of each language
+	 * @param languages
+	 * @param filter
+	 *            the items to write
+	 */
+	public Downloader(final BufferedWriter[] bufs, final String[] languages, final EntityFilter filter) {
+		if (bufs.length != languages.length) {
+			throw new IllegalArgumentException("need one writer per language");
+		}
+		this.bufs = bufs;
+		this.languages = languages;
+		this.filter = filter;
 		this.itemsWithPropertyCount = 0;
 	}
 
+	/**
+	 * Writes the items matching the filter given as first argument (see
+	 * {@link EntityFilter#parse(String)}, by default all humans) to the file
+	 * given as second argument, in one pass for all
+	 * {@link ExampleHelpers#LANGUAGES}: the first language goes to the file
+	 * itself, the others to files with the language appended to the name
+	 * (e.g., wikidata_humans_walias_de.tsv).
+	 *
+	 * @param args
+	 * @throws IOException
+	 */
 	public static void main(String[] args) throws IOException {
 		ExampleHelpers.configureLogging();
 
-		final BufferedWriter buf = new BufferedWriter(new OutputStreamWriter(new FileOutputStream("wikidata_humans_walias.tsv"), "UTF-8"));
+		final EntityFilter filter = EntityFilter.parse(args.length > 0 ? args[0] : DEFAULT_FILTER);
+		final String fileName = args.length > 1 ? args[1] : "wikidata_humans_walias.tsv";
+		final String[] languages = ExampleHelpers.LANGUAGES;
+		final BufferedWriter[] bufs = new BufferedWriter[languages.length];
+		for (int i = 0; i < languages.length; i++) {
+			final String languageFileName = i == 0 ? fileName : getFileName(fileName, languages[i]);
+			bufs[i] = new BufferedWriter(new AsyncWriter(new OutputStreamWriter(new FileOutputStream(languageFileName), "UTF-8")), 1 << 16);
+		}
 
-		final Downloader processor = new Downloader(buf);
-		ExampleHelpers.processEntitiesFromWikidataDump(processor);
+		final Downloader processor = new Downloader(bufs, languages, filter);
+		ExampleHelpers.processEntitiesFromWikidataDump(processor, createParser(filter), 1, true);
 		processor.printStatus();
-		buf.close();
+		for (final BufferedWriter buf : bufs) {
+			buf.close();
+		}
 	}
 
+	/**
+	 * Inserts the language before the extension of the file name.
+	 */
+	static String getFileName(final String fileName, final String language) {
+		final int dot = fileName.lastIndexOf('.');
+		if (dot <= fileName.lastIndexOf('/')) {
+			return fileName + "_" + language;
+		}
+		return fileName.substring(0, dot) + "_" + language + fileName.substring(dot);
+	}
+
+	/**
+	 * Returns a parser that materializes only the parts of an entity that
+	 * the downloader looks at with the default filter: labels and aliases
+	 * and the "instance of" statements.
+	 *
+	 * @return
+	 */
+	public static PartialEntityParser createParser() {
+		return createParser(EntityFilter.parse(DEFAULT_FILTER));
+	}
+
+	/**
+	 * Returns a parser that materializes the labels and aliases in
+	 * {@link ExampleHelpers#LANGUAGES} and whatever the filter looks at.
+	 *
+	 * @param filter
+	 * @return
+	 */
+	public static PartialEntityParser createParser(final EntityFilter filter) {
+		final Set<String> properties = new HashSet<String>();
+		final Set<String> languages = new HashSet<String>();
+		final Set<String> sites = new HashSet<String>();
+		filter.collect(properties, languages, sites);
+		languages.addAll(Arrays.asList(ExampleHelpers.LANGUAGES));
+		return new PartialEntityParser(languages, properties, false, true, !sites.isEmpty());
+	}
 
 	public void processItemDocument(final ItemDocument itemDocument) {
 		this.itemCount++;
 
-		// find an instance of "human"
-		if (itemDocument.hasStatementValue("P31", Datamodel.makeWikidataItemIdValue("Q5"))) {
+		// e.g., find an instance of "human"
+		if (filter.accept(itemDocument)) {
 			try {
 				this.itemsWithPropertyCount++;
 
 				final ItemIdValue itemId = itemDocument.getEntityId();
-				final MonolingualTextValue label = itemDocument.getLabels().get("en");
-				if (label != null) {
-					buf.write(csvEscape(itemId.getId()) + "\t" + csvEscape(label.getText()));
-					// add aliases
-					final List<MonolingualTextValue> aliases = itemDocument.getAliases().get("en");
-					if (aliases != null) {
-						for (final MonolingualTextValue alias : aliases) {
-							buf.write("\t" + csvEscape(alias.getText()));
+				for (int i = 0; i < languages.length; i++) {
+					final MonolingualTextValue label = itemDocument.getLabels().get(languages[i]);
+					if (label != null) {
+						final BufferedWriter buf = bufs[i];
+						buf.write(csvEscape(itemId.getId()) + "\t" + csvEscape(label.getText()));
+						// add aliases
+						final List<MonolingualTextValue> aliases = itemDocument.getAliases().get(languages[i]);
+						if (aliases != null) {
+							for (final MonolingualTextValue alias : aliases) {
+								buf.write("\t" + csvEscape(alias.getText()));
+							}
 						}
+
+						buf.write("\n");
 					}
-					
-					buf.write("\n");
 				}
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
@@ -101,6 +193,11 @@ public class Downloader implements EntityDocumentProcessor {
 		System.out.println("Found " + this.itemsWithPropertyCount 
 				+ " matching items after scanning " + this.itemCount
 				+ " items.");
+		if (ExampleHelpers.SAMPLE_RATE < 1) {
+			System.out.println("Extrapolated to the whole dump: "
+					+ ExampleHelpers.extrapolate(this.itemsWithPropertyCount)
+					+ " matching items of " + ExampleHelpers.extrapolate(this.itemCount) + " items.");
+		}
 
 	}
 
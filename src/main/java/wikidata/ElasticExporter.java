@@ -0,0 +1,536 @@
+package wikidata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import wikidata.WikidataUtils.PropertyValue;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Sends the items extracted by {@link WriterExtractor} to Elasticsearch,
+ * using the bulk API. The documents are the records of {@link JsonWriter}
+ * with the GND id as document id; the coordinates of the places of birth
+ * and death are indexed as geo_point (see {@link #createIndex()} for the
+ * mapping).
+ *
+ * Up to a configurable number of bulk requests are in flight at once. The
+ * size of the requests adapts to how fast Elasticsearch answers: it grows
+ * while requests are fast and is halved when Elasticsearch rejects
+ * documents with 429 (too many requests), which are then sent again after a
+ * backoff. Requests that are too large (413) are split; other client errors
+ * (4xx) are not retried, as they would fail again.
+ *
+ */
+public class ElasticExporter {
+
+	private static final int MAX_RETRIES = 8;
+	private static final int HTTP_TOO_LARGE = 413;
+	private static final int TIMEOUT_MS = 120000;
+
+	// bounds and start value for the size of bulk requests, in bytes
+	private static final int MIN_BATCH_BYTES = 64 << 10;
+	private static final int MAX_BATCH_BYTES = 32 << 20;
+	private static final int INITIAL_BATCH_BYTES = 1 << 20;
+	// requests taking longer get smaller
+	private static final long TARGET_LATENCY_MS = 2000;
+
+	// number of rejected documents whose error is printed
+	private static final int MAX_PRINTED_ERRORS = 10;
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private final String baseUrl;
+	private final String index;
+	private final ExecutorService executor;
+	private final Semaphore inFlight;
+
+	// documents (action and source line) of the request being filled
+	private List<byte[]> batch = new ArrayList<byte[]>();
+	private int batchLength = 0;
+	private volatile int batchBytes = INITIAL_BATCH_BYTES;
+
+	private final AtomicLong indexed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong retried = new AtomicLong();
+	private final AtomicLong requests = new AtomicLong();
+	private IOException failure = null;
+
+	/**
+	 *
+	 * @param url
+	 *            of the Elasticsearch cluster, e.g., http://localhost:9200
+	 * @param index
+	 *            name of the index the documents are written to
+	 * @param concurrentRequests
+	 *            maximal number of bulk requests in flight at once
+	 */
+	public ElasticExporter(final String url, final String index, final int concurrentRequests) {
+		this.baseUrl = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+		this.index = index;
+		this.executor = Executors.newFixedThreadPool(concurrentRequests);
+		this.inFlight = new Semaphore(concurrentRequests);
+	}
+
+	/**
+	 * Creates the index with a mapping that declares the coordinates as
+	 * geo_point (which Elasticsearch can not guess), unless the index
+	 * already exists.
+	 *
+	 * @throws IOException
+	 */
+	public void createIndex() throws IOException {
+		final StringWriter buf = new StringWriter();
+		final JsonGenerator json = JSON_FACTORY.createGenerator(buf);
+		json.writeStartObject();
+		json.writeObjectFieldStart("mappings");
+		json.writeObjectFieldStart("properties");
+		for (final String field : JsonWriter.LOCATIONS) {
+			json.writeObjectFieldStart(field + JsonWriter.LOCATION_SUFFIX);
+			json.writeStringField("type", "geo_point");
+			json.writeEndObject();
+		}
+		json.writeEndObject();
+		json.writeEndObject();
+		json.writeEndObject();
+		json.close();
+
+		final HttpURLConnection conn = openConnection(new URL(baseUrl + "/" + index));
+		conn.setRequestMethod("PUT");
+		conn.setRequestProperty("Content-Type", "application/json");
+		conn.setDoOutput(true);
+		final OutputStream out = conn.getOutputStream();
+		out.write(buf.toString().getBytes("utf-8"));
+		out.close();
+		final int code = conn.getResponseCode();
+		if (code != HttpURLConnection.HTTP_OK) {
+			final String body = readBody(conn);
+			if (!body.contains("resource_already_exists_exception")) {
+				throw new IOException("PUT " + index + " returned " + code + ": " + body);
+			}
+		} else {
+			readBody(conn);
+		}
+	}
+
+	/**
+	 * Exports the items together with the coordinates of their places.
+	 *
+	 * @param items
+	 *            GND id -> properties, as collected by {@link WriterCollector}
+	 * @param coordinates
+	 *            of the places, as collected by
+	 *            {@link PropertyValueCollector}
+	 * @throws IOException
+	 */
+	public void export(final Map<String, Map<String, List<PropertyValue>>> items, final Coordinates coordinates) throws IOException {
+		for (final Entry<String, Map<String, List<PropertyValue>>> item : items.entrySet()) {
+			final Map<String, List<PropertyValue>> properties = item.getValue();
+			final StringWriter buf = new StringWriter();
+			final JsonGenerator json = JSON_FACTORY.createGenerator(buf);
+			json.writeStartObject();
+			JsonWriter.writeProperties(json, properties, coordinates);
+			json.writeEndObject();
+			json.close();
+			add(item.getKey(), buf.toString());
+		}
+	}
+
+	/**
+	 * Exports the records of a file written by {@link JsonWriter}.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void export(final File file) throws IOException {
+		final ChangeFeed.RecordReader reader = new ChangeFeed.RecordReader(file);
+		try {
+			while (reader.hasNext()) {
+				add(reader.gnd, reader.record);
+				reader.next();
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Adds a document; the current batch is sent when it is full.
+	 *
+	 * @param id
+	 * @param source
+	 *            the document as JSON (without linebreaks)
+	 * @throws IOException
+	 *             if an earlier request has failed
+	 */
+	public void add(final String id, final String source) throws IOException {
+		final IOException e = getFailure();
+		if (e != null) {
+			throw e;
+		}
+		final StringWriter buf = new StringWriter(source.length() + 64);
+		final JsonGenerator json = JSON_FACTORY.createGenerator(buf);
+		json.writeStartObject();
+		json.writeObjectFieldStart("index");
+		json.writeStringField("_index", index);
+		json.writeStringField("_id", id);
+		json.writeEndObject();
+		json.writeEndObject();
+		json.close();
+		buf.write('\n');
+		buf.write(source);
+		buf.write('\n');
+		final byte[] doc = buf.toString().getBytes("utf-8");
+		batch.add(doc);
+		batchLength += doc.length;
+		if (batchLength >= batchBytes) {
+			flush();
+		}
+	}
+
+	/**
+	 * Sends the current batch, waiting while the maximal number of requests
+	 * is in flight.
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		if (batch.isEmpty()) {
+			return;
+		}
+		final List<byte[]> docs = batch;
+		batch = new ArrayList<byte[]>();
+		batchLength = 0;
+		try {
+			inFlight.acquire();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while exporting to " + baseUrl, e);
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					send(docs);
+				} finally {
+					inFlight.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sends the remaining documents and waits until all requests are done.
+	 *
+	 * @throws IOException
+	 *             if a request could not be sent
+	 */
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while exporting to " + baseUrl, e);
+			}
+		}
+		final IOException e = getFailure();
+		if (e != null) {
+			throw e;
+		}
+	}
+
+	/**
+	 * Sends a bulk request, again and again for the documents rejected with
+	 * 429 (or all, if the whole request was rejected). A request that is too
+	 * large is sent in two halves.
+	 */
+	private void send(final List<byte[]> docs) {
+		List<byte[]> pending = docs;
+		IOException last = null;
+		for (int attempt = 0; attempt <= MAX_RETRIES; attempt++) {
+			if (getFailure() != null) {
+				return;
+			}
+			try {
+				if (attempt > 0) {
+					retried.addAndGet(pending.size());
+					Thread.sleep(backoff(attempt));
+				}
+				final long start = System.currentTimeMillis();
+				final List<byte[]> tooMany = post(pending);
+				if (tooMany == null) {
+					// whole request rejected
+					shrink();
+					continue;
+				}
+				if (tooMany.isEmpty()) {
+					adapt(System.currentTimeMillis() - start);
+					return;
+				}
+				shrink();
+				pending = tooMany;
+			} catch (final StatusException e) {
+				if (e.code == HTTP_TOO_LARGE) {
+					shrink();
+					split(pending, e);
+					return;
+				}
+				if (e.code >= 400 && e.code < 500) {
+					// the same request would be refused again
+					fail(e);
+					return;
+				}
+				last = e;
+			} catch (final IOException e) {
+				last = e;
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				last = new IOException("interrupted", e);
+				break;
+			}
+		}
+		fail(new IOException("could not send " + pending.size() + " documents to " + baseUrl + " after " + MAX_RETRIES + " retries", last));
+	}
+
+	/**
+	 * Sends the halves of a request that was too large; a single document
+	 * that is too large is rejected.
+	 */
+	private void split(final List<byte[]> docs, final StatusException e) {
+		if (docs.size() == 1) {
+			if (rejected.incrementAndGet() <= MAX_PRINTED_ERRORS) {
+				System.err.println("document rejected: " + e.getMessage());
+			}
+			return;
+		}
+		final int half = docs.size() / 2;
+		send(new ArrayList<byte[]>(docs.subList(0, half)));
+		send(new ArrayList<byte[]>(docs.subList(half, docs.size())));
+	}
+
+	/**
+	 * Posts the documents to the bulk API.
+	 *
+	 * @return the documents rejected with 429, or null if the whole request
+	 *         was rejected
+	 * @throws StatusException
+	 *             if the request was answered with another error
+	 * @throws IOException
+	 *             if the request failed otherwise
+	 */
+	private List<byte[]> post(final List<byte[]> docs) throws IOException {
+		final HttpURLConnection conn = openConnection(new URL(baseUrl + "/_bulk"));
+		conn.setRequestMethod("POST");
+		conn.setRequestProperty("Content-Type", "application/x-ndjson");
+		conn.setDoOutput(true);
+		int length = 0;
+		for (final byte[] doc : docs) {
+			length += doc.length;
+		}
+		conn.setFixedLengthStreamingMode(length);
+		final OutputStream out = conn.getOutputStream();
+		for (final byte[] doc : docs) {
+			out.write(doc);
+		}
+		out.close();
+		requests.incrementAndGet();
+
+		final int code = conn.getResponseCode();
+		if (code == 429 || code == HttpURLConnection.HTTP_UNAVAILABLE) {
+			readBody(conn);
+			return null;
+		}
+		if (code != HttpURLConnection.HTTP_OK) {
+			throw new StatusException(code, "POST _bulk returned " + code + ": " + readBody(conn));
+		}
+		final List<byte[]> tooMany = new ArrayList<byte[]>();
+		final InputStream in = conn.getInputStream();
+		try {
+			final JsonParser parser = JSON_FACTORY.createParser(in);
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("unexpected response of _bulk");
+			}
+			int i = 0;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String field = parser.getCurrentName();
+				parser.nextToken();
+				if (!"items".equals(field)) {
+					parser.skipChildren();
+					continue;
+				}
+				// [{"index":{"_id":..,"status":..,"error":{..}}}, ...]
+				while (parser.nextToken() == JsonToken.START_OBJECT) {
+					parser.nextToken();
+					parser.nextToken();
+					int status = 0;
+					String error = null;
+					while (parser.nextToken() == JsonToken.FIELD_NAME) {
+						final String name = parser.getCurrentName();
+						parser.nextToken();
+						if ("status".equals(name)) {
+							status = parser.getIntValue();
+						} else if ("error".equals(name)) {
+							final StringWriter buf = new StringWriter();
+							final JsonGenerator gen = JSON_FACTORY.createGenerator(buf);
+							gen.copyCurrentStructure(parser);
+							gen.close();
+							error = buf.toString();
+						} else {
+							parser.skipChildren();
+						}
+					}
+					parser.nextToken();
+					if (status == 429) {
+						tooMany.add(docs.get(i));
+					} else if (status >= 300) {
+						if (rejected.incrementAndGet() <= MAX_PRINTED_ERRORS) {
+							System.err.println("document rejected with " + status + ": " + error);
+						}
+					} else {
+						indexed.incrementAndGet();
+					}
+					i++;
+				}
+			}
+			parser.close();
+			if (i != docs.size()) {
+				throw new IOException("_bulk answered " + i + " of " + docs.size() + " documents");
+			}
+		} finally {
+			in.close();
+		}
+		return tooMany;
+	}
+
+	/**
+	 * Exponential backoff with jitter, such that the concurrent requests do
+	 * not retry at the same time.
+	 */
+	private static long backoff(final int attempt) {
+		final long max = Math.min(30000L, 100L << attempt);
+		return max / 2 + ThreadLocalRandom.current().nextLong(max / 2 + 1);
+	}
+
+	/**
+	 * Grows or shrinks the batches depending on the latency of a successful
+	 * request.
+	 */
+	private synchronized void adapt(final long latency) {
+		if (latency < TARGET_LATENCY_MS) {
+			batchBytes = Math.min(MAX_BATCH_BYTES, batchBytes + batchBytes / 4);
+		} else if (latency > 2 * TARGET_LATENCY_MS) {
+			batchBytes = Math.max(MIN_BATCH_BYTES, batchBytes * 3 / 4);
+		}
+	}
+
+	private synchronized void shrink() {
+		batchBytes = Math.max(MIN_BATCH_BYTES, batchBytes / 2);
+	}
+
+	private synchronized void fail(final IOException e) {
+		if (failure == null) {
+			failure = e;
+		}
+	}
+
+	private synchronized IOException getFailure() {
+		return failure;
+	}
+
+	public long getIndexed() {
+		return indexed.get();
+	}
+
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * The size the bulk requests are filled up to now, in bytes.
+	 */
+	int getBatchBytes() {
+		return batchBytes;
+	}
+
+	@Override
+	public String toString() {
+		return indexed + " documents indexed, " + rejected + " rejected, " + retried + " retried, in " + requests + " requests (batches now " + (batchBytes >> 10) + " KB)";
+	}
+
+	private static String readBody(final HttpURLConnection conn) throws IOException {
+		InputStream in = conn.getErrorStream();
+		if (in == null) {
+			try {
+				in = conn.getInputStream();
+			} catch (final IOException e) {
+				return "";
+			}
+		}
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		try {
+			final byte[] buf = new byte[1 << 12];
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				body.write(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		return body.toString("utf-8");
+	}
+
+	private static HttpURLConnection openConnection(final URL url) throws IOException {
+		final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		conn.setConnectTimeout(TIMEOUT_MS);
+		conn.setReadTimeout(TIMEOUT_MS);
+		return conn;
+	}
+
+	/**
+	 * An HTTP error status of a request.
+	 */
+	private static class StatusException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private final int code;
+
+		public StatusException(final int code, final String message) {
+			super(message);
+			this.code = code;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3) {
+			System.err.println("usage: ElasticExporter URL INDEX ITEMS.json [CONCURRENT_REQUESTS]");
+			System.exit(1);
+		}
+		final ElasticExporter exporter = new ElasticExporter(args[0], args[1], args.length > 3 ? Integer.parseInt(args[3]) : 4);
+		exporter.createIndex();
+		exporter.export(new File(args[2]));
+		exporter.close();
+		System.out.println(exporter);
+	}
+}
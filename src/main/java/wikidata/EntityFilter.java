@@ -0,0 +1,443 @@
+package wikidata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import org.wikidata.wdtk.datamodel.interfaces.EntityDocumentProcessor;
+import org.wikidata.wdtk.datamodel.interfaces.EntityIdValue;
+import org.wikidata.wdtk.datamodel.interfaces.ItemDocument;
+import org.wikidata.wdtk.datamodel.interfaces.PropertyDocument;
+import org.wikidata.wdtk.datamodel.interfaces.Statement;
+import org.wikidata.wdtk.datamodel.interfaces.StatementGroup;
+import org.wikidata.wdtk.datamodel.interfaces.Value;
+
+/**
+ * A condition on items, composed of simple conditions (has a property, has
+ * a value, has a label in a language, has a sitelink) with and, or, and
+ * not. Conditions can be built with the static methods or parsed from
+ * strings like
+ *
+ * <pre>
+ * P31=Q5 &amp; (P106 | P227) &amp; label:en &amp; !sitelink:dewiki
+ * </pre>
+ *
+ * The clauses of "and" and "or" are evaluated cheapest and most selective
+ * first: each counts how often it is true, and every
+ * {@link #REORDER_INTERVAL} evaluations they are reordered by expected
+ * cost per decision (cost divided by the probability that the clause
+ * decides the result). Evaluation stops as soon as the result is known,
+ * and values are only looked at for items that have the property.
+ *
+ */
+public abstract class EntityFilter {
+
+	// number of evaluations after which "and" and "or" reorder their clauses
+	static final int REORDER_INTERVAL = 1 << 12;
+
+	/**
+	 * Whether the item satisfies the condition.
+	 *
+	 * @param item
+	 * @return
+	 */
+	public abstract boolean accept(final ItemDocument item);
+
+	/**
+	 * Relative cost of evaluating the condition.
+	 */
+	abstract int cost();
+
+	/**
+	 * Adds the properties, languages (of labels), and sites (of sitelinks)
+	 * the condition looks at, such that a {@link PartialEntityParser} can keep
+	 * them.
+	 */
+	abstract void collect(final Set<String> properties, final Set<String> languages, final Set<String> sites);
+
+	/**
+	 * Wraps a processor such that it only sees the items that satisfy the
+	 * condition (and all properties).
+	 *
+	 * @param processor
+	 * @return
+	 */
+	public EntityDocumentProcessor filter(final EntityDocumentProcessor processor) {
+		return new EntityDocumentProcessor() {
+			public void processItemDocument(final ItemDocument itemDocument) {
+				if (accept(itemDocument)) {
+					processor.processItemDocument(itemDocument);
+				}
+			}
+
+			public void processPropertyDocument(final PropertyDocument propertyDocument) {
+				processor.processPropertyDocument(propertyDocument);
+			}
+		};
+	}
+
+	public static EntityFilter hasProperty(final String propertyId) {
+		return new EntityFilter() {
+			public boolean accept(final ItemDocument item) {
+				return item.findStatementGroup(propertyId) != null;
+			}
+
+			int cost() {
+				return 1;
+			}
+
+			void collect(final Set<String> properties, final Set<String> languages, final Set<String> sites) {
+				properties.add(propertyId);
+			}
+
+			@Override
+			public String toString() {
+				return propertyId;
+			}
+		};
+	}
+
+	/**
+	 * The item has a statement for the property whose value is the given
+	 * one: an entity id or a literal as formatted by
+	 * {@link WikidataUtils#getValue(Value)}.
+	 *
+	 * @param propertyId
+	 * @param value
+	 * @return
+	 */
+	public static EntityFilter hasValue(final String propertyId, final String value) {
+		return new EntityFilter() {
+			public boolean accept(final ItemDocument item) {
+				final StatementGroup group = item.findStatementGroup(propertyId);
+				if (group == null) {
+					return false;
+				}
+				final List<Statement> statements = group.getStatements();
+				for (int i = 0; i < statements.size(); i++) {
+					final Value val = statements.get(i).getValue();
+					if (val instanceof EntityIdValue) {
+						// no need to format ids
+						if (value.equals(((EntityIdValue) val).getId())) {
+							return true;
+						}
+					} else if (val != null && value.equals(WikidataUtils.getValue(val))) {
+						return true;
+					}
+				}
+				return false;
+			}
+
+			int cost() {
+				return 3;
+			}
+
+			void collect(final Set<String> properties, final Set<String> languages, final Set<String> sites) {
+				properties.add(propertyId);
+			}
+
+			@Override
+			public String toString() {
+				return propertyId + "=" + value;
+			}
+		};
+	}
+
+	public static EntityFilter hasLabel(final String language) {
+		return new EntityFilter() {
+			public boolean accept(final ItemDocument item) {
+				return item.getLabels().containsKey(language);
+			}
+
+			int cost() {
+				return 1;
+			}
+
+			void collect(final Set<String> properties, final Set<String> languages, final Set<String> sites) {
+				languages.add(language);
+			}
+
+			@Override
+			public String toString() {
+				return "label:" + language;
+			}
+		};
+	}
+
+	public static EntityFilter hasSiteLink(final String site) {
+		return new EntityFilter() {
+			public boolean accept(final ItemDocument item) {
+				return item.getSiteLinks().containsKey(site);
+			}
+
+			int cost() {
+				return 1;
+			}
+
+			void collect(final Set<String> properties, final Set<String> languages, final Set<String> sites) {
+				sites.add(site);
+			}
+
+			@Override
+			public String toString() {
+				return "sitelink:" + site;
+			}
+		};
+	}
+
+	public static EntityFilter and(final EntityFilter... clauses) {
+		return new Composite(true, clauses);
+	}
+
+	public static EntityFilter or(final EntityFilter... clauses) {
+		return new Composite(false, clauses);
+	}
+
+	public static EntityFilter not(final EntityFilter clause) {
+		return new EntityFilter() {
+			public boolean accept(final ItemDocument item) {
+				return !clause.accept(item);
+			}
+
+			int cost() {
+				return clause.cost();
+			}
+
+			void collect(final Set<String> properties, final Set<String> languages, final Set<String> sites) {
+				clause.collect(properties, languages, sites);
+			}
+
+			@Override
+			public String toString() {
+				return "!" + clause;
+			}
+		};
+	}
+
+	/**
+	 * Parses a condition. Grammar (with "&amp;" binding stronger than "|"):
+	 *
+	 * <pre>
+	 * or     := and ("|" and)*
+	 * and    := factor ("&amp;" factor)*
+	 * factor := "!" factor | "(" or ")" | P123 | P123=value | label:en | sitelink:enwiki
+	 * </pre>
+	 *
+	 * @param condition
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if the condition can not be parsed
+	 */
+	public static EntityFilter parse(final String condition) {
+		return new Parser(condition).parse();
+	}
+
+	/**
+	 * "and" (true if no clause is false) or "or" (false if no clause is
+	 * true) of clauses which are reordered by how they performed so far.
+	 * The counts are not synchronized: with several threads they can be
+	 * slightly off, which only affects the order.
+	 */
+	private static class Composite extends EntityFilter {
+		// whether all clauses must be true or one suffices
+		private final boolean and;
+		private final int cost;
+		private volatile Clause[] clauses;
+		private int evaluations = 0;
+
+		public Composite(final boolean and, final EntityFilter[] filters) {
+			if (filters.length == 0) {
+				throw new IllegalArgumentException("at least one clause is required");
+			}
+			this.and = and;
+			this.clauses = new Clause[filters.length];
+			int sum = 0;
+			for (int i = 0; i < filters.length; i++) {
+				this.clauses[i] = new Clause(filters[i]);
+				sum += filters[i].cost();
+			}
+			this.cost = sum;
+			reorder();
+		}
+
+		public boolean accept(final ItemDocument item) {
+			final Clause[] order = clauses;
+			// "and": stop at the first false clause, "or": at the first true one
+			boolean result = and;
+			for (int i = 0; i < order.length; i++) {
+				final Clause clause = order[i];
+				clause.evaluations++;
+				if (clause.filter.accept(item)) {
+					clause.passes++;
+					if (!and) {
+						result = true;
+						break;
+					}
+				} else if (and) {
+					result = false;
+					break;
+				}
+			}
+			if (++evaluations % REORDER_INTERVAL == 0) {
+				reorder();
+			}
+			return result;
+		}
+
+		/**
+		 * Sorts the clauses by cost per decision and halves the counts, such
+		 * that the order follows changes in the dump.
+		 */
+		private synchronized void reorder() {
+			final Clause[] order = clauses.clone();
+			for (final Clause clause : order) {
+				// a clause never seen is assumed to decide half of the time
+				final double passRate = clause.evaluations == 0 ? 0.5 : (double) clause.passes / clause.evaluations;
+				final double decides = and ? 1 - passRate : passRate;
+				clause.rank = clause.filter.cost() / Math.max(decides, 1e-3);
+				clause.evaluations /= 2;
+				clause.passes /= 2;
+			}
+			Arrays.sort(order, BY_RANK);
+			clauses = order;
+		}
+
+		int cost() {
+			return cost;
+		}
+
+		void collect(final Set<String> properties, final Set<String> languages, final Set<String> sites) {
+			for (final Clause clause : clauses) {
+				clause.filter.collect(properties, languages, sites);
+			}
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder buf = new StringBuilder("(");
+			for (final Clause clause : clauses) {
+				if (buf.length() > 1) {
+					buf.append(and ? " & " : " | ");
+				}
+				buf.append(clause.filter);
+			}
+			return buf.append(")").toString();
+		}
+	}
+
+	private static class Clause {
+		private final EntityFilter filter;
+		private long evaluations = 0;
+		private long passes = 0;
+		private double rank;
+
+		public Clause(final EntityFilter filter) {
+			this.filter = filter;
+		}
+	}
+
+	private static final Comparator<Clause> BY_RANK = new Comparator<Clause>() {
+		public int compare(final Clause o1, final Clause o2) {
+			return Double.compare(o1.rank, o2.rank);
+		}
+	};
+
+	/**
+	 * Recursive descent parser for {@link EntityFilter#parse(String)}.
+	 */
+	private static class Parser {
+		private final String input;
+		private int pos = 0;
+
+		public Parser(final String input) {
+			this.input = input;
+		}
+
+		public EntityFilter parse() {
+			final EntityFilter filter = parseOr();
+			skipWhitespace();
+			if (pos < input.length()) {
+				throw error("unexpected '" + input.charAt(pos) + "'");
+			}
+			return filter;
+		}
+
+		private EntityFilter parseOr() {
+			final List<EntityFilter> clauses = new ArrayList<EntityFilter>();
+			clauses.add(parseAnd());
+			while (consume('|')) {
+				clauses.add(parseAnd());
+			}
+			return clauses.size() == 1 ? clauses.get(0) : or(clauses.toArray(new EntityFilter[clauses.size()]));
+		}
+
+		private EntityFilter parseAnd() {
+			final List<EntityFilter> clauses = new ArrayList<EntityFilter>();
+			clauses.add(parseFactor());
+			while (consume('&')) {
+				clauses.add(parseFactor());
+			}
+			return clauses.size() == 1 ? clauses.get(0) : and(clauses.toArray(new EntityFilter[clauses.size()]));
+		}
+
+		private EntityFilter parseFactor() {
+			if (consume('!')) {
+				return not(parseFactor());
+			}
+			if (consume('(')) {
+				final EntityFilter filter = parseOr();
+				if (!consume(')')) {
+					throw error("missing ')'");
+				}
+				return filter;
+			}
+			final String word = parseWord();
+			if (word.startsWith("label:")) {
+				return hasLabel(word.substring("label:".length()));
+			}
+			if (word.startsWith("sitelink:")) {
+				return hasSiteLink(word.substring("sitelink:".length()));
+			}
+			if (!word.matches("P[0-9]+")) {
+				throw error("expected a property id but got '" + word + "'");
+			}
+			if (consume('=')) {
+				return hasValue(word, parseWord());
+			}
+			return hasProperty(word);
+		}
+
+		private String parseWord() {
+			skipWhitespace();
+			final int start = pos;
+			while (pos < input.length() && "&|!()=".indexOf(input.charAt(pos)) < 0 && !Character.isWhitespace(input.charAt(pos))) {
+				pos++;
+			}
+			if (pos == start) {
+				throw error("expected a condition");
+			}
+			return input.substring(start, pos);
+		}
+
+		private boolean consume(final char c) {
+			skipWhitespace();
+			if (pos < input.length() && input.charAt(pos) == c) {
+				pos++;
+				return true;
+			}
+			return false;
+		}
+
+		private void skipWhitespace() {
+			while (pos < input.length() && Character.isWhitespace(input.charAt(pos))) {
+				pos++;
+			}
+		}
+
+		private IllegalArgumentException error(final String message) {
+			return new IllegalArgumentException(message + " at position " + pos + " of \"" + input + "\"");
+		}
+	}
+}
@@ -0,0 +1,502 @@
+package wikidata;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.wikidata.wdtk.datamodel.helpers.Datamodel;
+import org.wikidata.wdtk.datamodel.helpers.DatamodelMapper;
+import org.wikidata.wdtk.datamodel.implementation.EntityDocumentImpl;
+import org.wikidata.wdtk.datamodel.interfaces.EntityDocument;
+import org.wikidata.wdtk.datamodel.interfaces.EntityDocumentDumpProcessor;
+import org.wikidata.wdtk.datamodel.interfaces.EntityDocumentProcessor;
+import org.wikidata.wdtk.datamodel.interfaces.ItemDocument;
+import org.wikidata.wdtk.datamodel.interfaces.PropertyDocument;
+import org.wikidata.wdtk.dumpfiles.EntityTimerProcessor.TimeoutException;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * Processes a JSON dump in separate stages which are connected by bounded
+ * queues of batches:
+ *
+ * <pre>
+ * reader (1 thread) -&gt; parser (n threads) -&gt; dispatcher (1 thread) -&gt; processor stages (m threads each)
+ * </pre>
+ *
+ * The reader splits the decompressed dump into batches of lines, the parsers
+ * turn them into entity documents and the dispatcher hands every parsed batch
+ * to each processor stage. Since all queues are bounded, a slow stage blocks
+ * the stages before it instead of filling up the heap.
+ *
+ * Stages that are registered as ordered see the batches in dump order, which
+ * is required for collectors that keep insertion order or write output.
+ * Stages with more than one thread must be thread-safe and see the batches in
+ * no particular order. The dispatcher holds back batches that were parsed
+ * before their predecessors; to bound these, too, the reader only starts a
+ * batch when fewer than (parser threads + 2) * queue capacity batches are
+ * between it and the dispatcher.
+ *
+ */
+public class EntityPipeline {
+
+	// sentinel that signals the end of the input to the next stage
+	private static final Batch<?> END = new Batch<Object>(-1, Collections.emptyList());
+
+	private final int parserThreads;
+	private final int batchSize;
+	private final int queueCapacity;
+	private final ObjectReader documentReader;
+	// if set, only the parts of the entities that the stages need are parsed
+	private final PartialEntityParser entityParser;
+	// if set, entities that are not sampled are skipped before parsing
+	private EntitySampler sampler = null;
+
+	private final List<Stage> stages = new ArrayList<Stage>();
+
+	// first failure of any stage, re-thrown by process()
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+	// set when a stage asks to stop early (e.g., the timer processor)
+	private volatile boolean stopped = false;
+
+	/**
+	 *
+	 * @param parserThreads
+	 *            number of threads that parse JSON
+	 * @param batchSize
+	 *            number of entities handed over between stages at once
+	 * @param queueCapacity
+	 *            number of batches that each queue can hold before the
+	 *            stage feeding it blocks
+	 */
+	public EntityPipeline(final int parserThreads, final int batchSize, final int queueCapacity) {
+		this(parserThreads, batchSize, queueCapacity, null);
+	}
+
+	/**
+	 *
+	 * @param parserThreads
+	 *            number of threads that parse JSON
+	 * @param batchSize
+	 *            number of entities handed over between stages at once
+	 * @param queueCapacity
+	 *            number of batches that each queue can hold before the
+	 *            stage feeding it blocks
+	 * @param entityParser
+	 *            parser that materializes only the parts of the entities
+	 *            that the stages need, or null to parse the entities
+	 *            completely
+	 */
+	public EntityPipeline(final int parserThreads, final int batchSize, final int queueCapacity, final PartialEntityParser entityParser) {
+		if (parserThreads < 1 || batchSize < 1 || queueCapacity < 1) {
+			throw new IllegalArgumentException("thread count, batch size, and queue capacity must be positive");
+		}
+		this.parserThreads = parserThreads;
+		this.batchSize = batchSize;
+		this.queueCapacity = queueCapacity;
+		this.entityParser = entityParser;
+		this.documentReader = new DatamodelMapper(Datamodel.SITE_WIKIDATA)
+				.readerFor(EntityDocumentImpl.class)
+				.with(DeserializationFeature.ACCEPT_EMPTY_STRING_AS_NULL_OBJECT);
+	}
+
+	/**
+	 * Lets the stages only see a sample of the entities. The other entities
+	 * are not parsed.
+	 *
+	 * @param sampler
+	 */
+	public void setSampler(final EntitySampler sampler) {
+		this.sampler = sampler;
+	}
+
+	/**
+	 * Adds a single-threaded processor stage which sees all entities in dump
+	 * order.
+	 *
+	 * @param processor
+	 */
+	public void addStage(final EntityDocumentProcessor processor) {
+		addStage(processor, 1, true);
+	}
+
+	/**
+	 * Adds a processor stage.
+	 *
+	 * @param processor
+	 * @param threads
+	 *            number of threads calling the processor; if larger than one,
+	 *            the processor must be thread-safe
+	 * @param ordered
+	 *            whether the processor must see the entities in dump order;
+	 *            only possible with one thread
+	 */
+	public void addStage(final EntityDocumentProcessor processor, final int threads, final boolean ordered) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("a stage needs at least one thread");
+		}
+		if (ordered && threads > 1) {
+			throw new IllegalArgumentException("an ordered stage can only have one thread");
+		}
+		this.stages.add(new Stage(processor, threads, ordered));
+	}
+
+	/**
+	 * Processes the given (decompressed) JSON dump and returns when all stages
+	 * have seen all entities.
+	 *
+	 * @param in
+	 * @throws IOException
+	 * @throws TimeoutException
+	 *             if a stage asked to stop early
+	 */
+	public void process(final InputStream in) throws IOException {
+		final BlockingQueue<Batch<String>> lines = new ArrayBlockingQueue<Batch<String>>(queueCapacity);
+		final BlockingQueue<Batch<EntityDocument>> parsed = new ArrayBlockingQueue<Batch<EntityDocument>>(queueCapacity);
+		// batches read but not yet dispatched: both queues, the parsers, and
+		// up to parserThreads * queueCapacity batches waiting for their
+		// predecessors in the dispatcher
+		final Semaphore inFlight = new Semaphore((parserThreads + 2) * queueCapacity);
+
+		final List<Thread> threads = new ArrayList<Thread>();
+		boolean anyOrdered = false;
+		for (final Stage stage : stages) {
+			if (stage.processor instanceof EntityDocumentDumpProcessor) {
+				((EntityDocumentDumpProcessor) stage.processor).open();
+			}
+			anyOrdered |= stage.ordered;
+			for (int i = 0; i < stage.threads; i++) {
+				threads.add(start(new StageWorker(stage), "stage-" + stage.processor.getClass().getSimpleName() + "-" + i));
+			}
+		}
+		threads.add(start(new Dispatcher(parsed, inFlight, anyOrdered), "dispatcher"));
+		final List<Thread> parsers = new ArrayList<Thread>();
+		for (int i = 0; i < parserThreads; i++) {
+			parsers.add(start(new Parser(lines, parsed), "parser-" + i));
+		}
+
+		// the calling thread is the reader
+		try {
+			read(in, lines, inFlight);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			fail(e);
+		} catch (final IOException e) {
+			fail(e);
+		} finally {
+			// one end marker per parser; the last parser to finish tells the dispatcher
+			for (int i = 0; i < parserThreads; i++) {
+				putUninterruptibly(lines, end(String.class));
+			}
+		}
+
+		join(parsers);
+		putUninterruptibly(parsed, end(EntityDocument.class));
+		join(threads);
+
+		final Throwable t = failure.get();
+		if (t instanceof IOException) {
+			throw (IOException) t;
+		}
+		if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		}
+		if (t instanceof Error) {
+			throw (Error) t;
+		}
+		if (t != null) {
+			throw new RuntimeException(t);
+		}
+		if (stopped) {
+			throw new TimeoutException();
+		}
+	}
+
+	/**
+	 * Splits the dump into batches of lines. The dump is a JSON array with
+	 * one entity per line. Each batch takes a permit from inFlight which the
+	 * dispatcher returns once it has handed the batch on.
+	 */
+	private void read(final InputStream in, final BlockingQueue<Batch<String>> lines, final Semaphore inFlight) throws IOException, InterruptedException {
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(in, "utf-8"), 1 << 16);
+		long seq = 0;
+		List<String> batch = new ArrayList<String>(batchSize);
+		String line;
+		while (!stopped && failure.get() == null && (line = reader.readLine()) != null) {
+			batch.add(line);
+			if (batch.size() == batchSize) {
+				if (!acquire(inFlight)) {
+					return;
+				}
+				lines.put(new Batch<String>(seq++, batch));
+				batch = new ArrayList<String>(batchSize);
+			}
+		}
+		if (!batch.isEmpty() && acquire(inFlight)) {
+			lines.put(new Batch<String>(seq, batch));
+		}
+	}
+
+	/**
+	 * Takes a permit, giving up when the pipeline has stopped or failed
+	 * (after which the permits might never be returned).
+	 *
+	 * @return whether a permit was taken
+	 */
+	private boolean acquire(final Semaphore inFlight) throws InterruptedException {
+		while (!stopped && failure.get() == null) {
+			if (inFlight.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Parses a single line of the dump. Returns null for the array brackets
+	 * and empty lines.
+	 */
+	private EntityDocument parse(final String line) throws IOException {
+		int end = line.length();
+		while (end > 0 && (line.charAt(end - 1) == ',' || Character.isWhitespace(line.charAt(end - 1)))) {
+			end--;
+		}
+		if (end <= 1) {
+			// "[", "]", or empty
+			return null;
+		}
+		final String json = end == line.length() ? line : line.substring(0, end);
+		if (entityParser != null) {
+			return entityParser.parse(json);
+		}
+		return documentReader.readValue(json);
+	}
+
+	private void fail(final Throwable t) {
+		if (t instanceof TimeoutException) {
+			stopped = true;
+		} else {
+			failure.compareAndSet(null, t);
+		}
+	}
+
+	private static Thread start(final Runnable runnable, final String name) {
+		final Thread thread = new Thread(runnable, "pipeline-" + name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	private static void join(final List<Thread> threads) {
+		for (final Thread thread : threads) {
+			boolean interrupted = false;
+			while (thread.isAlive()) {
+				try {
+					thread.join();
+				} catch (final InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static <T> void putUninterruptibly(final BlockingQueue<T> queue, final T element) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				queue.put(element);
+				break;
+			} catch (final InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> Batch<T> end(final Class<T> type) {
+		return (Batch<T>) END;
+	}
+
+	/**
+	 * Turns batches of lines into batches of documents.
+	 */
+	private class Parser implements Runnable {
+		private final BlockingQueue<Batch<String>> in;
+		private final BlockingQueue<Batch<EntityDocument>> out;
+
+		public Parser(final BlockingQueue<Batch<String>> in, final BlockingQueue<Batch<EntityDocument>> out) {
+			this.in = in;
+			this.out = out;
+		}
+
+		public void run() {
+			try {
+				Batch<String> batch;
+				while ((batch = in.take()) != END) {
+					final List<EntityDocument> docs = new ArrayList<EntityDocument>(batch.elements.size());
+					// keep on draining after a failure so that the reader does not block
+					if (!stopped && failure.get() == null) {
+						try {
+							parse(batch.elements, docs);
+						} catch (final Throwable t) {
+							fail(t);
+						}
+					}
+					// always forwarded, since an ordered dispatcher waits for every batch
+					out.put(new Batch<EntityDocument>(batch.seq, docs));
+				}
+			} catch (final Throwable t) {
+				fail(t);
+			}
+		}
+
+		private void parse(final List<String> lines, final List<EntityDocument> docs) throws IOException {
+			for (final String line : lines) {
+				if (sampler != null && !sampler.acceptLine(line)) {
+					continue;
+				}
+				try {
+					final EntityDocument doc = EntityPipeline.this.parse(line);
+					if (doc != null) {
+						docs.add(doc);
+					}
+				} catch (final JsonProcessingException e) {
+					// same as WDTK: skip broken entities
+					System.err.println("Error when reading JSON for entity: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Restores dump order (if any stage requires it) and hands each batch to
+	 * all stages.
+	 */
+	private class Dispatcher implements Runnable {
+		private final BlockingQueue<Batch<EntityDocument>> in;
+		private final Semaphore inFlight;
+		private final boolean ordered;
+
+		public Dispatcher(final BlockingQueue<Batch<EntityDocument>> in, final Semaphore inFlight, final boolean ordered) {
+			this.in = in;
+			this.inFlight = inFlight;
+			this.ordered = ordered;
+		}
+
+		public void run() {
+			try {
+				// batches that arrived before their predecessors (bounded by
+				// the permits of inFlight)
+				final Map<Long, Batch<EntityDocument>> pending = new HashMap<Long, Batch<EntityDocument>>();
+				long next = 0;
+				Batch<EntityDocument> batch;
+				while ((batch = in.take()) != END) {
+					if (!ordered) {
+						dispatch(batch);
+						continue;
+					}
+					pending.put(batch.seq, batch);
+					while ((batch = pending.remove(next)) != null) {
+						dispatch(batch);
+						next++;
+					}
+				}
+			} catch (final Throwable t) {
+				fail(t);
+			} finally {
+				for (final Stage stage : stages) {
+					for (int i = 0; i < stage.threads; i++) {
+						putUninterruptibly(stage.queue, end(EntityDocument.class));
+					}
+				}
+			}
+		}
+
+		private void dispatch(final Batch<EntityDocument> batch) throws InterruptedException {
+			if (!batch.elements.isEmpty()) {
+				for (final Stage stage : stages) {
+					stage.queue.put(batch);
+				}
+			}
+			inFlight.release();
+		}
+	}
+
+	/**
+	 * Feeds the documents of a stage's queue to its processor.
+	 */
+	private class StageWorker implements Runnable {
+		private final Stage stage;
+
+		public StageWorker(final Stage stage) {
+			this.stage = stage;
+		}
+
+		public void run() {
+			try {
+				Batch<EntityDocument> batch;
+				while ((batch = stage.queue.take()) != END) {
+					if (stopped || failure.get() != null) {
+						continue;
+					}
+					try {
+						for (final EntityDocument doc : batch.elements) {
+							if (doc instanceof ItemDocument) {
+								stage.processor.processItemDocument((ItemDocument) doc);
+							} else if (doc instanceof PropertyDocument) {
+								stage.processor.processPropertyDocument((PropertyDocument) doc);
+							}
+						}
+					} catch (final Throwable t) {
+						fail(t);
+					}
+				}
+			} catch (final InterruptedException e) {
+				fail(e);
+			}
+		}
+	}
+
+	private class Stage {
+		private final EntityDocumentProcessor processor;
+		private final int threads;
+		private final boolean ordered;
+		private final BlockingQueue<Batch<EntityDocument>> queue;
+
+		public Stage(final EntityDocumentProcessor processor, final int threads, final boolean ordered) {
+			this.processor = processor;
+			this.threads = threads;
+			this.ordered = ordered;
+			this.queue = new ArrayBlockingQueue<Batch<EntityDocument>>(queueCapacity);
+		}
+	}
+
+	private static class Batch<T> {
+		private final long seq;
+		private final List<T> elements;
+
+		public Batch(final long seq, final List<T> elements) {
+			this.seq = seq;
+			this.elements = elements;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package wikidata;
+
+import org.wikidata.wdtk.datamodel.interfaces.EntityDocumentProcessor;
+import org.wikidata.wdtk.datamodel.interfaces.ItemDocument;
+import org.wikidata.wdtk.datamodel.interfaces.PropertyDocument;
+
+/**
+ * Selects a deterministic sample of the entities of a dump: an entity is in
+ * the sample if the hash of its id is below the sampling rate. Thus, every
+ * run with the same rate sees the same entities, spread evenly over the
+ * dump (unlike a timeout, which only sees the first, low ids).
+ *
+ * The {@link EntityPipeline} uses {@link #acceptLine(String)} to skip the
+ * entities that are not sampled before parsing them. Counts obtained from
+ * the sample can be projected to the whole dump with
+ * {@link #extrapolate(long)}.
+ *
+ */
+public class EntitySampler {
+
+	private static final String ID_FIELD = "\"id\":\"";
+
+	private final double rate;
+	// entities whose hash (as unsigned 53 bit number) is below are sampled
+	private final long threshold;
+
+	/**
+	 *
+	 * @param rate
+	 *            fraction of entities to sample, between 0 (exclusive) and 1
+	 */
+	public EntitySampler(final double rate) {
+		if (!(rate > 0 && rate <= 1)) {
+			throw new IllegalArgumentException("sampling rate must be in (0, 1] but is " + rate);
+		}
+		this.rate = rate;
+		this.threshold = (long) (rate * (1L << 53));
+	}
+
+	public double getRate() {
+		return rate;
+	}
+
+	/**
+	 * Whether the entity with the given id is in the sample.
+	 *
+	 * @param entityId
+	 * @return
+	 */
+	public boolean accept(final CharSequence entityId) {
+		if (rate >= 1) {
+			return true;
+		}
+		return (hash(entityId, 0, entityId.length()) >>> 11) < threshold;
+	}
+
+	/**
+	 * Whether the entity in the given line of a JSON dump is in the sample,
+	 * without parsing it. Lines without id (e.g., the brackets around the
+	 * entities) are accepted.
+	 *
+	 * @param line
+	 * @return
+	 */
+	public boolean acceptLine(final String line) {
+		if (rate >= 1) {
+			return true;
+		}
+		final int start = line.indexOf(ID_FIELD);
+		if (start < 0) {
+			return true;
+		}
+		final int from = start + ID_FIELD.length();
+		final int to = line.indexOf('"', from);
+		if (to < 0) {
+			return true;
+		}
+		return (hash(line, from, to) >>> 11) < threshold;
+	}
+
+	/**
+	 * Projects a count obtained from the sample to the whole dump, together
+	 * with the half-width of its 95% confidence interval.
+	 *
+	 * @param sampleCount
+	 * @return e.g., "1234000 +/- 2100"
+	 */
+	public String extrapolate(final long sampleCount) {
+		if (rate >= 1) {
+			return String.valueOf(sampleCount);
+		}
+		final long estimate = Math.round(sampleCount / rate);
+		final long error = Math.round(1.96 * Math.sqrt(sampleCount * (1 - rate)) / rate);
+		return estimate + " +/- " + error;
+	}
+
+	/**
+	 * Wraps a processor such that it only sees the sampled entities. For
+	 * dumps that are not processed with the {@link EntityPipeline} (which
+	 * skips them before parsing).
+	 *
+	 * @param processor
+	 * @return
+	 */
+	public EntityDocumentProcessor filter(final EntityDocumentProcessor processor) {
+		return new EntityDocumentProcessor() {
+			public void processItemDocument(final ItemDocument itemDocument) {
+				if (accept(itemDocument.getEntityId().getId())) {
+					processor.processItemDocument(itemDocument);
+				}
+			}
+
+			public void processPropertyDocument(final PropertyDocument propertyDocument) {
+				if (accept(propertyDocument.getEntityId().getId())) {
+					processor.processPropertyDocument(propertyDocument);
+				}
+			}
+		};
+	}
+
+	/**
+	 * 64 bit FNV-1a, finalized with the MurmurHash3 mixer such that ids
+	 * differing only in the last digit spread over the whole range.
+	 */
+	static long hash(final CharSequence s, final int from, final int to) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = from; i < to; i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -20,12 +20,19 @@ package wikidata;
  * #L%
  */
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.Level;
@@ -37,6 +44,10 @@ import org.wikidata.wdtk.dumpfiles.DumpProcessingController;
 import org.wikidata.wdtk.dumpfiles.EntityTimerProcessor;
 import org.wikidata.wdtk.dumpfiles.EntityTimerProcessor.TimeoutException;
 import org.wikidata.wdtk.dumpfiles.MwDumpFile;
+import org.wikidata.wdtk.dumpfiles.MwRevision;
+import org.wikidata.wdtk.dumpfiles.MwRevisionProcessor;
+import org.wikidata.wdtk.dumpfiles.wmf.WmfDumpFile;
+import org.wikidata.wdtk.dumpfiles.wmf.WmfDumpFileManager;
 
 /**
  * Class for sharing code that is used in many examples. It contains several
@@ -82,12 +93,125 @@ public class ExampleHelpers {
 	 */
 	public static final int TIMEOUT_SEC = 0;
 
+	/**
+	 * Fraction of the entities to process, or 1 to process all. Unlike
+	 * {@link ExampleHelpers#TIMEOUT_SEC}, the sample is spread evenly over the
+	 * dump and is the same in every run (see {@link EntitySampler}). Counts
+	 * can be projected to the whole dump with
+	 * {@link ExampleHelpers#extrapolate(long)}. Passes that look up entities
+	 * found by an earlier pass are not sampled.
+	 */
+	public static final double SAMPLE_RATE = 1.0;
+
+	private static final EntitySampler SAMPLER = new EntitySampler(SAMPLE_RATE);
+
+	/**
+	 * Number of threads that parse JSON when processing JSON dumps with the
+	 * {@link EntityPipeline}. Set to 0 to let WDTK read, parse, and process
+	 * the dump in a single thread instead.
+	 */
+	public static final int PARSER_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 2);
+
+	/**
+	 * Number of entities that the stages of the {@link EntityPipeline} hand
+	 * over to each other at once.
+	 */
+	public static final int PIPELINE_BATCH_SIZE = 256;
+
+	/**
+	 * Number of batches each queue of the {@link EntityPipeline} can hold
+	 * before the stage feeding it has to wait.
+	 */
+	public static final int PIPELINE_QUEUE_CAPACITY = 32;
+
+	/**
+	 * Number of parallel connections used to download a JSON dump (when not
+	 * in {@link ExampleHelpers#OFFLINE_MODE}). The download is resumable and
+	 * verified against the published MD5 sums, and processing starts while
+	 * the rest of the dump is still being downloaded. Set to 0 to let WDTK
+	 * download the dump over a single connection.
+	 */
+	public static final int DOWNLOAD_THREADS = 4;
+
+	/**
+	 * Size of the byte ranges the dump is downloaded in.
+	 */
+	public static final long DOWNLOAD_PART_SIZE = 64L << 20;
+
+	/**
+	 * Where Wikimedia publishes the JSON dumps of Wikidata.
+	 */
+	public static final String JSON_DUMP_BASE_URL = "https://dumps.wikimedia.org/wikidatawiki/entities/";
+
+	/**
+	 * Number of megabytes the data collected while processing a dump may take
+	 * (as estimated by {@link MemoryBudget}), or 0 to allow three quarters of
+	 * the maximal heap size.
+	 */
+	public static final long MEMORY_BUDGET_MB = 0;
+
+	/**
+	 * Whether to stop processing when the {@link #MEMORY_BUDGET_MB} is
+	 * exceeded, instead of only warning. The estimates ignore some sharing
+	 * and are thus rather too high, so a run that exceeds the budget may
+	 * well fit.
+	 */
+	public static final boolean MEMORY_BUDGET_FAIL = false;
+
+	/**
+	 * Languages of the labels to extract. The main fields hold the labels in
+	 * the first language and a field per further language is written (e.g.,
+	 * "name_de"). Values without a label in the first language keep their id
+	 * there; items without a name in it only get the further "name_" fields.
+	 */
+	public static final String[] LANGUAGES = { "en", "de" };
+
+	/**
+	 * Directory where {@link WriterExtractor} keeps the results of its
+	 * stages for reuse by later runs on the same dump (see
+	 * {@link StageCache}), or null to recompute everything in every run.
+	 */
+	public static final String CACHE_DIRECTORY = "cache";
+
+	/**
+	 * URL of the Elasticsearch cluster the extracted items are exported to
+	 * (see {@link ElasticExporter}), or null to not export them.
+	 */
+	public static final String ELASTIC_URL = null;
+
+	/**
+	 * Name of the Elasticsearch index the items are exported to.
+	 */
+	public static final String ELASTIC_INDEX = "gnditems";
+
+	/**
+	 * Number of bulk requests sent to Elasticsearch at once.
+	 */
+	public static final int ELASTIC_CONCURRENT_REQUESTS = 4;
+
+	/**
+	 * Creates a memory budget as configured by
+	 * {@link ExampleHelpers#MEMORY_BUDGET_MB}.
+	 *
+	 * @return
+	 */
+	public static MemoryBudget createMemoryBudget() {
+		final long budget = MEMORY_BUDGET_MB > 0 ? MEMORY_BUDGET_MB << 20 : Runtime.getRuntime().maxMemory() / 4 * 3;
+		return new MemoryBudget(budget, MEMORY_BUDGET_FAIL);
+	}
+
 	/**
 	 * Identifier of the dump file that was processed last. This can be used to
 	 * name files generated while processing a dump file.
 	 */
 	private static String lastDumpFileName = "";
 
+	/**
+	 * Downloads of JSON dumps started by this process, by date, such that
+	 * several passes over a dump share one download.
+	 */
+	private static final Map<String, RangedDownloader> downloads = new HashMap<String, RangedDownloader>();
+
 	/**
 	 * Defines how messages should be logged. This method can be modified to
 	 * restrict the logging messages that are shown on the console or to change
@@ -118,6 +242,70 @@ public class ExampleHelpers {
 	 */
 	public static void processEntitiesFromWikidataDump(
 			EntityDocumentProcessor entityDocumentProcessor) {
+		processEntitiesFromWikidataDump(entityDocumentProcessor, null);
+	}
+
+	/**
+	 * Processes all entities in a Wikidata dump using the given entity
+	 * processor. When the dump is processed with the {@link EntityPipeline},
+	 * the given parser is used to materialize only the parts of the entities
+	 * that the processor needs.
+	 *
+	 * @param entityDocumentProcessor
+	 *            the object to use for processing entities in this dump
+	 * @param entityParser
+	 *            parser for the parts of the entities the processor looks
+	 *            at, or null to parse entities completely
+	 */
+	public static void processEntitiesFromWikidataDump(
+			EntityDocumentProcessor entityDocumentProcessor,
+			PartialEntityParser entityParser) {
+		processEntitiesFromWikidataDump(entityDocumentProcessor, entityParser, 1);
+	}
+
+	/**
+	 * Processes all entities in a Wikidata dump using the given thread-safe
+	 * entity processor. When the dump is processed with the
+	 * {@link EntityPipeline}, the processor is called by the given number of
+	 * threads (and sees the entities in no particular order if more than
+	 * one).
+	 *
+	 * @param entityDocumentProcessor
+	 *            the object to use for processing entities in this dump
+	 * @param entityParser
+	 *            parser for the parts of the entities the processor looks
+	 *            at, or null to parse entities completely
+	 * @param processorThreads
+	 *            number of threads calling the processor
+	 */
+	public static void processEntitiesFromWikidataDump(
+			EntityDocumentProcessor entityDocumentProcessor,
+			PartialEntityParser entityParser, int processorThreads) {
+		processEntitiesFromWikidataDump(entityDocumentProcessor, entityParser, processorThreads, true);
+	}
+
+	/**
+	 * Processes the entities in a Wikidata dump using the given thread-safe
+	 * entity processor, like
+	 * {@link #processEntitiesFromWikidataDump(EntityDocumentProcessor, PartialEntityParser, int)}.
+	 * Only passes that select the entities to work on should be sampled
+	 * (see {@link #SAMPLE_RATE}); passes that look up entities found
+	 * before (e.g., the labels of property values) must see all of them.
+	 *
+	 * @param entityDocumentProcessor
+	 *            the object to use for processing entities in this dump
+	 * @param entityParser
+	 *            parser for the parts of the entities the processor looks
+	 *            at, or null to parse entities completely
+	 * @param processorThreads
+	 *            number of threads calling the processor
+	 * @param sample
+	 *            whether the processor only sees the sampled entities
+	 */
+	public static void processEntitiesFromWikidataDump(
+			EntityDocumentProcessor entityDocumentProcessor,
+			PartialEntityParser entityParser, int processorThreads,
+			boolean sample) {
 
 		// Controller object for processing dumps:
 		DumpProcessingController dumpProcessingController = new DumpProcessingController(
@@ -144,7 +332,8 @@ public class ExampleHelpers {
 
 		// Subscribe to the most recent entity documents of type wikibase item:
 		dumpProcessingController.registerEntityDocumentProcessor(
-				entityDocumentProcessor, null, onlyCurrentRevisions);
+				sample ? SAMPLER.filter(entityDocumentProcessor) : entityDocumentProcessor,
+				null, onlyCurrentRevisions);
 
 		// Also add a timer that reports some basic progress information:
 		EntityTimerProcessor entityTimerProcessor = new EntityTimerProcessor(
@@ -188,7 +377,11 @@ public class ExampleHelpers {
 			if (dumpFile != null) {
 				lastDumpFileName = dumpFile.getProjectName() + "-"
 						+ dumpFile.getDateStamp();
-				dumpProcessingController.processDump(dumpFile);
+				if (DUMP_FILE_MODE == DumpProcessingMode.JSON && PARSER_THREADS > 0) {
+					processDumpWithPipeline(dumpFile, entityDocumentProcessor, entityTimerProcessor, entityParser, processorThreads, sample);
+				} else {
+					dumpProcessingController.processDump(dumpFile);
+				}
 			}
 		} catch (TimeoutException e) {
 			// The timer caused a time out. Continue and finish normally.
@@ -198,6 +391,151 @@ public class ExampleHelpers {
 		entityTimerProcessor.close();
 	}
 
+	/**
+	 * Processes all revisions of all items in the most recent full history
+	 * dump (regardless of {@link #DUMP_FILE_MODE}). The revisions of each
+	 * item come together and in the order they were made.
+	 *
+	 * @param revisionProcessor
+	 *            the object to use for processing the revisions
+	 */
+	public static void processRevisionsFromWikidataDump(
+			final MwRevisionProcessor revisionProcessor) {
+		final DumpProcessingController dumpProcessingController = new DumpProcessingController(
+				"wikidatawiki");
+		dumpProcessingController.setOfflineMode(OFFLINE_MODE);
+		dumpProcessingController.registerMwRevisionProcessor(
+				revisionProcessor, MwRevision.MODEL_WIKIBASE_ITEM, false);
+
+		final MwDumpFile dumpFile = dumpProcessingController
+				.getMostRecentDump(DumpContentType.FULL);
+		if (dumpFile != null) {
+			lastDumpFileName = dumpFile.getProjectName() + "-"
+					+ dumpFile.getDateStamp();
+			dumpProcessingController.processDump(dumpFile);
+		}
+	}
+
+	/**
+	 * Processes a JSON dump file with an {@link EntityPipeline} such that
+	 * decompression, parsing, and processing happen in different threads. The
+	 * processor and the timer each get their own stage.
+	 *
+	 * @param dumpFile
+	 *            the JSON dump file (will be downloaded if necessary)
+	 * @param entityDocumentProcessor
+	 * @param entityTimerProcessor
+	 * @param entityParser
+	 *            parser for the parts of the entities the processor looks
+	 *            at, or null to parse entities completely
+	 * @param processorThreads
+	 *            number of threads of the processor's stage; the stage is
+	 *            only ordered if this is one
+	 * @param sample
+	 *            whether to skip the entities that are not sampled
+	 */
+	private static void processDumpWithPipeline(final MwDumpFile dumpFile,
+			final EntityDocumentProcessor entityDocumentProcessor,
+			final EntityTimerProcessor entityTimerProcessor,
+			final PartialEntityParser entityParser,
+			final int processorThreads, final boolean sample) {
+		final EntityPipeline pipeline = new EntityPipeline(PARSER_THREADS,
+				PIPELINE_BATCH_SIZE, PIPELINE_QUEUE_CAPACITY, entityParser);
+		if (sample) {
+			pipeline.setSampler(SAMPLER);
+		}
+		pipeline.addStage(entityDocumentProcessor, processorThreads, processorThreads == 1);
+		pipeline.addStage(entityTimerProcessor);
+		try {
+			final InputStream in;
+			if (!OFFLINE_MODE && DOWNLOAD_THREADS > 0) {
+				in = downloadJsonDump(dumpFile.getDateStamp());
+			} else {
+				dumpFile.prepareDumpFile();
+				in = dumpFile.getDumpFileStream();
+			}
+			try {
+				pipeline.process(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot read dump file " + dumpFile
+					+ ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Downloads the JSON dump of the given date with a
+	 * {@link RangedDownloader} to where WDTK keeps downloaded dumps, such
+	 * that later runs (also in {@link #OFFLINE_MODE}) find it. Returns the
+	 * decompressed contents as a stream, which can be consumed while the
+	 * download is still in progress. Closing the stream before its end
+	 * cancels the download (unless another stream over it is open).
+	 *
+	 * Later calls for the same dump share the download (or read the
+	 * complete file) instead of starting another one.
+	 *
+	 * @param dateStamp
+	 *            date of the dump, e.g., "20200302"
+	 * @return
+	 * @throws IOException
+	 */
+	private static InputStream downloadJsonDump(final String dateStamp) throws IOException {
+		final InputStream in = openJsonDumpDownload(dateStamp);
+		try {
+			return new GZIPInputStream(in, 1 << 16);
+		} catch (final IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	private static InputStream openJsonDumpDownload(final String dateStamp) throws IOException {
+		final File target = getJsonDumpFile(dateStamp);
+		synchronized (downloads) {
+			RangedDownloader downloader = downloads.get(dateStamp);
+			if (downloader == null || !downloader.isUsable()) {
+				if (target.exists()) {
+					return new FileInputStream(target);
+				}
+				if (downloader != null) {
+					// a cancelled download: let it stop before resuming it
+					try {
+						downloader.awaitTermination();
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("interrupted while waiting for the previous download of " + target, e);
+					}
+				}
+				final String fileName = "wikidata-" + dateStamp + "-all.json.gz";
+				final String baseUrl = JSON_DUMP_BASE_URL + dateStamp + "/";
+				final String md5 = RangedDownloader.fetchChecksum(new URL(baseUrl + "wikidata-" + dateStamp + "-md5sums.txt"), fileName);
+				if (md5 == null) {
+					System.err.println("no checksum published for " + fileName + ", can not verify download");
+				}
+				Files.createDirectories(target.toPath().getParent());
+				downloader = new RangedDownloader(new URL(baseUrl + fileName), target, DOWNLOAD_PART_SIZE, DOWNLOAD_THREADS, md5);
+				downloader.start();
+				downloads.put(dateStamp, downloader);
+			}
+			return downloader.openStream();
+		}
+	}
+
+	/**
+	 * Where WDTK's {@link DumpProcessingController} (with its default
+	 * download directory) keeps the JSON dump of the given date.
+	 *
+	 * @param dateStamp
+	 * @return
+	 */
+	private static File getJsonDumpFile(final String dateStamp) {
+		return Paths.get(System.getProperty("user.dir"), WmfDumpFileManager.DOWNLOAD_DIRECTORY_NAME, "wikidatawiki",
+				WmfDumpFile.getDumpFileDirectoryName(DumpContentType.JSON, dateStamp),
+				WmfDumpFile.getDumpFileName(DumpContentType.JSON, "wikidatawiki", dateStamp)).toFile();
+	}
+
 	/**
 	 * Opens a new FileOutputStream for a file of the given name in the example
 	 * output directory ({@link ExampleHelpers#EXAMPLE_OUTPUT_DIRECTORY}). Any
@@ -226,6 +564,19 @@ public class ExampleHelpers {
 		return new FileOutputStream(filePath.toFile());
 	}
 
+	/**
+	 * Projects a count obtained while processing a sample of the dump (see
+	 * {@link ExampleHelpers#SAMPLE_RATE}) to the whole dump.
+	 *
+	 * @param count
+	 *            a count of entities from the sample
+	 * @return the estimate for the whole dump (with its 95% confidence
+	 *         interval if sampling), as string
+	 */
+	public static String extrapolate(final long count) {
+		return SAMPLER.extrapolate(count);
+	}
+
 	/**
 	 * Returns the name of the dump file that was last processed. This can be
 	 * used to name files generated from this dump. The result might be the
@@ -235,6 +586,49 @@ public class ExampleHelpers {
 		return lastDumpFileName;
 	}
 
+	/**
+	 * Returns the name (as in {@link #getLastDumpFileName()}) of the dump
+	 * that {@link #processEntitiesFromWikidataDump(EntityDocumentProcessor)}
+	 * would process now, without processing it.
+	 *
+	 * @return the name or the empty string if there is no dump
+	 */
+	public static String getMostRecentDumpFileName() {
+		final DumpProcessingController dumpProcessingController = new DumpProcessingController(
+				"wikidatawiki");
+		dumpProcessingController.setOfflineMode(OFFLINE_MODE);
+		final DumpContentType contentType;
+		switch (DUMP_FILE_MODE) {
+		case ALL_REVS_WITH_DAILIES:
+		case CURRENT_REVS_WITH_DAILIES:
+			final MwDumpFile fullDumpFile = dumpProcessingController
+					.getMostRecentDump(DumpContentType.FULL);
+			final MwDumpFile incrDumpFile = dumpProcessingController
+					.getMostRecentDump(DumpContentType.DAILY);
+			if (fullDumpFile == null || incrDumpFile == null) {
+				return "";
+			}
+			return fullDumpFile.getProjectName() + "-"
+					+ incrDumpFile.getDateStamp() + "."
+					+ fullDumpFile.getDateStamp();
+		case ALL_REVS:
+		case CURRENT_REVS:
+			contentType = DumpContentType.FULL;
+			break;
+		case JUST_ONE_DAILY_FOR_TEST:
+			contentType = DumpContentType.DAILY;
+			break;
+		case JSON:
+		default:
+			contentType = DumpContentType.JSON;
+		}
+		final MwDumpFile dumpFile = dumpProcessingController.getMostRecentDump(contentType);
+		if (dumpFile == null) {
+			return "";
+		}
+		return dumpFile.getProjectName() + "-" + dumpFile.getDateStamp();
+	}
+
 	/**
 	 * Create a directory at the given path if it does not exist yet.
 	 *
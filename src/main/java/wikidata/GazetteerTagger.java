@@ -0,0 +1,462 @@
+package wikidata;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds mentions of humans in text, using the labels and aliases written by
+ * {@link Downloader}. All names are compiled into one trie automaton over
+ * case-folded characters, so the cost of tagging does not depend on the
+ * number of names.
+ *
+ * A match only counts if it starts and ends at a token boundary (i.e., it is
+ * not preceded or followed by a letter or digit). Hence, the automaton is
+ * only started at token starts and runs as long as the text continues a
+ * name; unlike Aho-Corasick, it needs no failure links, and in practice
+ * most characters are looked at once or twice. Of overlapping matches, the
+ * leftmost-longest one wins.
+ *
+ * The automaton is stored in primitive arrays: the transitions of all states
+ * are sorted by character and stored contiguously (the transitions of the
+ * root in a direct lookup table). Instances are thread-safe.
+ *
+ */
+public class GazetteerTagger {
+
+	// shorter names produce too many spurious matches
+	private static final int MIN_NAME_LENGTH = 3;
+
+	// transitions: those of state s are at [edgeStart[s], edgeStart[s + 1])
+	private final int[] edgeStart;
+	private final char[] edgeChar;
+	private final int[] edgeTarget;
+	// transitions of the root, indexed by character
+	private final int[] rootNext;
+	// the name ending in each state, or -1
+	private final int[] nameOf;
+
+	// length of each name
+	private final int[] nameLength;
+	// ids of name n are ids[idStart[n]] ... ids[idStart[n + 1] - 1]
+	private final int[] idStart;
+	private final int[] ids;
+
+	/**
+	 * Compiles the automaton for the given names.
+	 *
+	 * @param names
+	 *            map from name to the numeric part of the Wikidata ids of
+	 *            the humans having that name
+	 */
+	public GazetteerTagger(final Map<String, List<Integer>> names) {
+		// case-fold and merge the names, then sort them to build the trie with a stack
+		final Map<String, List<Integer>> folded = new HashMap<String, List<Integer>>();
+		for (final Map.Entry<String, List<Integer>> entry : names.entrySet()) {
+			final String name = fold(entry.getKey().trim());
+			if (name.length() >= MIN_NAME_LENGTH) {
+				List<Integer> list = folded.get(name);
+				if (list == null) {
+					list = new ArrayList<Integer>(1);
+					folded.put(name, list);
+				}
+				list.addAll(entry.getValue());
+			}
+		}
+		final String[] sorted = folded.keySet().toArray(new String[folded.size()]);
+		Arrays.sort(sorted);
+
+		this.nameLength = new int[sorted.length];
+		this.idStart = new int[sorted.length + 1];
+		int idCount = 0;
+		for (final String name : sorted) {
+			idCount += folded.get(name).size();
+		}
+		final int[] allIds = new int[idCount];
+		int i = 0;
+		for (int n = 0; n < sorted.length; n++) {
+			nameLength[n] = sorted[n].length();
+			idStart[n] = i;
+			final List<Integer> list = folded.get(sorted[n]);
+			Collections.sort(list);
+			for (final int id : list) {
+				// spellings that differ in case can have the same ids
+				if (i == idStart[n] || allIds[i - 1] != id) {
+					allIds[i++] = id;
+				}
+			}
+			idStart[n + 1] = i;
+		}
+		this.ids = Arrays.copyOf(allIds, i);
+
+		/*
+		 * build the trie: since the names are sorted, each name shares a
+		 * prefix with its predecessor and only the rest needs new states
+		 */
+		final IntList parents = new IntList();
+		final CharList chars = new CharList();
+		final IntList stateNames = new IntList();
+		parents.add(-1);
+		chars.add((char) 0);
+		stateNames.add(-1);
+		final int[] path = new int[maxLength(sorted) + 1];
+		String previous = "";
+		for (int n = 0; n < sorted.length; n++) {
+			final String name = sorted[n];
+			int shared = 0;
+			while (shared < previous.length() && shared < name.length() && previous.charAt(shared) == name.charAt(shared)) {
+				shared++;
+			}
+			for (int j = shared; j < name.length(); j++) {
+				final int state = parents.size();
+				parents.add(path[j]);
+				chars.add(name.charAt(j));
+				stateNames.add(-1);
+				path[j + 1] = state;
+			}
+			stateNames.set(path[name.length()], n);
+			previous = name;
+		}
+		final int states = parents.size();
+
+		// group the transitions by source state (children were created in character order)
+		this.edgeStart = new int[states + 1];
+		for (int s = 1; s < states; s++) {
+			edgeStart[parents.get(s) + 1]++;
+		}
+		for (int s = 0; s < states; s++) {
+			edgeStart[s + 1] += edgeStart[s];
+		}
+		this.edgeChar = new char[states - 1];
+		this.edgeTarget = new int[states - 1];
+		final int[] fill = Arrays.copyOf(edgeStart, states);
+		for (int s = 1; s < states; s++) {
+			final int e = fill[parents.get(s)]++;
+			edgeChar[e] = chars.get(s);
+			edgeTarget[e] = s;
+		}
+		this.rootNext = new int[Character.MAX_VALUE + 1];
+		for (int e = edgeStart[0]; e < edgeStart[1]; e++) {
+			rootNext[edgeChar[e]] = edgeTarget[e];
+		}
+		this.nameOf = stateNames.toArray();
+	}
+
+	/**
+	 * Reads the TSV written by {@link Downloader} ("Q-id", "label",
+	 * "alias"...) and compiles the automaton.
+	 *
+	 * @param tsvFile
+	 * @return
+	 * @throws IOException
+	 */
+	public static GazetteerTagger fromDownloaderOutput(final File tsvFile) throws IOException {
+		final Map<String, List<Integer>> names = new HashMap<String, List<Integer>>();
+		final BufferedReader buf = new BufferedReader(new InputStreamReader(new FileInputStream(tsvFile), "utf-8"));
+		String line;
+		while ((line = buf.readLine()) != null) {
+			final String[] parts = line.split("\t");
+			final String qid = csvUnescape(parts[0]);
+			if (parts.length < 2 || !qid.startsWith("Q")) {
+				continue;
+			}
+			final Integer id = Integer.valueOf(qid.substring(1));
+			for (int i = 1; i < parts.length; i++) {
+				final String name = csvUnescape(parts[i]);
+				List<Integer> list = names.get(name);
+				if (list == null) {
+					list = new ArrayList<Integer>(1);
+					names.put(name, list);
+				}
+				list.add(id);
+			}
+		}
+		buf.close();
+		return new GazetteerTagger(names);
+	}
+
+	/**
+	 * Returns the mentions in the text, ordered by position.
+	 *
+	 * @param text
+	 * @return
+	 */
+	public List<Mention> tag(final CharSequence text) {
+		final List<Mention> mentions = new ArrayList<Mention>();
+		final int n = text.length();
+		int i = 0;
+		while (i < n) {
+			if (i > 0 && isWordChar(text.charAt(i - 1))) {
+				// not a token start
+				i++;
+				continue;
+			}
+			// walk the trie as far as the text allows and remember the longest name
+			int state = 0;
+			int name = -1;
+			int end = -1;
+			for (int j = i; j < n; j++) {
+				state = transition(state, fold(text.charAt(j)));
+				if (state < 0) {
+					break;
+				}
+				if (nameOf[state] >= 0 && (j + 1 == n || !isWordChar(text.charAt(j + 1)))) {
+					name = nameOf[state];
+					end = j + 1;
+				}
+			}
+			if (name < 0) {
+				i++;
+			} else {
+				mentions.add(new Mention(i, end, text.subSequence(i, end).toString(), getIds(name)));
+				i = end;
+			}
+		}
+		return mentions;
+	}
+
+	private String[] getIds(final int name) {
+		final String[] result = new String[idStart[name + 1] - idStart[name]];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = "Q" + ids[idStart[name] + i];
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the target of the state's transition with the character, or -1.
+	 */
+	private int transition(final int state, final char c) {
+		if (state == 0) {
+			final int next = rootNext[c];
+			return next == 0 ? -1 : next;
+		}
+		int low = edgeStart[state];
+		int high = edgeStart[state + 1] - 1;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			final char m = edgeChar[mid];
+			if (m < c) {
+				low = mid + 1;
+			} else if (m > c) {
+				high = mid - 1;
+			} else {
+				return edgeTarget[mid];
+			}
+		}
+		return -1;
+	}
+
+	private static char fold(final char c) {
+		if (c < 128) {
+			return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+		}
+		return Character.toLowerCase(c);
+	}
+
+	private static boolean isWordChar(final char c) {
+		if (c < 128) {
+			return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+		}
+		return Character.isLetterOrDigit(c);
+	}
+
+	private static String fold(final String s) {
+		final char[] chars = s.toCharArray();
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = fold(chars[i]);
+		}
+		return new String(chars);
+	}
+
+	private static int maxLength(final String[] names) {
+		int max = 0;
+		for (final String name : names) {
+			max = Math.max(max, name.length());
+		}
+		return max;
+	}
+
+	/**
+	 * Reverses Downloader's csvEscape: removes the enclosing quotation marks
+	 * and un-doubles the inner ones.
+	 */
+	private static String csvUnescape(final String s) {
+		if (s.length() >= 2 && s.charAt(0) == '"' && s.charAt(s.length() - 1) == '"') {
+			return s.substring(1, s.length() - 1).replace("\"\"", "\"");
+		}
+		return s;
+	}
+
+	/**
+	 * A mention of one or more humans (with the same name) in a text.
+	 */
+	public static class Mention {
+		public final int start;
+		public final int end;
+		public final String text;
+		public final String[] ids;
+
+		public Mention(final int start, final int end, final String text, final String[] ids) {
+			this.start = start;
+			this.end = end;
+			this.text = text;
+			this.ids = ids;
+		}
+
+		@Override
+		public String toString() {
+			return start + "-" + end + ":" + text + Arrays.toString(ids);
+		}
+	}
+
+	/**
+	 * Tags the documents (one per line) with several threads and writes the
+	 * mentions in document order.
+	 *
+	 * @param in
+	 * @param out
+	 *            gets one line per mention: line number, start, end, text,
+	 *            ids
+	 * @param threads
+	 * @throws IOException
+	 */
+	public void tagAll(final BufferedReader in, final Writer out, final int threads) throws IOException {
+		final int batchSize = 1000;
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		// bounded number of batches in flight, in document order
+		final Deque<Future<String>> pending = new ArrayDeque<Future<String>>();
+		try {
+			long lineNumber = 0;
+			List<String> batch = new ArrayList<String>(batchSize);
+			String line;
+			while (true) {
+				line = in.readLine();
+				if (line != null) {
+					batch.add(line);
+				}
+				if (batch.size() == batchSize || (line == null && !batch.isEmpty())) {
+					pending.add(executor.submit(new TagTask(batch, lineNumber)));
+					lineNumber += batch.size();
+					batch = new ArrayList<String>(batchSize);
+				}
+				while (pending.size() > 2 * threads || (line == null && !pending.isEmpty())) {
+					out.write(pending.removeFirst().get());
+				}
+				if (line == null) {
+					break;
+				}
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while tagging", e);
+		} catch (final ExecutionException e) {
+			throw new IOException("tagging failed", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private class TagTask implements Callable<String> {
+		private final List<String> documents;
+		private final long firstLine;
+
+		public TagTask(final List<String> documents, final long firstLine) {
+			this.documents = documents;
+			this.firstLine = firstLine;
+		}
+
+		public String call() {
+			final StringBuilder result = new StringBuilder();
+			for (int i = 0; i < documents.size(); i++) {
+				for (final Mention mention : tag(documents.get(i))) {
+					result.append(firstLine + i + 1).append('\t').append(mention.start).append('\t').append(mention.end).append('\t').append(mention.text);
+					for (final String id : mention.ids) {
+						result.append('\t').append(id);
+					}
+					result.append('\n');
+				}
+			}
+			return result.toString();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("usage: GazetteerTagger wikidata_humans_walias.tsv DOCUMENTS.txt [THREADS]");
+			System.exit(1);
+		}
+		final int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		final GazetteerTagger tagger = fromDownloaderOutput(new File(args[0]));
+		final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(args[1]), "utf-8"), 1 << 16);
+		final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, "utf-8"), 1 << 16);
+		tagger.tagAll(in, out, threads);
+		out.close();
+		in.close();
+	}
+
+	/**
+	 * Growable int array, to avoid boxing while building the automaton.
+	 */
+	private static class IntList {
+		private int[] values = new int[1024];
+		private int size = 0;
+
+		public void add(final int value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		public int get(final int i) {
+			return values[i];
+		}
+
+		public void set(final int i, final int value) {
+			values[i] = value;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public int[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+
+	private static class CharList {
+		private char[] values = new char[1024];
+		private int size = 0;
+
+		public void add(final char value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		public char get(final int i) {
+			return values[i];
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package wikidata;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.wikidata.wdtk.datamodel.interfaces.EntityDocument;
+import org.wikidata.wdtk.datamodel.interfaces.StatementDocument;
+import org.wikidata.wdtk.dumpfiles.MwRevision;
+import org.wikidata.wdtk.dumpfiles.MwRevisionProcessor;
+
+import wikidata.WikidataUtils.PropertyValue;
+
+/**
+ * Processes the revisions of a full history dump and writes how the values
+ * of some properties changed over time, one change per line:
+ *
+ * <pre>
+ * Q5879	123456789	2014-03-02T10:11:12Z	P106	Q36180	Q36180|Q49757
+ * </pre>
+ *
+ * (entity, revision, timestamp, property, old values, new values, values
+ * separated by "|"; the first revision of an entity has no old values).
+ *
+ * The dump lists the revisions of each page together and in the order they
+ * were made, so only the values of the current page are kept: memory does
+ * not depend on the size of the dump. Revisions that mention none of the
+ * properties (and follow one that did not either) are skipped without
+ * parsing. Revisions whose JSON can not be parsed (e.g., redirects or very
+ * old serialization formats) are counted and otherwise ignored.
+ *
+ */
+public class HistoryCollector implements MwRevisionProcessor {
+
+	/*
+	 * properties whose history we are interested in
+	 */
+	private static final String[] PROPERTIES = { "P106", "P227", "P569", "P570" };
+
+	private static final String SEPARATOR = "|";
+
+	private final PartialEntityParser parser = new PartialEntityParser(Collections.<String>emptyList(), Arrays.asList(PROPERTIES), false, false, false);
+	private final Writer out;
+
+	// the page whose revisions we currently see
+	private int pageId = -1;
+	// its values in the last revision, for each of the properties
+	private final Map<String, Set<String>> values = new LinkedHashMap<String, Set<String>>();
+
+	private long revisionCount = 0;
+	private long parsedCount = 0;
+	private long brokenCount = 0;
+	private long changeCount = 0;
+
+	public HistoryCollector(final Writer out) {
+		this.out = out;
+	}
+
+	public void startRevisionProcessing(final String siteName, final String baseUrl, final Map<Integer, String> namespaces) {
+		// noop
+	}
+
+	public void processRevision(final MwRevision revision) {
+		revisionCount++;
+		if (revisionCount % 1000000 == 0) {
+			printStatus();
+		}
+		if (revision.getPageId() != pageId) {
+			pageId = revision.getPageId();
+			values.clear();
+		}
+		final String text = revision.getText();
+		if (values.isEmpty() && !mentionsProperties(text)) {
+			return;
+		}
+
+		final EntityDocument doc;
+		try {
+			doc = parser.parse(text);
+		} catch (final IOException e) {
+			brokenCount++;
+			return;
+		}
+		if (!(doc instanceof StatementDocument)) {
+			brokenCount++;
+			return;
+		}
+		parsedCount++;
+
+		try {
+			for (final String property : PROPERTIES) {
+				final Set<String> current = new LinkedHashSet<String>();
+				for (final PropertyValue value : WikidataUtils.getValues((StatementDocument) doc, property)) {
+					current.add(value.toString());
+				}
+				final Set<String> previous = values.get(property);
+				if (previous == null ? !current.isEmpty() : !previous.equals(current)) {
+					writeChange(revision, property, previous, current);
+				}
+				if (current.isEmpty()) {
+					values.remove(property);
+				} else {
+					values.put(property, current);
+				}
+			}
+		} catch (final IOException e) {
+			throw new RuntimeException("could not write change of revision " + revision.getRevisionId(), e);
+		}
+	}
+
+	private boolean mentionsProperties(final String text) {
+		for (final String property : PROPERTIES) {
+			if (text.indexOf(property) >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void writeChange(final MwRevision revision, final String property, final Set<String> previous, final Set<String> current) throws IOException {
+		changeCount++;
+		out.write(revision.getTitle());
+		out.write('\t');
+		out.write(Long.toString(revision.getRevisionId()));
+		out.write('\t');
+		out.write(revision.getTimeStamp());
+		out.write('\t');
+		out.write(property);
+		out.write('\t');
+		writeValues(previous);
+		out.write('\t');
+		writeValues(current);
+		out.write('\n');
+	}
+
+	private void writeValues(final Set<String> vals) throws IOException {
+		if (vals == null) {
+			return;
+		}
+		boolean first = true;
+		for (final String value : vals) {
+			if (!first) {
+				out.write(SEPARATOR);
+			}
+			out.write(value);
+			first = false;
+		}
+	}
+
+	long getParsedCount() {
+		return parsedCount;
+	}
+
+	long getBrokenCount() {
+		return brokenCount;
+	}
+
+	public void finishRevisionProcessing() {
+		printStatus();
+	}
+
+	public void printStatus() {
+		System.out.println("processed " + revisionCount + " revisions, parsed " + parsedCount + " (" + brokenCount + " broken), wrote " + changeCount + " changes");
+	}
+
+	public static void main(String[] args) throws IOException {
+		ExampleHelpers.configureLogging();
+
+		final BufferedWriter buf = new BufferedWriter(new AsyncWriter(new OutputStreamWriter(new FileOutputStream("wikidata_history.tsv"), "UTF-8")), 1 << 16);
+		final HistoryCollector collector = new HistoryCollector(buf);
+		ExampleHelpers.processRevisionsFromWikidataDump(collector);
+		buf.close();
+	}
+}
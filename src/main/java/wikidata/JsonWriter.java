@@ -1,8 +1,11 @@
 package wikidata;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -21,62 +24,183 @@ import com.fasterxml.jackson.core.JsonGenerator;
 public class JsonWriter {
 
 	
+	/*
+	 * fields with places whose coordinates are written, as field name +
+	 * LOCATION_SUFFIX
+	 */
+	static final String[] LOCATIONS = { "place_of_birth", "place_of_death" };
+	static final String LOCATION_SUFFIX = "_location";
+
 	private final Map<String, Map<String, List<PropertyValue>>> items;
-	private final Map<String, String> coordinates;
+	private final Coordinates coordinates;
 	
-	public JsonWriter(final Map<String, Map<String, List<PropertyValue>>> items, final Map<String, String> coordinates) {
+	public JsonWriter(final Map<String, Map<String, List<PropertyValue>>> items, final Coordinates coordinates) {
 		super();
 		this.items = items;
 		this.coordinates = coordinates;
 	}
 	
+	/**
+	 * Writes the items to a new file which then replaces the one with the
+	 * given name, which might be linked into the {@link StageCache}.
+	 *
+	 * @param fileName
+	 * @throws IOException
+	 */
 	public void write(final String fileName) throws IOException {
+		final File tmp = new File(fileName + ".tmp");
 		final JsonFactory factory = new JsonFactory();
-		final JsonGenerator json = factory.createGenerator(new OutputStreamWriter(new FileOutputStream(fileName), "utf-8"));
-		json.writeStartObject();
-		writeItems(json);
-		json.writeEndObject();
-		json.close();		
+		final JsonGenerator json = factory.createGenerator(new OutputStreamWriter(new FileOutputStream(tmp), "utf-8"));
+		try {
+			json.writeStartObject();
+			writeItems(json);
+			json.writeEndObject();
+		} finally {
+			json.close();
+		}
+		StageCache.replace(tmp, new File(fileName));
 	}
 	
+	/**
+	 * Writes the items sorted by GND id, such that the files of two runs can
+	 * be compared in one pass (see {@link ChangeFeed}).
+	 *
+	 * @param json
+	 * @throws IOException
+	 */
 	private void writeItems(final JsonGenerator json) throws IOException {
-		for (final Entry<String, Map<String, List<PropertyValue>>> entry : items.entrySet()) {
-			json.writeFieldName(entry.getKey()); // "118540238" : 
+		final List<String> gnds = new ArrayList<String>(items.keySet());
+		Collections.sort(gnds);
+		for (final String gnd : gnds) {
+			json.writeFieldName(gnd);            // "118540238" : 
 			json.writeStartObject();             // {
-			writeProperties(json, entry.getValue());
+			writeProperties(json, items.get(gnd), coordinates);
 			json.writeEndObject();               // }
 			json.writeRaw('\n');                 // add linebreak			
 		}
 	}
 	
 	/**
+	 * Writes each property as field and, for properties whose values have
+	 * {@link Labels}, a field per further language (e.g., "occupation_de").
+	 * Values without a label in that language are written as in the main
+	 * field, such that the arrays stay aligned. Main fields without any
+	 * value (the name of an item without a label in the first language) are
+	 * left out.
 	 * 
-	 * FIXME: add coordinates
+	 * The places of birth and death also get the coordinates of the first
+	 * of them that has some, as {"lat":..,"lon":..} in the field
+	 * "place_of_birth_location" and "place_of_death_location".
 	 * 
 	 * @param json
 	 * @param properties
+	 * @param coordinates
+	 *            of the places, or null to write none
 	 * @throws IOException
 	 */
-	private void writeProperties(final JsonGenerator json, final Map<String, List<PropertyValue>> properties) throws IOException {
+	static void writeProperties(final JsonGenerator json, final Map<String, List<PropertyValue>> properties, final Coordinates coordinates) throws IOException {
 		for (final Entry<String, List<PropertyValue>> entry : properties.entrySet()) {
-			json.writeFieldName(entry.getKey()); //   "occupations" :
 			final List<PropertyValue> values = entry.getValue();
-			if (values.size() == 1) {
-				json.writeString(values.get(0).toString());
-			} else {
-				json.writeStartArray();
-				for (final PropertyValue value : values) {
-					// FIXME: debug
-//					if ("Q1209498".equals(value.valueId)) {
-//						System.out.println(this.getClass().getSimpleName() + ": found value with id " + value.valueId);
-//					}
+			if (!isEmpty(values)) {
+				json.writeFieldName(entry.getKey()); //   "occupations" :
+				writeValues(json, values, -1);
+			}
+			// per-language fields
+			final Labels labels = getLabels(values);
+			if (labels != null) {
+				for (int language = 1; language < labels.size(); language++) {
+					json.writeFieldName(entry.getKey() + "_" + labels.getLanguage(language));
+					writeValues(json, values, language);
+				}
+			}
+		}
+		if (coordinates != null) {
+			for (final String field : LOCATIONS) {
+				final int slot = findLocation(properties.get(field), coordinates);
+				if (slot >= 0) {
+					json.writeObjectFieldStart(field + LOCATION_SUFFIX);
+					json.writeNumberField("lat", coordinates.getLatitude(slot));
+					json.writeNumberField("lon", coordinates.getLongitude(slot));
+					json.writeEndObject();
+				}
+			}
+		}
+	}
 
-					json.writeString(value.toString());
+	/**
+	 * Returns the slot (in the coordinates) of the first of the places that
+	 * has coordinates, or -1 if none has.
+	 *
+	 * @param places
+	 *            may be null
+	 * @param coordinates
+	 * @return
+	 */
+	static int findLocation(final List<PropertyValue> places, final Coordinates coordinates) {
+		if (places != null) {
+			for (final PropertyValue place : places) {
+				final int slot = coordinates.find(place.valueId);
+				if (slot >= 0) {
+					return slot;
 				}
-				json.writeEndArray();
 			}
-			
 		}
+		return -1;
+	}
+
+	/**
+	 * Writes the values (in the given language, or as they are if it is
+	 * negative) as string or, if there are several, as array.
+	 */
+	private static void writeValues(final JsonGenerator json, final List<PropertyValue> values, final int language) throws IOException {
+		if (values.size() == 1) {
+			json.writeString(getLabel(values.get(0), language));
+		} else {
+			json.writeStartArray();
+			for (final PropertyValue value : values) {
+				json.writeString(getLabel(value, language));
+			}
+			json.writeEndArray();
+		}
+	}
+
+	private static String getLabel(final PropertyValue value, final int language) {
+		if (language >= 0 && value.labels != null) {
+			final String label = value.labels.get(language);
+			if (label != null) {
+				return label;
+			}
+		}
+		return value.toString();
+	}
+
+	/**
+	 * Whether there are values but all of them are empty (unlike, e.g., an
+	 * item without sitelinks, which gets an empty array).
+	 */
+	private static boolean isEmpty(final List<PropertyValue> values) {
+		if (values.isEmpty()) {
+			return false;
+		}
+		for (final PropertyValue value : values) {
+			final String s = value.toString();
+			if (s != null && !s.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the labels of one of the values, or null if none has labels.
+	 */
+	private static Labels getLabels(final List<PropertyValue> values) {
+		for (final PropertyValue value : values) {
+			if (value.labels != null) {
+				return value.labels;
+			}
+		}
+		return null;
 	}
 	
 //
@@ -0,0 +1,157 @@
+package wikidata;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+
+import org.wikidata.wdtk.datamodel.interfaces.MonolingualTextValue;
+
+/**
+ * The labels of an entity in the configured languages (see
+ * {@link ExampleHelpers#LANGUAGES}), stored compactly: the language codes
+ * are a dictionary shared by all entities, the labels are concatenated into
+ * one string and an array holds where each of them ends. Label i is thus
+ * text[ends[i - 1], ends[i]), and an empty label means there is none in
+ * that language.
+ *
+ * Compared to a map per entity this needs three objects instead of one map
+ * entry, string, and array per language.
+ *
+ */
+public class Labels {
+
+	// language codes, shared by all labels extracted with them
+	private final String[] languages;
+	private final String text;
+	private final int[] ends;
+
+	private Labels(final String[] languages, final String text, final int[] ends) {
+		this.languages = languages;
+		this.text = text;
+		this.ends = ends;
+	}
+
+	/**
+	 * Extracts the labels of the given languages.
+	 *
+	 * @param languages
+	 *            the language codes; the array is kept and thus must not be
+	 *            changed afterwards
+	 * @param labels
+	 *            the labels of an entity, by language
+	 * @return the labels or null if the entity has none in the languages
+	 */
+	public static Labels of(final String[] languages, final Map<String, MonolingualTextValue> labels) {
+		final StringBuilder text = new StringBuilder();
+		final int[] ends = new int[languages.length];
+		for (int i = 0; i < languages.length; i++) {
+			final MonolingualTextValue label = labels.get(languages[i]);
+			if (label != null) {
+				text.append(label.getText());
+			}
+			ends[i] = text.length();
+		}
+		if (text.length() == 0) {
+			return null;
+		}
+		return new Labels(languages, text.toString(), ends);
+	}
+
+	/**
+	 * Number of languages.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return ends.length;
+	}
+
+	public String getLanguage(final int language) {
+		return languages[language];
+	}
+
+	/**
+	 * Returns the label in the language with the given index.
+	 *
+	 * @param language
+	 * @return the label or null if there is none in that language
+	 */
+	public String get(final int language) {
+		final int start = language == 0 ? 0 : ends[language - 1];
+		if (start == ends[language]) {
+			return null;
+		}
+		return text.substring(start, ends[language]);
+	}
+
+	/**
+	 * Estimated size in bytes (see {@link MemoryBudget}); the languages are
+	 * shared and thus not counted.
+	 *
+	 * @return
+	 */
+	public long estimateBytes() {
+		return 24 + MemoryBudget.string(text) + ((16 + 4L * ends.length + 7) & ~7L);
+	}
+
+	/**
+	 * Writes labels (or null) such that {@link #read(DataInput, String[])}
+	 * restores them.
+	 *
+	 * @param out
+	 * @param labels
+	 * @throws IOException
+	 */
+	static void write(final DataOutput out, final Labels labels) throws IOException {
+		if (labels == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(labels.ends.length);
+		out.writeUTF(labels.text);
+		for (final int end : labels.ends) {
+			out.writeInt(end);
+		}
+	}
+
+	/**
+	 * Reads labels written by {@link #write(DataOutput, Labels)}.
+	 *
+	 * @param in
+	 * @param languages
+	 *            the languages the labels were extracted with
+	 * @return
+	 * @throws IOException
+	 */
+	static Labels read(final DataInput in, final String[] languages) throws IOException {
+		final int size = in.readInt();
+		if (size < 0) {
+			return null;
+		}
+		if (size != languages.length) {
+			throw new IOException("labels in " + size + " languages instead of " + languages.length);
+		}
+		final String text = in.readUTF();
+		final int[] ends = new int[size];
+		for (int i = 0; i < size; i++) {
+			ends[i] = in.readInt();
+		}
+		return new Labels(languages, text, ends);
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder buf = new StringBuilder();
+		for (int i = 0; i < ends.length; i++) {
+			final String label = get(i);
+			if (label != null) {
+				if (buf.length() > 0) {
+					buf.append(", ");
+				}
+				buf.append(label).append("@").append(languages[i]);
+			}
+		}
+		return buf.toString();
+	}
+}
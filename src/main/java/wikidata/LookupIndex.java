@@ -0,0 +1,332 @@
+package wikidata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Memory-mapped index over the JSON file written by {@link JsonWriter} that
+ * finds the record of an item by its GND id or its Wikidata id without
+ * loading the file.
+ *
+ * The index is stored next to the JSON file (with suffix ".idx") and built
+ * once with {@link #build(File)}. It contains two tables, one per kind of
+ * key, with fixed-width entries sorted by key:
+ *
+ * <pre>
+ * header:  magic (int), version (int), #gnd entries (int), #wikidata entries (int)
+ * entry:   key offset (long), key length (int), record offset (long), record length (int)
+ * keys:    UTF-8 bytes of all keys
+ * </pre>
+ *
+ * A record is the byte range <code>"118540238":{...}</code> of the JSON file,
+ * such that several records can be combined into a valid JSON object.
+ *
+ * Instances are thread-safe.
+ *
+ */
+public class LookupIndex {
+
+	private static final Charset UTF8 = Charset.forName("utf-8");
+
+	private static final int MAGIC = 0x57444c49; // "WDLI"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int ENTRY_SIZE = 24;
+
+	private final MappedFile json;
+	private final MappedFile index;
+	private final int gndCount;
+	private final int wikidataCount;
+	private final long gndTable;
+	private final long wikidataTable;
+
+	/**
+	 * Opens the index of the given JSON file. The index must have been built
+	 * before with {@link #build(File)}.
+	 *
+	 * @param jsonFile
+	 * @throws IOException
+	 */
+	public LookupIndex(final File jsonFile) throws IOException {
+		this.json = new MappedFile(jsonFile);
+		this.index = new MappedFile(getIndexFile(jsonFile));
+		if (index.getInt(0) != MAGIC || index.getInt(4) != VERSION) {
+			throw new IOException("not an index file (or wrong version): " + getIndexFile(jsonFile));
+		}
+		this.gndCount = index.getInt(8);
+		this.wikidataCount = index.getInt(12);
+		this.gndTable = HEADER_SIZE;
+		this.wikidataTable = HEADER_SIZE + (long) gndCount * ENTRY_SIZE;
+	}
+
+	public static File getIndexFile(final File jsonFile) {
+		return new File(jsonFile.getPath() + ".idx");
+	}
+
+	/**
+	 * Builds the index unless an index newer than the JSON file exists.
+	 *
+	 * @param jsonFile
+	 * @throws IOException
+	 */
+	public static void buildIfMissing(final File jsonFile) throws IOException {
+		final File indexFile = getIndexFile(jsonFile);
+		if (!indexFile.exists() || indexFile.lastModified() < jsonFile.lastModified()) {
+			build(jsonFile);
+		}
+	}
+
+	/**
+	 * Scans the JSON file once and writes the index.
+	 *
+	 * @param jsonFile
+	 * @throws IOException
+	 */
+	public static void build(final File jsonFile) throws IOException {
+		final List<Entry> gnds = new ArrayList<Entry>();
+		final List<Entry> wikidataIds = new ArrayList<Entry>();
+
+		final InputStream in = new BufferedInputStream(new FileInputStream(jsonFile), 1 << 16);
+		final JsonParser parser = new JsonFactory().createParser(in);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("expected a JSON object in " + jsonFile);
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String gnd = parser.getCurrentName();
+				final long start = parser.getTokenLocation().getByteOffset();
+				parser.nextToken();
+				String wikidataId = null;
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					final String field = parser.getCurrentName();
+					final JsonToken value = parser.nextToken();
+					if ("id".equals(field) && value == JsonToken.VALUE_STRING) {
+						wikidataId = parser.getText();
+					} else {
+						parser.skipChildren();
+					}
+				}
+				final long end = parser.getCurrentLocation().getByteOffset();
+				final int length = (int) (end - start);
+				gnds.add(new Entry(gnd, start, length));
+				if (wikidataId != null) {
+					wikidataIds.add(new Entry(wikidataId, start, length));
+				}
+			}
+		} finally {
+			parser.close();
+		}
+
+		write(getIndexFile(jsonFile), gnds, wikidataIds);
+	}
+
+	private static void write(final File indexFile, final List<Entry> gnds, final List<Entry> wikidataIds) throws IOException {
+		Collections.sort(gnds, Entry.BY_KEY);
+		Collections.sort(wikidataIds, Entry.BY_KEY);
+
+		// write to a temporary file first such that a running server never sees a partial index
+		final File tmp = new File(indexFile.getPath() + ".tmp");
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(gnds.size());
+			out.writeInt(wikidataIds.size());
+			long keyOffset = HEADER_SIZE + (long) (gnds.size() + wikidataIds.size()) * ENTRY_SIZE;
+			keyOffset = writeEntries(out, gnds, keyOffset);
+			writeEntries(out, wikidataIds, keyOffset);
+			for (final Entry entry : gnds) {
+				out.write(entry.key);
+			}
+			for (final Entry entry : wikidataIds) {
+				out.write(entry.key);
+			}
+		} finally {
+			out.close();
+		}
+		if (indexFile.exists() && !indexFile.delete()) {
+			throw new IOException("could not replace " + indexFile);
+		}
+		if (!tmp.renameTo(indexFile)) {
+			throw new IOException("could not rename " + tmp + " to " + indexFile);
+		}
+	}
+
+	private static long writeEntries(final DataOutputStream out, final List<Entry> entries, long keyOffset) throws IOException {
+		for (final Entry entry : entries) {
+			out.writeLong(keyOffset);
+			out.writeInt(entry.key.length);
+			out.writeLong(entry.offset);
+			out.writeInt(entry.length);
+			keyOffset += entry.key.length;
+		}
+		return keyOffset;
+	}
+
+	/**
+	 * Returns the record of the item with the given GND id, or null.
+	 *
+	 * @param gnd
+	 * @return
+	 */
+	public byte[] getByGnd(final String gnd) {
+		final List<byte[]> records = find(gndTable, gndCount, gnd);
+		return records.isEmpty() ? null : records.get(0);
+	}
+
+	/**
+	 * Returns the records of all items with the given Wikidata id (an item
+	 * with several GND ids has several records).
+	 *
+	 * @param wikidataId
+	 * @return
+	 */
+	public List<byte[]> getByWikidataId(final String wikidataId) {
+		return find(wikidataTable, wikidataCount, wikidataId);
+	}
+
+	public int getGndCount() {
+		return gndCount;
+	}
+
+	private List<byte[]> find(final long table, final int count, final String key) {
+		final byte[] k = key.getBytes(UTF8);
+		// binary search for the first entry with the key
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (compare(table, mid, k) < 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		final List<byte[]> result = new ArrayList<byte[]>(1);
+		for (int i = low; i < count && compare(table, i, k) == 0; i++) {
+			final long entry = table + (long) i * ENTRY_SIZE;
+			result.add(json.getBytes(index.getLong(entry + 12), index.getInt(entry + 20)));
+		}
+		return result;
+	}
+
+	/**
+	 * Compares the key of the i-th entry of the table with the given key.
+	 */
+	private int compare(final long table, final int i, final byte[] key) {
+		final long entry = table + (long) i * ENTRY_SIZE;
+		final long keyOffset = index.getLong(entry);
+		final int keyLength = index.getInt(entry + 8);
+		final int n = Math.min(keyLength, key.length);
+		for (int j = 0; j < n; j++) {
+			final int c = (index.getByte(keyOffset + j) & 0xff) - (key[j] & 0xff);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return keyLength - key.length;
+	}
+
+	private static class Entry {
+		private static final Comparator<Entry> BY_KEY = new Comparator<Entry>() {
+			public int compare(final Entry o1, final Entry o2) {
+				final int n = Math.min(o1.key.length, o2.key.length);
+				for (int i = 0; i < n; i++) {
+					final int c = (o1.key[i] & 0xff) - (o2.key[i] & 0xff);
+					if (c != 0) {
+						return c;
+					}
+				}
+				return o1.key.length - o2.key.length;
+			}
+		};
+
+		private final byte[] key;
+		private final long offset;
+		private final int length;
+
+		public Entry(final String key, final long offset, final int length) {
+			this.key = key.getBytes(UTF8);
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * A read-only memory-mapped file of arbitrary size, mapped in segments
+	 * since a single mapping can not exceed 2GB.
+	 */
+	static class MappedFile {
+		private static final int SEGMENT_BITS = 30;
+		private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+		private final MappedByteBuffer[] segments;
+
+		public MappedFile(final File file) throws IOException {
+			final RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				final FileChannel channel = raf.getChannel();
+				final long size = channel.size();
+				this.segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_BITS)];
+				for (int i = 0; i < segments.length; i++) {
+					final long start = (long) i << SEGMENT_BITS;
+					segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+				}
+			} finally {
+				// the mappings stay valid after closing the channel
+				raf.close();
+			}
+		}
+
+		public byte getByte(final long pos) {
+			return segments[(int) (pos >>> SEGMENT_BITS)].get((int) (pos & (SEGMENT_SIZE - 1)));
+		}
+
+		public int getInt(final long pos) {
+			final int segment = (int) (pos >>> SEGMENT_BITS);
+			final int offset = (int) (pos & (SEGMENT_SIZE - 1));
+			if (offset + 4 <= segments[segment].limit()) {
+				return segments[segment].getInt(offset);
+			}
+			return ((getByte(pos) & 0xff) << 24) | ((getByte(pos + 1) & 0xff) << 16) | ((getByte(pos + 2) & 0xff) << 8) | (getByte(pos + 3) & 0xff);
+		}
+
+		public long getLong(final long pos) {
+			return ((long) getInt(pos) << 32) | (getInt(pos + 4) & 0xffffffffL);
+		}
+
+		public byte[] getBytes(final long pos, final int length) {
+			final byte[] bytes = new byte[length];
+			for (int i = 0; i < length; ) {
+				final long p = pos + i;
+				final MappedByteBuffer segment = segments[(int) (p >>> SEGMENT_BITS)];
+				final int offset = (int) (p & (SEGMENT_SIZE - 1));
+				final int n = Math.min(length - i, segment.limit() - offset);
+				// duplicate() since the position of a shared buffer is not thread-safe
+				final java.nio.ByteBuffer view = segment.duplicate();
+				view.position(offset);
+				view.get(bytes, i, n);
+				i += n;
+			}
+			return bytes;
+		}
+	}
+}
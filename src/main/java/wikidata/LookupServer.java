@@ -0,0 +1,275 @@
+package wikidata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP server that answers lookups of items extracted by
+ * {@link WriterExtractor} by GND id or Wikidata id. The records are read
+ * from the JSON file via a memory-mapped {@link LookupIndex}, so startup does
+ * not depend on the size of the file (once the index exists). Hot records
+ * are kept in an LRU cache; misses are not cached, such that lookups of
+ * unknown keys (which cost one binary search in the index) can not evict
+ * them.
+ *
+ * <pre>
+ * GET /gnd/118540238               -&gt; {"118540238":{...}}
+ * GET /wikidata/Q5879              -&gt; {"118540238":{...}}
+ * GET /lookup?gnd=...&amp;wikidata=... -&gt; all found records in one object
+ * </pre>
+ *
+ * A record that is found by several keys of a lookup is returned once.
+ * Malformed requests are answered with 400.
+ *
+ * Connections are kept alive by the JDK's HTTP server, with TCP_NODELAY.
+ *
+ */
+public class LookupServer {
+
+	private static final Charset UTF8 = Charset.forName("utf-8");
+	private static final byte[] EMPTY_OBJECT = { '{', '}' };
+
+	static {
+		// the JDK's server sends headers and body in separate writes; with
+		// Nagle's algorithm and delayed ACKs every response on a kept-alive
+		// connection is held back for ~40 ms (read once, when the first
+		// server is created)
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+	}
+
+	private final LookupIndex index;
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	// GND id or Wikidata id -> records
+	private final Map<String, List<byte[]>> cache;
+
+	/**
+	 *
+	 * @param index
+	 * @param port
+	 *            the port to listen on (localhost only)
+	 * @param threads
+	 *            number of threads answering requests
+	 * @param cacheSize
+	 *            number of keys whose records are cached (keys without
+	 *            records are not)
+	 * @throws IOException
+	 */
+	public LookupServer(final LookupIndex index, final int port, final int threads, final int cacheSize) throws IOException {
+		this.index = index;
+		this.cache = Collections.synchronizedMap(new LinkedHashMap<String, List<byte[]>>(cacheSize * 4 / 3 + 1, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, List<byte[]>> eldest) {
+				return size() > cacheSize;
+			}
+		});
+		this.server = HttpServer.create(new InetSocketAddress("localhost", port), 128);
+		this.executor = Executors.newFixedThreadPool(threads);
+		this.server.setExecutor(executor);
+		this.server.createContext("/gnd/", new LookupHandler() {
+			@Override
+			protected List<byte[]> lookup(final HttpExchange exchange) throws UnsupportedEncodingException {
+				final String gnd = decode(exchange.getRequestURI().getRawPath().substring("/gnd/".length()));
+				return LookupServer.this.lookup("gnd:", gnd);
+			}
+		});
+		this.server.createContext("/wikidata/", new LookupHandler() {
+			@Override
+			protected List<byte[]> lookup(final HttpExchange exchange) throws UnsupportedEncodingException {
+				final String wikidataId = decode(exchange.getRequestURI().getRawPath().substring("/wikidata/".length()));
+				return LookupServer.this.lookup("wikidata:", wikidataId);
+			}
+		});
+		this.server.createContext("/lookup", new LookupHandler() {
+			@Override
+			protected List<byte[]> lookup(final HttpExchange exchange) throws UnsupportedEncodingException {
+				// GND id -> record, such that records found by several keys are returned once
+				final Map<String, byte[]> records = new LinkedHashMap<String, byte[]>();
+				final String query = exchange.getRequestURI().getRawQuery();
+				if (query != null) {
+					for (final String param : query.split("&")) {
+						final int eq = param.indexOf('=');
+						if (eq > 0) {
+							final String name = param.substring(0, eq);
+							if ("gnd".equals(name) || "wikidata".equals(name)) {
+								// values can also be comma-separated
+								for (final String value : decode(param.substring(eq + 1)).split(",")) {
+									for (final byte[] record : LookupServer.this.lookup(name + ":", value.trim())) {
+										records.put(getKey(record), record);
+									}
+								}
+							}
+						}
+					}
+				}
+				return new ArrayList<byte[]>(records.values());
+			}
+		});
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdown();
+	}
+
+	/**
+	 * The port the server listens on (useful if it was created with port 0).
+	 *
+	 * @return
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Returns the records for the key, from the cache if possible. Only
+	 * found records are cached.
+	 *
+	 * @param kind
+	 *            "gnd:" or "wikidata:"
+	 * @param key
+	 * @return
+	 */
+	List<byte[]> lookup(final String kind, final String key) {
+		final String cacheKey = kind + key;
+		List<byte[]> records = cache.get(cacheKey);
+		if (records == null) {
+			if ("gnd:".equals(kind)) {
+				final byte[] record = index.getByGnd(key);
+				records = record == null ? Collections.<byte[]>emptyList() : Collections.singletonList(record);
+			} else {
+				records = index.getByWikidataId(key);
+			}
+			if (!records.isEmpty()) {
+				cache.put(cacheKey, records);
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Whether the records for the key are cached.
+	 */
+	boolean isCached(final String kind, final String key) {
+		return cache.containsKey(kind + key);
+	}
+
+	/**
+	 * Returns the GND id a record starts with (see {@link LookupIndex}).
+	 */
+	static String getKey(final byte[] record) {
+		int end = 1;
+		while (end < record.length && record[end] != '"') {
+			end++;
+		}
+		return new String(record, 1, end - 1, UTF8);
+	}
+
+	/**
+	 * Writes the records as one JSON object; 404 if there is none.
+	 */
+	private static void respond(final HttpExchange exchange, final List<byte[]> records) throws IOException {
+		final byte[] body;
+		if (records.isEmpty()) {
+			body = EMPTY_OBJECT;
+		} else {
+			final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			buf.write('{');
+			for (int i = 0; i < records.size(); i++) {
+				if (i > 0) {
+					buf.write(',');
+				}
+				buf.write(records.get(i));
+			}
+			buf.write('}');
+			body = buf.toByteArray();
+		}
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(records.isEmpty() ? 404 : 200, body.length);
+		final OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	/**
+	 * Answers 400 for malformed requests.
+	 */
+	private static void respondBadRequest(final HttpExchange exchange, final String message) throws IOException {
+		final byte[] body = message.getBytes(UTF8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(400, body.length);
+		final OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if s contains a malformed escape
+	 */
+	private static String decode(final String s) throws UnsupportedEncodingException {
+		return URLDecoder.decode(s, "utf-8");
+	}
+
+	/**
+	 * Responds with the records a request looks up, or 400 if it is
+	 * malformed.
+	 */
+	private static abstract class LookupHandler implements HttpHandler {
+		public void handle(final HttpExchange exchange) throws IOException {
+			final List<byte[]> records;
+			try {
+				records = lookup(exchange);
+			} catch (final IllegalArgumentException e) {
+				respondBadRequest(exchange, "malformed request: " + e.getMessage());
+				return;
+			}
+			respond(exchange, records);
+		}
+
+		protected abstract List<byte[]> lookup(final HttpExchange exchange) throws UnsupportedEncodingException;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("usage: LookupServer GNDITEMS.json [PORT] [THREADS] [CACHESIZE]");
+			System.exit(1);
+		}
+		final File jsonFile = new File(args[0]);
+		final int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+		final int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		final int cacheSize = args.length > 3 ? Integer.parseInt(args[3]) : 100000;
+
+		LookupIndex.buildIfMissing(jsonFile);
+		final LookupIndex index = new LookupIndex(jsonFile);
+		final LookupServer server = new LookupServer(index, port, threads, cacheSize);
+		server.start();
+		System.out.println("serving " + index.getGndCount() + " items on http://localhost:" + port + "/");
+	}
+}
@@ -0,0 +1,265 @@
+package wikidata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.wikidata.wdtk.datamodel.interfaces.EntityDocumentProcessor;
+import org.wikidata.wdtk.datamodel.interfaces.ItemDocument;
+import org.wikidata.wdtk.datamodel.interfaces.PropertyDocument;
+
+/**
+ * Keeps track of the estimated size of the data the collectors hold while a
+ * dump is processed, such that a run that would not fit into the heap stops
+ * early (or at least warns) instead of running out of memory hours later.
+ *
+ * The collectors maintain an {@link Estimate} per data structure, which
+ * they update whenever they add an entry; checking the budget thus only
+ * sums up a few numbers. The sizes assume a 64 bit JVM with compressed
+ * pointers and, from Java 9 on, compact strings (Latin-1 strings take a
+ * byte per char); they ignore sharing, except where the collectors know
+ * about it.
+ *
+ */
+public class MemoryBudget {
+
+	/*
+	 * estimated sizes of objects, in bytes
+	 */
+	public static final int PROPERTY_VALUE = 24;
+	public static final int DATE_VALUE = 32;
+	public static final int HASH_MAP = 48;
+	// node and slot in the table
+	public static final int HASH_MAP_ENTRY = 40;
+	public static final int LINKED_HASH_MAP_ENTRY = 48;
+	public static final int LINKED_LIST = 32;
+	public static final int LINKED_LIST_NODE = 24;
+	public static final int ARRAY_LIST = 24;
+	public static final int SINGLETON_LIST = 16;
+
+	// number of entities between two checks of the budget
+	private static final int CHECK_INTERVAL = 10000;
+	// number of entities between two reports
+	private static final int REPORT_INTERVAL = 1000000;
+	// fraction of the budget above which we warn
+	private static final double WARN_FRACTION = 0.8;
+	// whether strings store Latin-1 text in a byte per char (Java 9+)
+	private static final boolean COMPACT_STRINGS = !System.getProperty("java.specification.version").startsWith("1.");
+
+	private final List<Estimate> estimates = new ArrayList<Estimate>();
+	private final long budget;
+	private final boolean failIfExceeded;
+	private boolean warnedClose = false;
+	private boolean warnedExceeded = false;
+
+	/**
+	 *
+	 * @param budget
+	 *            number of bytes the collected data may take
+	 * @param failIfExceeded
+	 *            whether to stop processing (by throwing an
+	 *            {@link IllegalStateException}) when the budget is exceeded,
+	 *            or only warn
+	 */
+	public MemoryBudget(final long budget, final boolean failIfExceeded) {
+		this.budget = budget;
+		this.failIfExceeded = failIfExceeded;
+	}
+
+	public void register(final Estimate... estimates) {
+		register(Arrays.asList(estimates));
+	}
+
+	public synchronized void register(final Collection<Estimate> estimates) {
+		this.estimates.addAll(estimates);
+	}
+
+	public synchronized long getEstimatedBytes() {
+		long bytes = 0;
+		for (final Estimate estimate : estimates) {
+			bytes += estimate.getBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Compares the estimated size with the budget.
+	 *
+	 * @throws IllegalStateException
+	 *             if the budget is exceeded and we shall fail
+	 */
+	public synchronized void check() {
+		final long bytes = getEstimatedBytes();
+		if (bytes > budget) {
+			if (failIfExceeded) {
+				throw new IllegalStateException("memory budget of " + mb(budget) + " MB exceeded: " + this);
+			}
+			if (!warnedExceeded) {
+				System.err.println("WARNING: memory budget of " + mb(budget) + " MB exceeded: " + this);
+				warnedExceeded = true;
+			}
+		} else if (bytes > budget * WARN_FRACTION && !warnedClose) {
+			System.err.println("WARNING: close to the memory budget of " + mb(budget) + " MB: " + this);
+			warnedClose = true;
+		}
+	}
+
+	/**
+	 * Wraps a processor such that the budget is checked (and reported) while
+	 * it processes entities.
+	 *
+	 * @param processor
+	 * @return
+	 */
+	public EntityDocumentProcessor monitor(final EntityDocumentProcessor processor) {
+		return new EntityDocumentProcessor() {
+			// the processor may be called by several threads
+			private final AtomicLong entities = new AtomicLong();
+
+			public void processItemDocument(final ItemDocument itemDocument) {
+				processor.processItemDocument(itemDocument);
+				count();
+			}
+
+			public void processPropertyDocument(final PropertyDocument propertyDocument) {
+				processor.processPropertyDocument(propertyDocument);
+				count();
+			}
+
+			private void count() {
+				final long n = entities.incrementAndGet();
+				if (n % CHECK_INTERVAL == 0) {
+					check();
+				}
+				if (n % REPORT_INTERVAL == 0) {
+					System.out.println(MemoryBudget.this);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Lists the estimates, their total, and the heap actually in use.
+	 */
+	@Override
+	public synchronized String toString() {
+		final StringBuilder buf = new StringBuilder("memory:");
+		for (final Estimate estimate : estimates) {
+			buf.append(" ").append(estimate).append(",");
+		}
+		final Runtime runtime = Runtime.getRuntime();
+		buf.append(" total ~").append(mb(getEstimatedBytes())).append(" MB of ").append(mb(budget)).append(" MB budget");
+		buf.append(" (heap: ").append(mb(runtime.totalMemory() - runtime.freeMemory())).append(" MB used of ").append(mb(runtime.maxMemory())).append(" MB)");
+		return buf.toString();
+	}
+
+	private static long mb(final long bytes) {
+		return bytes >> 20;
+	}
+
+	/**
+	 * Estimated size of a string (its array of chars included). Empty
+	 * strings are assumed to be shared.
+	 *
+	 * @param s
+	 * @return
+	 */
+	public static long string(final CharSequence s) {
+		if (s == null || s.length() == 0) {
+			return 0;
+		}
+		return 24 + align(16 + (isLatin1(s) ? 1L : 2L) * s.length());
+	}
+
+	private static boolean isLatin1(final CharSequence s) {
+		if (!COMPACT_STRINGS) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) > 0xff) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Estimated size of a list (without its elements).
+	 *
+	 * @param list
+	 * @return
+	 */
+	public static long list(final List<?> list) {
+		if (list instanceof LinkedList) {
+			return LINKED_LIST + (long) LINKED_LIST_NODE * list.size();
+		}
+		if (list instanceof ArrayList) {
+			return ARRAY_LIST + align(16 + 4L * list.size());
+		}
+		return SINGLETON_LIST;
+	}
+
+	/**
+	 * Estimates the size of a map of strings by walking it.
+	 *
+	 * @param name
+	 * @param map
+	 * @return
+	 */
+	public static Estimate estimate(final String name, final Map<String, String> map) {
+		final Estimate estimate = new Estimate(name);
+		for (final Entry<String, String> entry : map.entrySet()) {
+			estimate.add(1, HASH_MAP_ENTRY + string(entry.getKey()) + string(entry.getValue()));
+		}
+		return estimate;
+	}
+
+	private static long align(final long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+
+	/**
+	 * Number of entries and estimated size of one data structure. Updated
+	 * by the threads that fill the structure, read by the one checking the
+	 * budget.
+	 */
+	public static class Estimate {
+		private final String name;
+		private final LongAdder entries = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+
+		public Estimate(final String name) {
+			this.name = name;
+		}
+
+		/**
+		 * May be called by several threads at once.
+		 *
+		 * @param entries
+		 * @param bytes
+		 */
+		public void add(final long entries, final long bytes) {
+			this.entries.add(entries);
+			this.bytes.add(bytes);
+		}
+
+		public long getEntries() {
+			return entries.sum();
+		}
+
+		public long getBytes() {
+			return bytes.sum();
+		}
+
+		@Override
+		public String toString() {
+			return name + " " + getEntries() + " entries ~" + mb(getBytes()) + " MB";
+		}
+	}
+}
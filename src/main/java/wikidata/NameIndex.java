@@ -0,0 +1,474 @@
+package wikidata;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compact, memory-mapped dictionary from the names (labels and aliases) of
+ * humans to their Wikidata ids, built from the file written by
+ * {@link Downloader}. Supports exact, case-insensitive, and prefix lookup.
+ *
+ * The names are sorted by their case-folded form (and then by themselves)
+ * and stored front-coded in blocks of {@link #BLOCK_SIZE} names: the first
+ * name of a block is stored completely, every other name as the length of
+ * the prefix it shares with its predecessor plus the remaining bytes. Each
+ * name is followed by the numeric parts of its Wikidata ids, delta-coded.
+ * All numbers are variable-length encoded.
+ *
+ * <pre>
+ * header:  magic (int), version (int), #names (int), #blocks (int)
+ * blocks:  offset of each block (long)
+ * data:    blocks of names and ids
+ * </pre>
+ *
+ * A lookup is a binary search over the first names of the blocks followed
+ * by a scan of (usually) one block.
+ *
+ */
+public class NameIndex {
+
+	private static final Charset UTF8 = Charset.forName("utf-8");
+
+	private static final int MAGIC = 0x57444e49; // "WDNI"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int BLOCK_SIZE = 32;
+
+	/**
+	 * Sorts names by their case-folded form, then by themselves. Thereby all
+	 * spellings of a name are adjacent and case-insensitive prefixes select
+	 * a contiguous range.
+	 */
+	private static final Comparator<String> NAME_ORDER = new Comparator<String>() {
+		public int compare(final String o1, final String o2) {
+			final int c = fold(o1).compareTo(fold(o2));
+			if (c != 0) {
+				return c;
+			}
+			return o1.compareTo(o2);
+		}
+	};
+
+	private final LookupIndex.MappedFile file;
+	private final int nameCount;
+	private final int blockCount;
+	// folded first name of each block, for the binary search
+	private final String[] blockHeads;
+
+	public NameIndex(final File indexFile) throws IOException {
+		this.file = new LookupIndex.MappedFile(indexFile);
+		if (file.getInt(0) != MAGIC || file.getInt(4) != VERSION) {
+			throw new IOException("not a name index file (or wrong version): " + indexFile);
+		}
+		this.nameCount = file.getInt(8);
+		this.blockCount = file.getInt(12);
+		this.blockHeads = new String[blockCount];
+	}
+
+	public int getNameCount() {
+		return nameCount;
+	}
+
+	/**
+	 * Returns the ids of all humans with exactly this label or alias.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public List<String> exact(final String name) {
+		final List<String> result = new ArrayList<String>();
+		final String folded = fold(name);
+		final Cursor cursor = seek(folded);
+		while (cursor.next()) {
+			final int c = fold(cursor.name).compareTo(folded);
+			if (c > 0) {
+				break;
+			}
+			if (c == 0 && cursor.name.equals(name)) {
+				cursor.addIds(result);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the ids of all humans with this label or alias, ignoring case.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public List<String> caseFolded(final String name) {
+		final List<String> result = new ArrayList<String>();
+		final String folded = fold(name);
+		final Cursor cursor = seek(folded);
+		while (cursor.next()) {
+			final int c = fold(cursor.name).compareTo(folded);
+			if (c > 0) {
+				break;
+			}
+			if (c == 0) {
+				cursor.addIds(result);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the names (and their ids) that start with the prefix, ignoring
+	 * case, in sorted order.
+	 *
+	 * @param prefix
+	 * @param limit
+	 *            maximal number of names to return
+	 * @return
+	 */
+	public List<Match> prefix(final String prefix, final int limit) {
+		final List<Match> result = new ArrayList<Match>();
+		final String folded = fold(prefix);
+		final Cursor cursor = seek(folded);
+		while (result.size() < limit && cursor.next()) {
+			final String f = fold(cursor.name);
+			if (f.startsWith(folded)) {
+				final List<String> ids = new ArrayList<String>(1);
+				cursor.addIds(ids);
+				result.add(new Match(cursor.name, ids));
+			} else if (f.compareTo(folded) > 0) {
+				break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Positions a cursor before the first name whose folded form could be
+	 * equal to or larger than the given folded name.
+	 */
+	private Cursor seek(final String folded) {
+		// find the last block whose first name is smaller than the name
+		int low = 0;
+		int high = blockCount - 1;
+		int block = 0;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			if (getBlockHead(mid).compareTo(folded) < 0) {
+				block = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return new Cursor(block);
+	}
+
+	private String getBlockHead(final int block) {
+		String head = blockHeads[block];
+		if (head == null) {
+			final Cursor cursor = new Cursor(block);
+			cursor.next();
+			head = fold(cursor.name);
+			// benign race: all threads compute the same value
+			blockHeads[block] = head;
+		}
+		return head;
+	}
+
+	private static String fold(final String name) {
+		return name.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Iterates over the names starting at the beginning of a block.
+	 */
+	private class Cursor {
+		private int index;
+		private long pos;
+		private byte[] bytes = new byte[64];
+		private int length = 0;
+		private String name;
+		private long idsPos;
+		private int idCount;
+
+		public Cursor(final int block) {
+			this.index = block * BLOCK_SIZE;
+			// an index without names has no blocks
+			this.pos = block < blockCount ? file.getLong(HEADER_SIZE + 8L * block) : HEADER_SIZE;
+		}
+
+		/**
+		 * Moves to the next name and skips its ids (which can be read with
+		 * {@link #addIds(List)}).
+		 *
+		 * @return false if there are no more names
+		 */
+		public boolean next() {
+			if (index >= nameCount) {
+				return false;
+			}
+			final int shared = index % BLOCK_SIZE == 0 ? 0 : readVInt();
+			final int suffix = readVInt();
+			if (shared + suffix > bytes.length) {
+				final byte[] larger = new byte[Math.max(shared + suffix, bytes.length * 2)];
+				System.arraycopy(bytes, 0, larger, 0, shared);
+				bytes = larger;
+			}
+			for (int i = 0; i < suffix; i++) {
+				bytes[shared + i] = file.getByte(pos++);
+			}
+			length = shared + suffix;
+			name = new String(bytes, 0, length, UTF8);
+			idCount = readVInt();
+			idsPos = pos;
+			for (int i = 0; i < idCount; i++) {
+				readVInt();
+			}
+			index++;
+			return true;
+		}
+
+		public void addIds(final List<String> ids) {
+			final long p = pos;
+			pos = idsPos;
+			int id = 0;
+			for (int i = 0; i < idCount; i++) {
+				id += readVInt();
+				ids.add("Q" + id);
+			}
+			pos = p;
+		}
+
+		private int readVInt() {
+			int value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = file.getByte(pos++);
+				value |= (b & 0x7f) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+	}
+
+	/**
+	 * A name found by a prefix lookup.
+	 */
+	public static class Match {
+		public final String name;
+		public final List<String> ids;
+
+		public Match(final String name, final List<String> ids) {
+			this.name = name;
+			this.ids = ids;
+		}
+
+		@Override
+		public String toString() {
+			return name + " " + ids;
+		}
+	}
+
+	/**
+	 * Reads the TSV written by {@link Downloader} ("Q-id", "label",
+	 * "alias"...) and writes the index.
+	 *
+	 * @param tsvFile
+	 * @param indexFile
+	 * @throws IOException
+	 */
+	public static void build(final File tsvFile, final File indexFile) throws IOException {
+		final List<Posting> postings = new ArrayList<Posting>();
+		final BufferedReader buf = new BufferedReader(new InputStreamReader(new FileInputStream(tsvFile), "utf-8"));
+		String line;
+		while ((line = buf.readLine()) != null) {
+			final String[] parts = line.split("\t");
+			if (parts.length < 2) {
+				continue;
+			}
+			final String qid = csvUnescape(parts[0]);
+			if (!qid.startsWith("Q")) {
+				continue;
+			}
+			final int id = Integer.parseInt(qid.substring(1));
+			for (int i = 1; i < parts.length; i++) {
+				final String name = csvUnescape(parts[i]);
+				if (!name.isEmpty()) {
+					postings.add(new Posting(name, id));
+				}
+			}
+		}
+		buf.close();
+
+		Collections.sort(postings);
+		write(postings, indexFile);
+	}
+
+	private static void write(final List<Posting> postings, final File indexFile) throws IOException {
+		// count distinct names
+		int nameCount = 0;
+		for (int i = 0; i < postings.size(); i++) {
+			if (i == 0 || !postings.get(i).name.equals(postings.get(i - 1).name)) {
+				nameCount++;
+			}
+		}
+		final int blockCount = (nameCount + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+		final ByteArrayOutputStream block = new ByteArrayOutputStream();
+		final long[] blockOffsets = new long[blockCount];
+		final File data = new File(indexFile.getPath() + ".tmp");
+		final BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(data), 1 << 16);
+		long offset = HEADER_SIZE + 8L * blockCount;
+		try {
+			byte[] previous = new byte[0];
+			int name = 0;
+			int i = 0;
+			while (i < postings.size()) {
+				final String current = postings.get(i).name;
+				final byte[] bytes = current.getBytes(UTF8);
+				if (name % BLOCK_SIZE == 0) {
+					blockOffsets[name / BLOCK_SIZE] = offset;
+					writeVInt(block, bytes.length);
+					block.write(bytes);
+				} else {
+					int shared = 0;
+					while (shared < previous.length && shared < bytes.length && previous[shared] == bytes[shared]) {
+						shared++;
+					}
+					writeVInt(block, shared);
+					writeVInt(block, bytes.length - shared);
+					block.write(bytes, shared, bytes.length - shared);
+				}
+				// ids of this name (sorted, without duplicates)
+				int j = i;
+				while (j < postings.size() && postings.get(j).name.equals(current)) {
+					j++;
+				}
+				final List<Integer> ids = new ArrayList<Integer>(j - i);
+				for (int k = i; k < j; k++) {
+					if (ids.isEmpty() || ids.get(ids.size() - 1) != postings.get(k).id) {
+						ids.add(postings.get(k).id);
+					}
+				}
+				writeVInt(block, ids.size());
+				int last = 0;
+				for (final int id : ids) {
+					writeVInt(block, id - last);
+					last = id;
+				}
+				offset += block.size();
+				block.writeTo(out);
+				block.reset();
+
+				previous = bytes;
+				name++;
+				i = j;
+			}
+		} finally {
+			out.close();
+		}
+
+		// header and block offsets, then the data
+		final DataOutputStream index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), 1 << 16));
+		try {
+			index.writeInt(MAGIC);
+			index.writeInt(VERSION);
+			index.writeInt(nameCount);
+			index.writeInt(blockCount);
+			for (final long blockOffset : blockOffsets) {
+				index.writeLong(blockOffset);
+			}
+			final FileInputStream in = new FileInputStream(data);
+			try {
+				final byte[] buf = new byte[1 << 16];
+				int n;
+				while ((n = in.read(buf)) > 0) {
+					index.write(buf, 0, n);
+				}
+			} finally {
+				in.close();
+			}
+		} finally {
+			index.close();
+		}
+		if (!data.delete()) {
+			System.err.println("could not delete " + data);
+		}
+	}
+
+	private static void writeVInt(final ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7f) != 0) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * Reverses Downloader's csvEscape: removes the enclosing quotation marks
+	 * and un-doubles the inner ones.
+	 */
+	private static String csvUnescape(final String s) {
+		if (s.length() >= 2 && s.charAt(0) == '"' && s.charAt(s.length() - 1) == '"') {
+			return s.substring(1, s.length() - 1).replace("\"\"", "\"");
+		}
+		return s;
+	}
+
+	private static class Posting implements Comparable<Posting> {
+		private final String name;
+		private final int id;
+
+		public Posting(final String name, final int id) {
+			this.name = name;
+			this.id = id;
+		}
+
+		public int compareTo(final Posting o) {
+			final int c = NAME_ORDER.compare(name, o.name);
+			if (c != 0) {
+				return c;
+			}
+			return id < o.id ? -1 : (id == o.id ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Builds the index (if it does not exist) and looks up the given names.
+	 * A name ending with "*" is looked up as prefix.
+	 *
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("usage: NameIndex wikidata_humans_walias.tsv INDEXFILE [NAME|PREFIX*]...");
+			System.exit(1);
+		}
+		final File indexFile = new File(args[1]);
+		if (!indexFile.exists()) {
+			build(new File(args[0]), indexFile);
+		}
+		final NameIndex index = new NameIndex(indexFile);
+		System.out.println(index.getNameCount() + " names in " + indexFile);
+		for (int i = 2; i < args.length; i++) {
+			final String query = args[i];
+			if (query.endsWith("*")) {
+				System.out.println(query + "\t" + index.prefix(query.substring(0, query.length() - 1), 20));
+			} else {
+				System.out.println(query + "\texact: " + index.exact(query) + "\tcase-folded: " + index.caseFolded(query));
+			}
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package wikidata;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.wikidata.wdtk.datamodel.helpers.Datamodel;
+import org.wikidata.wdtk.datamodel.helpers.DatamodelMapper;
+import org.wikidata.wdtk.datamodel.implementation.EntityDocumentImpl;
+import org.wikidata.wdtk.datamodel.interfaces.EntityDocument;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+/**
+ * Parses the JSON of an entity but keeps only the parts a processor needs:
+ * labels and aliases in some languages, statements of some properties
+ * (without qualifiers and references), and optionally sitelinks. Everything
+ * else is skipped by a streaming parser and never materialized.
+ *
+ * The result is a regular WDTK {@link EntityDocument} which simply lacks the
+ * skipped parts, so that existing processors can run against it unchanged
+ * as long as they only look at the requested parts. The kept tokens are
+ * buffered and bound to the document directly, so the JSON is only parsed
+ * once.
+ *
+ * Instances are thread-safe.
+ *
+ */
+public class PartialEntityParser {
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private final ObjectReader documentReader;
+
+	// null means: keep all
+	private final Set<String> languages;
+	private final Set<String> properties;
+	private final boolean descriptions;
+	private final boolean aliases;
+	private final boolean siteLinks;
+
+	/**
+	 *
+	 * @param languages
+	 *            languages of the labels (and descriptions and aliases, if
+	 *            requested) to keep, or null for all
+	 * @param properties
+	 *            ids of the properties whose statements to keep, or null for
+	 *            all
+	 * @param descriptions
+	 *            whether to keep descriptions
+	 * @param aliases
+	 *            whether to keep aliases
+	 * @param siteLinks
+	 *            whether to keep sitelinks
+	 */
+	public PartialEntityParser(final Collection<String> languages, final Collection<String> properties, final boolean descriptions, final boolean aliases, final boolean siteLinks) {
+		this.languages = languages == null ? null : new HashSet<String>(languages);
+		this.properties = properties == null ? null : new HashSet<String>(properties);
+		this.descriptions = descriptions;
+		this.aliases = aliases;
+		this.siteLinks = siteLinks;
+		this.documentReader = new DatamodelMapper(Datamodel.SITE_WIKIDATA)
+				.readerFor(EntityDocumentImpl.class)
+				.with(DeserializationFeature.ACCEPT_EMPTY_STRING_AS_NULL_OBJECT);
+	}
+
+	/**
+	 * Keeps English labels, the given properties, and nothing else.
+	 *
+	 * @param properties
+	 */
+	public PartialEntityParser(final String... properties) {
+		this(Arrays.asList("en"), Arrays.asList(properties), false, false, false);
+	}
+
+	/**
+	 * Parses the JSON of a single entity.
+	 *
+	 * @param json
+	 * @return the entity with only the requested parts
+	 * @throws IOException
+	 *             if the JSON is broken
+	 */
+	public EntityDocument parse(final String json) throws IOException {
+		final JsonParser in = JSON_FACTORY.createParser(json);
+		final TokenBuffer tokens = new TokenBuffer(in);
+		try {
+			reduce(in, tokens);
+		} finally {
+			in.close();
+		}
+		final JsonParser reduced = tokens.asParser(documentReader);
+		try {
+			return documentReader.readValue(reduced);
+		} finally {
+			reduced.close();
+		}
+	}
+
+	/**
+	 * Copies the requested parts of the entity into the generator.
+	 *
+	 * @param in
+	 * @param gen
+	 * @throws IOException
+	 */
+	private void reduce(final JsonParser in, final JsonGenerator gen) throws IOException {
+		try {
+			if (in.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("entity is not a JSON object");
+			}
+			gen.writeStartObject();
+			while (in.nextToken() == JsonToken.FIELD_NAME) {
+				final String field = in.getCurrentName();
+				final JsonToken token = in.nextToken();
+				if ("labels".equals(field)) {
+					copyLanguages(in, gen, field);
+				} else if ("descriptions".equals(field)) {
+					skipOrCopy(in, gen, field, descriptions);
+				} else if ("aliases".equals(field)) {
+					skipOrCopy(in, gen, field, aliases);
+				} else if ("claims".equals(field) || "statements".equals(field)) {
+					copyStatements(in, gen, field);
+				} else if ("sitelinks".equals(field)) {
+					if (siteLinks) {
+						gen.writeFieldName(field);
+						gen.copyCurrentStructure(in);
+					} else {
+						in.skipChildren();
+					}
+				} else if (token.isScalarValue()) {
+					// type, id, lastrevid, datatype, ...
+					gen.writeFieldName(field);
+					gen.copyCurrentEvent(in);
+				} else {
+					// lexemes etc.: keep whatever WDTK needs to build them
+					gen.writeFieldName(field);
+					gen.copyCurrentStructure(in);
+				}
+			}
+			gen.writeEndObject();
+		} finally {
+			gen.close();
+		}
+	}
+
+	private void skipOrCopy(final JsonParser in, final JsonGenerator gen, final String field, final boolean keep) throws IOException {
+		if (keep) {
+			copyLanguages(in, gen, field);
+		} else {
+			in.skipChildren();
+		}
+	}
+
+	/**
+	 * Copies an object keyed by language code, keeping only the requested
+	 * languages. Wikidata writes empty term lists as [].
+	 */
+	private void copyLanguages(final JsonParser in, final JsonGenerator gen, final String field) throws IOException {
+		if (in.currentToken() != JsonToken.START_OBJECT) {
+			in.skipChildren();
+			return;
+		}
+		gen.writeObjectFieldStart(field);
+		while (in.nextToken() == JsonToken.FIELD_NAME) {
+			final String language = in.getCurrentName();
+			in.nextToken();
+			if (languages == null || languages.contains(language)) {
+				gen.writeFieldName(language);
+				gen.copyCurrentStructure(in);
+			} else {
+				in.skipChildren();
+			}
+		}
+		gen.writeEndObject();
+	}
+
+	/**
+	 * Copies the statements of the requested properties without their
+	 * qualifiers and references.
+	 */
+	private void copyStatements(final JsonParser in, final JsonGenerator gen, final String field) throws IOException {
+		if (in.currentToken() != JsonToken.START_OBJECT) {
+			in.skipChildren();
+			return;
+		}
+		gen.writeObjectFieldStart(field);
+		while (in.nextToken() == JsonToken.FIELD_NAME) {
+			final String property = in.getCurrentName();
+			in.nextToken();
+			if (properties != null && !properties.contains(property)) {
+				in.skipChildren();
+				continue;
+			}
+			gen.writeArrayFieldStart(property);
+			while (in.nextToken() == JsonToken.START_OBJECT) {
+				gen.writeStartObject();
+				while (in.nextToken() == JsonToken.FIELD_NAME) {
+					final String name = in.getCurrentName();
+					in.nextToken();
+					if ("qualifiers".equals(name) || "qualifiers-order".equals(name) || "references".equals(name)) {
+						in.skipChildren();
+					} else {
+						gen.writeFieldName(name);
+						gen.copyCurrentStructure(in);
+					}
+				}
+				gen.writeEndObject();
+			}
+			gen.writeEndArray();
+		}
+		gen.writeEndObject();
+	}
+}
@@ -1,13 +1,20 @@
 package wikidata;
 
-import java.util.HashMap;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 import org.wikidata.wdtk.datamodel.interfaces.EntityDocumentProcessor;
+import org.wikidata.wdtk.datamodel.interfaces.GlobeCoordinatesValue;
 import org.wikidata.wdtk.datamodel.interfaces.ItemDocument;
-import org.wikidata.wdtk.datamodel.interfaces.MonolingualTextValue;
 import org.wikidata.wdtk.datamodel.interfaces.PropertyDocument;
+import org.wikidata.wdtk.datamodel.interfaces.Statement;
+import org.wikidata.wdtk.datamodel.interfaces.StatementGroup;
+import org.wikidata.wdtk.datamodel.interfaces.Value;
 
 import wikidata.WikidataUtils.PropertyValue;
 
@@ -17,22 +24,49 @@ import wikidata.WikidataUtils.PropertyValue;
  * @author rja
  *
  */
-public class PropertyValueCollector implements EntityDocumentProcessor {
+public class PropertyValueCollector implements EntityDocumentProcessor, StageCache.Result {
 
 	/*
 	 * property values whose labels must be resolved
 	 */
 	private final Map<String, PropertyValue> valuesWithMissingLabels;
 	// to collect coordinates
-	private final Map<String, String> coordinates;
+	private final Coordinates coordinates;
 
-	public Map<String, String> getCoordinates() {
+	/*
+	 * estimated sizes of the coordinates and of the labels we have set
+	 */
+	private final MemoryBudget.Estimate coordinatesEstimate = new MemoryBudget.Estimate("coordinates");
+	private final MemoryBudget.Estimate labelsEstimate = new MemoryBudget.Estimate("labels");
+
+	public Coordinates getCoordinates() {
 		return coordinates;
 	}
 
+	/**
+	 * Returns the estimated sizes of the coordinates and of the labels set
+	 * for the values with missing labels, kept up to date while processing.
+	 *
+	 * @return
+	 */
+	public List<MemoryBudget.Estimate> getMemoryEstimates() {
+		return Arrays.asList(coordinatesEstimate, labelsEstimate);
+	}
+
+	/**
+	 * Returns a parser that materializes only the parts of an entity that
+	 * this collector looks at: the labels in {@link ExampleHelpers#LANGUAGES}
+	 * and coordinates (P625).
+	 *
+	 * @return
+	 */
+	public static PartialEntityParser createParser() {
+		return new PartialEntityParser(Arrays.asList(ExampleHelpers.LANGUAGES), Collections.singletonList("P625"), false, false, false);
+	}
+
 	public PropertyValueCollector(final Map<String, PropertyValue> valuesWithMissingLabels) {
 		this.valuesWithMissingLabels = valuesWithMissingLabels;
-		this.coordinates = new HashMap<String, String>();
+		this.coordinates = new Coordinates();
 	}
 
 	public void processItemDocument(final ItemDocument itemDocument) {
@@ -42,21 +76,91 @@ public class PropertyValueCollector implements EntityDocumentProcessor {
 		// check if we need to get the label for that id
 		final PropertyValue val = this.valuesWithMissingLabels.get(itemId);
 		if (val != null) {
-			// found! get label
-			final MonolingualTextValue label = itemDocument.getLabels().get("en");
-			if (label != null) {
-				// set label
-				val.value = label.getText();
+			// found! get labels
+			final Labels labels = Labels.of(ExampleHelpers.LANGUAGES, itemDocument.getLabels());
+			if (labels != null) {
+				// set label in the first language (if any) and keep the others
+				val.value = labels.get(0);
+				long bytes = MemoryBudget.string(val.value);
+				if (labels.size() > 1) {
+					val.labels = labels;
+					bytes += labels.estimateBytes();
+				}
+				labelsEstimate.add(1, bytes);
 			}
-			// check if this item has coordinates (P625)
-			final List<PropertyValue> values = WikidataUtils.getValues(itemDocument, "P625");
-			if (!values.isEmpty()) {
-				coordinates.put(itemId, values.get(0).value);
+			// check if this item has coordinates (P625) on Earth
+			final StatementGroup statements = itemDocument.findStatementGroup("P625");
+			if (statements != null) {
+				for (final Statement statement : statements) {
+					final Value value = statement.getValue();
+					if (value instanceof GlobeCoordinatesValue && GlobeCoordinatesValue.GLOBE_EARTH.equals(((GlobeCoordinatesValue) value).getGlobe())) {
+						final long bytes = coordinates.estimateBytes();
+						if (coordinates.put(itemId, ((GlobeCoordinatesValue) value).getLatitude(), ((GlobeCoordinatesValue) value).getLongitude())) {
+							coordinatesEstimate.add(1, coordinates.estimateBytes() - bytes);
+						}
+						break;
+					}
+				}
 			}
 		}
 
 	}
 
+	/**
+	 * Writes the labels found for the values and the coordinates such that
+	 * {@link #load(DataInput)} restores them.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void save(final DataOutput out) throws IOException {
+		// values with a label in any language (those with labels only in
+		// later languages have no value)
+		int resolved = 0;
+		for (final PropertyValue value : valuesWithMissingLabels.values()) {
+			if (value.value != null || value.labels != null) {
+				resolved++;
+			}
+		}
+		out.writeInt(resolved);
+		for (final PropertyValue value : valuesWithMissingLabels.values()) {
+			if (value.value != null || value.labels != null) {
+				out.writeUTF(value.valueId);
+				StageCache.writeString(out, value.value);
+				Labels.write(out, value.labels);
+			}
+		}
+		coordinates.write(out);
+	}
+
+	/**
+	 * Sets the labels of the values and adds the coordinates written by
+	 * {@link #save(DataOutput)}, as if they had been collected from the
+	 * dump.
+	 *
+	 * @param in
+	 * @throws IOException
+	 */
+	public void load(final DataInput in) throws IOException {
+		final int resolved = in.readInt();
+		for (int i = 0; i < resolved; i++) {
+			final String valueId = in.readUTF();
+			final String label = StageCache.readString(in);
+			final Labels labels = Labels.read(in, ExampleHelpers.LANGUAGES);
+			final PropertyValue val = valuesWithMissingLabels.get(valueId);
+			if (val == null) {
+				throw new IOException("labels for unknown value " + valueId);
+			}
+			val.value = label;
+			val.labels = labels;
+			labelsEstimate.add(1, MemoryBudget.string(label) + (labels == null ? 0 : labels.estimateBytes()));
+		}
+		final long bytes = coordinates.estimateBytes();
+		final int size = coordinates.size();
+		coordinates.read(in);
+		coordinatesEstimate.add(coordinates.size() - size, coordinates.estimateBytes() - bytes);
+	}
+
 	public void processPropertyDocument(final PropertyDocument propDocument) {
 		// noop
 	}
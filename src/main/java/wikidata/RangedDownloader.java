@@ -0,0 +1,558 @@
+package wikidata;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads a (large) file over HTTP in parallel byte ranges ("parts").
+ *
+ * <ul>
+ * <li>The parts are written into a file next to the target (with suffix
+ * ".download") and completed parts are recorded in a state file (suffix
+ * ".parts"), so an interrupted download resumes with the missing parts.</li>
+ * <li>Parts are started in file order and {@link #openStream()} returns a
+ * stream that delivers the leading completed parts while the rest is still
+ * being downloaded, so processing can start right away.</li>
+ * <li>The file is checked against its MD5 sum (as published by Wikimedia in
+ * the md5sums.txt of a dump), either while it is streamed or by
+ * {@link #awaitCompletion()}. Only then is it renamed to the target, such
+ * that the target never exists in a partial or corrupt state.</li>
+ * <li>The download is cancelled by {@link #close()}, and when all streams are
+ * closed before the end of the file (e.g., because processing failed or
+ * timed out). The downloading threads are daemons and do not keep the JVM
+ * alive.</li>
+ * </ul>
+ *
+ */
+public class RangedDownloader {
+
+	private static final int MAX_RETRIES = 5;
+	private static final int TIMEOUT_MS = 60000;
+
+	private final URL url;
+	private final File target;
+	private final File partial;
+	private final File stateFile;
+	private final long partSize;
+	private final int threads;
+	private final String expectedMd5;
+
+	private long length = -1;
+	// actual size of the parts (the whole file if the server does not support ranges)
+	private long size;
+	private boolean[] done;
+	// number of leading parts that are complete
+	private int completeParts = 0;
+	private IOException failure = null;
+	private ExecutorService executor;
+	private Writer state;
+	// whether the file has been verified and renamed to the target
+	private boolean complete = false;
+	private volatile boolean cancelled = false;
+	private int openStreams = 0;
+
+	/**
+	 *
+	 * @param url
+	 *            the file to download
+	 * @param target
+	 *            where to store it once it is complete and verified
+	 * @param partSize
+	 *            size of the byte ranges in bytes
+	 * @param threads
+	 *            number of parallel connections
+	 * @param expectedMd5
+	 *            MD5 sum of the file (hex) or null to skip verification
+	 */
+	public RangedDownloader(final URL url, final File target, final long partSize, final int threads, final String expectedMd5) {
+		this.url = url;
+		this.target = target;
+		this.partial = new File(target.getPath() + ".download");
+		this.stateFile = new File(target.getPath() + ".parts");
+		this.partSize = partSize;
+		this.threads = threads;
+		this.expectedMd5 = expectedMd5 == null ? null : expectedMd5.toLowerCase();
+	}
+
+	/**
+	 * Reads the MD5 sum of a file from a checksum list ("md5  filename" per
+	 * line), such as the md5sums.txt of a Wikimedia dump.
+	 *
+	 * @param checksums
+	 * @param fileName
+	 * @return the MD5 sum or null if the file is not listed
+	 * @throws IOException
+	 */
+	public static String fetchChecksum(final URL checksums, final String fileName) throws IOException {
+		final BufferedReader buf = new BufferedReader(new InputStreamReader(openConnection(checksums).getInputStream(), "utf-8"));
+		try {
+			String line;
+			while ((line = buf.readLine()) != null) {
+				final String[] parts = line.trim().split("\\s+");
+				if (parts.length == 2 && parts[1].equals(fileName)) {
+					return parts[0];
+				}
+			}
+			return null;
+		} finally {
+			buf.close();
+		}
+	}
+
+	/**
+	 * Determines the length of the file, resumes from the state file (if
+	 * any), and starts downloading the missing parts in the background. If
+	 * the target exists, it is assumed to be complete and nothing is
+	 * downloaded.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void start() throws IOException {
+		if (target.exists()) {
+			length = target.length();
+			size = Math.max(length, 1);
+			done = new boolean[] { true };
+			completeParts = 1;
+			complete = true;
+			return;
+		}
+		final HttpURLConnection head = openConnection(url);
+		head.setRequestMethod("HEAD");
+		if (head.getResponseCode() != HttpURLConnection.HTTP_OK) {
+			throw new IOException("HEAD " + url + " returned " + head.getResponseCode());
+		}
+		length = head.getContentLengthLong();
+		final boolean ranges = "bytes".equals(head.getHeaderField("Accept-Ranges"));
+		head.disconnect();
+		if (length < 0) {
+			throw new IOException("server did not send the length of " + url);
+		}
+
+		// without range support, the file is one part
+		size = ranges ? partSize : Math.max(length, 1);
+		final int parts = (int) Math.max(1, (length + size - 1) / size);
+		done = new boolean[parts];
+
+		final boolean resume = ranges && partial.length() == length;
+		if (resume) {
+			loadState();
+		}
+		advance();
+
+		final RandomAccessFile file = new RandomAccessFile(partial, "rw");
+		try {
+			file.setLength(length);
+		} finally {
+			file.close();
+		}
+		state = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(stateFile, resume), "utf-8"));
+
+		executor = Executors.newFixedThreadPool(ranges ? threads : 1, new ThreadFactory() {
+			private int count = 0;
+
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "download-" + target.getName() + "-" + count++);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		for (int i = 0; i < parts; i++) {
+			if (!done[i]) {
+				final int part = i;
+				final long from = part * size;
+				final long to = Math.min(length, from + size) - 1;
+				executor.submit(new Runnable() {
+					public void run() {
+						download(part, from, to);
+					}
+				});
+			}
+		}
+		executor.shutdown();
+	}
+
+	private void loadState() throws IOException {
+		if (!stateFile.exists()) {
+			return;
+		}
+		final BufferedReader buf = new BufferedReader(new InputStreamReader(new FileInputStream(stateFile), "utf-8"));
+		try {
+			String line;
+			while ((line = buf.readLine()) != null) {
+				final int part = Integer.parseInt(line.trim());
+				if (part >= 0 && part < done.length) {
+					done[part] = true;
+				}
+			}
+		} catch (final NumberFormatException e) {
+			// e.g., a line cut off by a crash: ignore the rest
+		} finally {
+			buf.close();
+		}
+	}
+
+	/**
+	 * Downloads one part, with retries.
+	 */
+	private void download(final int part, final long from, final long to) {
+		IOException last = null;
+		for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
+			if (cancelled || getFailure() != null) {
+				return;
+			}
+			try {
+				if (attempt > 0) {
+					Thread.sleep(1000L << attempt);
+				}
+				downloadRange(from, to);
+				markDone(part);
+				return;
+			} catch (final IOException e) {
+				if (cancelled) {
+					return;
+				}
+				last = e;
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				last = new IOException("interrupted", e);
+				break;
+			}
+		}
+		fail(new IOException("could not download bytes " + from + "-" + to + " of " + url, last));
+	}
+
+	private void downloadRange(final long from, final long to) throws IOException {
+		final HttpURLConnection conn = openConnection(url);
+		if (done.length > 1) {
+			conn.setRequestProperty("Range", "bytes=" + from + "-" + to);
+		}
+		final int code = conn.getResponseCode();
+		if (code != (done.length > 1 ? HttpURLConnection.HTTP_PARTIAL : HttpURLConnection.HTTP_OK)) {
+			conn.disconnect();
+			throw new IOException("GET " + url + " (bytes " + from + "-" + to + ") returned " + code);
+		}
+		final InputStream in = conn.getInputStream();
+		final RandomAccessFile file = new RandomAccessFile(partial, "rw");
+		try {
+			file.seek(from);
+			final byte[] buf = new byte[1 << 16];
+			long remaining = to - from + 1;
+			int n;
+			while (remaining > 0 && (n = in.read(buf, 0, (int) Math.min(buf.length, remaining))) > 0) {
+				if (cancelled) {
+					throw new IOException("download of " + url + " cancelled");
+				}
+				file.write(buf, 0, n);
+				remaining -= n;
+			}
+			if (remaining > 0) {
+				throw new IOException("connection closed " + remaining + " bytes before the end of the range");
+			}
+		} finally {
+			file.close();
+			in.close();
+		}
+	}
+
+	private synchronized void markDone(final int part) throws IOException {
+		if (state == null) {
+			// cancelled meanwhile
+			return;
+		}
+		done[part] = true;
+		state.write(part + "\n");
+		state.flush();
+		advance();
+		notifyAll();
+	}
+
+	private void advance() {
+		while (completeParts < done.length && done[completeParts]) {
+			completeParts++;
+		}
+	}
+
+	private synchronized void fail(final IOException e) {
+		if (failure == null) {
+			failure = e;
+		}
+		notifyAll();
+		if (executor != null) {
+			// stop the other parts
+			executor.shutdownNow();
+		}
+	}
+
+	private synchronized IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Returns the number of leading bytes of the file that have been
+	 * downloaded, waiting until more than the given number are available.
+	 */
+	private synchronized long awaitAvailable(final long position) throws IOException, InterruptedException {
+		while (true) {
+			final long available = Math.min(length, (long) completeParts * size);
+			if (available > position || available == length) {
+				return available;
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			wait();
+		}
+	}
+
+	/**
+	 * Waits until all parts have been downloaded and verifies the file.
+	 *
+	 * @throws IOException
+	 *             if a part could not be downloaded or the checksum does not
+	 *             match
+	 */
+	public void awaitCompletion() throws IOException {
+		try {
+			awaitAvailable(length);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while downloading " + url, e);
+		}
+		synchronized (this) {
+			if (complete) {
+				return;
+			}
+		}
+		final MessageDigest md5 = createMd5();
+		final InputStream in = new FileInputStream(partial);
+		try {
+			final byte[] buf = new byte[1 << 16];
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				md5.update(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		verify(md5);
+	}
+
+	/**
+	 * Returns a stream over the file which blocks until the next bytes have
+	 * been downloaded. The checksum is verified when the end of the file is
+	 * reached; a mismatch is reported as IOException.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized InputStream openStream() throws IOException {
+		if (cancelled) {
+			throw new IOException("download of " + url + " was cancelled");
+		}
+		final InputStream in = new ProgressiveInputStream(complete ? target : partial);
+		openStreams++;
+		return in;
+	}
+
+	/**
+	 * Cancels the download unless it is complete. The parts downloaded so
+	 * far are kept for resuming.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		if (complete || cancelled) {
+			return;
+		}
+		cancelled = true;
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+		fail(new IOException("download of " + url + " was cancelled"));
+		closeState();
+	}
+
+	/**
+	 * Whether the download neither failed nor was cancelled (yet).
+	 *
+	 * @return
+	 */
+	public synchronized boolean isUsable() {
+		return !cancelled && failure == null;
+	}
+
+	/**
+	 * Waits until the threads downloading parts have finished, e.g., after
+	 * {@link #close()} and before another downloader resumes the download.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void awaitTermination() throws InterruptedException {
+		final ExecutorService executor;
+		synchronized (this) {
+			executor = this.executor;
+		}
+		if (executor != null) {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+		}
+	}
+
+	private synchronized void streamClosed(final boolean atEnd) throws IOException {
+		openStreams--;
+		if (openStreams == 0 && !atEnd) {
+			close();
+		}
+	}
+
+	/**
+	 * Checks the checksum of the downloaded file (if known) and renames the
+	 * file to the target.
+	 */
+	private synchronized void verify(final MessageDigest md5) throws IOException {
+		if (complete) {
+			return;
+		}
+		closeState();
+		if (expectedMd5 != null) {
+			final String actual = toHex(md5.digest());
+			if (!actual.equals(expectedMd5)) {
+				// start from scratch next time
+				if (stateFile.exists() && !stateFile.delete()) {
+					System.err.println("could not delete " + stateFile);
+				}
+				final IOException e = new IOException("checksum mismatch for " + target + ": expected " + expectedMd5 + " but got " + actual);
+				fail(e);
+				throw e;
+			}
+		}
+		Files.move(partial.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		if (stateFile.exists() && !stateFile.delete()) {
+			System.err.println("could not delete " + stateFile);
+		}
+		complete = true;
+	}
+
+	private synchronized void closeState() throws IOException {
+		if (state != null) {
+			state.close();
+			state = null;
+		}
+	}
+
+	private static MessageDigest createMd5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String toHex(final byte[] bytes) {
+		final StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (final byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	private static HttpURLConnection openConnection(final URL url) throws IOException {
+		final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		conn.setConnectTimeout(TIMEOUT_MS);
+		conn.setReadTimeout(TIMEOUT_MS);
+		return conn;
+	}
+
+	/**
+	 * Reads the downloaded prefix of the file and computes its checksum on
+	 * the way.
+	 */
+	private class ProgressiveInputStream extends InputStream {
+		private final RandomAccessFile file;
+		private final MessageDigest md5 = createMd5();
+		private long position = 0;
+		private long available = 0;
+		private boolean verified = false;
+		private boolean closed = false;
+
+		public ProgressiveInputStream(final File file) throws IOException {
+			this.file = new RandomAccessFile(file, "r");
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			final int n = read(b, 0, 1);
+			return n < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (position >= available) {
+				try {
+					available = awaitAvailable(position);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("interrupted while waiting for " + url, e);
+				}
+			}
+			if (position >= length) {
+				if (!verified) {
+					verified = true;
+					verify(md5);
+				}
+				return -1;
+			}
+			final int n = file.read(b, off, (int) Math.min(len, available - position));
+			if (n > 0) {
+				md5.update(b, off, n);
+				position += n;
+			}
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			file.close();
+			streamClosed(position >= length);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("usage: RangedDownloader URL FILE [THREADS] [MD5]");
+			System.exit(1);
+		}
+		final int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		final String md5 = args.length > 3 ? args[3] : null;
+		final RangedDownloader downloader = new RangedDownloader(new URL(args[0]), new File(args[1]), 64L << 20, threads, md5);
+		downloader.start();
+		downloader.awaitCompletion();
+		System.out.println("downloaded " + args[1]);
+	}
+}
@@ -0,0 +1,314 @@
+package wikidata;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import wikidata.WikidataUtils.PropertyValue;
+
+/**
+ * The relations between the persons collected by {@link WriterCollector}
+ * and their occupations, places of birth and death, and awards as a graph
+ * in compressed sparse row format, for network analysis without parsing
+ * the JSON.
+ *
+ * Every entity (person or value) is a node with an int id; the persons come
+ * first. The graph file contains, after a header, the offsets of the edges
+ * of each node (int[nodes + 1]), the targets of all edges (int[edges]), and
+ * the relation of each edge (byte[edges], an index into
+ * {@link #getRelations()}). The edges of a node are sorted by relation and
+ * target. The dictionary is a text file with the Wikidata id and label of
+ * each node, one node per line.
+ *
+ * Loading maps the file into memory and thus takes constant time; the
+ * edges are read from the mapping when needed.
+ *
+ */
+public class RelationGraph {
+
+	private static final int MAGIC = 0x57444752; // "WDGR"
+	private static final int VERSION = 1;
+
+	/*
+	 * fields of the items that are exported as relations
+	 */
+	static final String[] RELATIONS = { "occupation", "place_of_birth", "place_of_death", "awards" };
+
+	private final LookupIndex.MappedFile graph;
+	private final int nodeCount;
+	private final int personCount;
+	private final int edgeCount;
+	private final List<String> relations;
+	// positions of the arrays in the file
+	private final long offsetsStart;
+	private final long targetsStart;
+	private final long relationsStart;
+
+	/**
+	 * Maps a graph file into memory.
+	 *
+	 * @param graphFile
+	 * @throws IOException
+	 */
+	public RelationGraph(final File graphFile) throws IOException {
+		this.graph = new LookupIndex.MappedFile(graphFile);
+		if (graph.getInt(0) != MAGIC || graph.getInt(4) != VERSION) {
+			throw new IOException(graphFile + " is not a relation graph of version " + VERSION);
+		}
+		this.nodeCount = graph.getInt(8);
+		this.personCount = graph.getInt(12);
+		this.edgeCount = graph.getInt(16);
+		final int relationCount = graph.getInt(20);
+		final List<String> names = new ArrayList<String>(relationCount);
+		long pos = 24;
+		for (int i = 0; i < relationCount; i++) {
+			final int length = graph.getInt(pos);
+			names.add(new String(graph.getBytes(pos + 4, length), "utf-8"));
+			pos += 4 + length;
+		}
+		this.relations = Collections.unmodifiableList(names);
+		this.offsetsStart = pos;
+		this.targetsStart = offsetsStart + 4L * (nodeCount + 1);
+		this.relationsStart = targetsStart + 4L * edgeCount;
+	}
+
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * The nodes 0 to getPersonCount() - 1 are persons, the others values.
+	 *
+	 * @return
+	 */
+	public int getPersonCount() {
+		return personCount;
+	}
+
+	public int getEdgeCount() {
+		return edgeCount;
+	}
+
+	/**
+	 * Names of the relations, indexed by {@link #getRelation(int)}.
+	 *
+	 * @return
+	 */
+	public List<String> getRelations() {
+		return relations;
+	}
+
+	/**
+	 * The edges of a node are those from getOffset(node) (inclusive) to
+	 * getOffset(node + 1) (exclusive).
+	 *
+	 * @param node
+	 * @return
+	 */
+	public int getOffset(final int node) {
+		return graph.getInt(offsetsStart + 4L * node);
+	}
+
+	public int getTarget(final int edge) {
+		return graph.getInt(targetsStart + 4L * edge);
+	}
+
+	public int getRelation(final int edge) {
+		return graph.getByte(relationsStart + edge);
+	}
+
+	/**
+	 * Returns the targets of all edges of the node.
+	 *
+	 * @param node
+	 * @return
+	 */
+	public int[] getTargets(final int node) {
+		final int from = getOffset(node);
+		final int[] targets = new int[getOffset(node + 1) - from];
+		for (int i = 0; i < targets.length; i++) {
+			targets[i] = getTarget(from + i);
+		}
+		return targets;
+	}
+
+	/**
+	 * Reads the dictionary written together with the graph.
+	 *
+	 * @param dictionaryFile
+	 * @return for each node its Wikidata id and label
+	 * @throws IOException
+	 */
+	public static List<String[]> readDictionary(final File dictionaryFile) throws IOException {
+		final List<String[]> nodes = new ArrayList<String[]>();
+		final BufferedReader buf = new BufferedReader(new InputStreamReader(new FileInputStream(dictionaryFile), "utf-8"), 1 << 16);
+		try {
+			String line;
+			while ((line = buf.readLine()) != null) {
+				final int tab = line.indexOf('\t');
+				nodes.add(new String[] { line.substring(0, tab), line.substring(tab + 1) });
+			}
+		} finally {
+			buf.close();
+		}
+		return nodes;
+	}
+
+	/**
+	 * Writes the relations of the items as graph and dictionary.
+	 *
+	 * @param items
+	 *            GND id -> properties, as collected by {@link WriterCollector}
+	 *            (with labels resolved by {@link PropertyValueCollector})
+	 * @param graphFile
+	 * @param dictionaryFile
+	 * @throws IOException
+	 */
+	public static void write(final Map<String, Map<String, List<PropertyValue>>> items, final File graphFile, final File dictionaryFile) throws IOException {
+		// Wikidata id -> node
+		final Map<String, Integer> nodes = new HashMap<String, Integer>();
+		final List<String> ids = new ArrayList<String>();
+		final List<String> labels = new ArrayList<String>();
+
+		// persons first, once per Wikidata id (persons can have several GND ids)
+		for (final Map<String, List<PropertyValue>> properties : items.values()) {
+			final String id = properties.get("id").get(0).toString();
+			if (!nodes.containsKey(id)) {
+				nodes.put(id, ids.size());
+				ids.add(id);
+				// the id, as for other entities, if there is no label in the first language
+				final String name = properties.get("name").get(0).toString();
+				labels.add(name.isEmpty() ? id : name);
+			}
+		}
+		final int personCount = ids.size();
+
+		// edges of each person as relation << 32 | target
+		final long[][] edges = new long[personCount][];
+		long edgeCount = 0;
+		long[] buf = new long[64];
+		for (final Map<String, List<PropertyValue>> properties : items.values()) {
+			final int person = nodes.get(properties.get("id").get(0).toString());
+			// start with the edges from the person's other GND ids
+			int n = 0;
+			if (edges[person] != null) {
+				n = edges[person].length;
+				edgeCount -= n;
+				buf = ensureCapacity(buf, n);
+				System.arraycopy(edges[person], 0, buf, 0, n);
+			}
+			for (int relation = 0; relation < RELATIONS.length; relation++) {
+				final List<PropertyValue> values = properties.get(RELATIONS[relation]);
+				if (values == null) {
+					continue;
+				}
+				for (final PropertyValue value : values) {
+					// only entities are nodes
+					if (value.valueId == null || value.valueId.isEmpty()) {
+						continue;
+					}
+					Integer target = nodes.get(value.valueId);
+					if (target == null) {
+						target = ids.size();
+						nodes.put(value.valueId, target);
+						ids.add(value.valueId);
+						labels.add(value.toString());
+					}
+					buf = ensureCapacity(buf, n + 1);
+					buf[n++] = ((long) relation << 32) | target;
+				}
+			}
+			edges[person] = distinct(buf, n);
+			edgeCount += edges[person].length;
+		}
+		if (edgeCount > Integer.MAX_VALUE) {
+			throw new IOException("too many edges: " + edgeCount);
+		}
+
+		// new files replace the old ones, which might be linked into the StageCache
+		final File graphTmp = new File(graphFile.getPath() + ".tmp");
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(graphTmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(ids.size());
+			out.writeInt(personCount);
+			out.writeInt((int) edgeCount);
+			out.writeInt(RELATIONS.length);
+			for (final String relation : RELATIONS) {
+				final byte[] name = relation.getBytes("utf-8");
+				out.writeInt(name.length);
+				out.write(name);
+			}
+			// offsets: values have no edges
+			int offset = 0;
+			for (int node = 0; node < ids.size(); node++) {
+				out.writeInt(offset);
+				if (node < personCount) {
+					offset += edges[node].length;
+				}
+			}
+			out.writeInt(offset);
+			for (final long[] personEdges : edges) {
+				for (final long edge : personEdges) {
+					out.writeInt((int) edge);
+				}
+			}
+			for (final long[] personEdges : edges) {
+				for (final long edge : personEdges) {
+					out.writeByte((int) (edge >>> 32));
+				}
+			}
+		} finally {
+			out.close();
+		}
+		StageCache.replace(graphTmp, graphFile);
+
+		final File dictionaryTmp = new File(dictionaryFile.getPath() + ".tmp");
+		final Writer dict = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(dictionaryTmp), "utf-8"), 1 << 16);
+		try {
+			for (int node = 0; node < ids.size(); node++) {
+				dict.write(ids.get(node));
+				dict.write('\t');
+				dict.write(labels.get(node).replace('\t', ' ').replace('\n', ' ').replace('\r', ' '));
+				dict.write('\n');
+			}
+		} finally {
+			dict.close();
+		}
+		StageCache.replace(dictionaryTmp, dictionaryFile);
+		System.out.println("wrote graph with " + ids.size() + " nodes (" + personCount + " persons) and " + edgeCount + " edges to " + graphFile);
+	}
+
+	private static long[] ensureCapacity(final long[] buf, final int size) {
+		return size <= buf.length ? buf : Arrays.copyOf(buf, Math.max(size, 2 * buf.length));
+	}
+
+	/**
+	 * Returns the first length edges, sorted and without duplicates.
+	 */
+	private static long[] distinct(final long[] edges, final int length) {
+		Arrays.sort(edges, 0, length);
+		int n = 0;
+		for (int i = 0; i < length; i++) {
+			if (n == 0 || edges[i] != edges[n - 1]) {
+				edges[n++] = edges[i];
+			}
+		}
+		return Arrays.copyOf(edges, n);
+	}
+}
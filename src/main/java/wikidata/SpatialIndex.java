@@ -0,0 +1,289 @@
+package wikidata;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import wikidata.WikidataUtils.PropertyValue;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Finds the items whose place (of birth or death) lies within some
+ * kilometers of a point, e.g., all writers born within 50 km of Weimar.
+ *
+ * The items are sorted into a grid of one by one degree cells; each cell
+ * holds the GND ids and fixed-point coordinates (see {@link Coordinates}) of
+ * its items in consecutive array ranges. A query only looks at the cells
+ * overlapping the bounding box of the circle and computes great-circle
+ * distances for their items.
+ *
+ * The index is a standalone tool (see {@link #main(String[])}): it is
+ * built in memory from a JSON file in about the time of reading it, and
+ * {@link WriterExtractor} does not write it.
+ *
+ * Instances are immutable and thread-safe.
+ *
+ */
+public class SpatialIndex {
+
+	static final double EARTH_RADIUS_KM = 6371.0088;
+
+	private static final int LATITUDE_CELLS = 180;
+	private static final int LONGITUDE_CELLS = 360;
+
+	// items sorted by cell
+	private final String[] ids;
+	private final int[] latitudes;
+	private final int[] longitudes;
+	// items of cell c are cellStarts[c] to cellStarts[c + 1] - 1
+	private final int[] cellStarts = new int[LATITUDE_CELLS * LONGITUDE_CELLS + 1];
+
+	/**
+	 * Sorts the items into the grid (with a counting sort).
+	 *
+	 * @param ids
+	 * @param latitudes
+	 *            in units of 10^-7 degrees
+	 * @param longitudes
+	 *            in units of 10^-7 degrees
+	 */
+	SpatialIndex(final List<String> ids, final int[] latitudes, final int[] longitudes) {
+		final int size = ids.size();
+		this.ids = new String[size];
+		this.latitudes = new int[size];
+		this.longitudes = new int[size];
+		final int[] cells = new int[size];
+		for (int i = 0; i < size; i++) {
+			cells[i] = cell(latitudes[i] / Coordinates.SCALE, longitudes[i] / Coordinates.SCALE);
+			cellStarts[cells[i] + 1]++;
+		}
+		for (int c = 0; c < cellStarts.length - 1; c++) {
+			cellStarts[c + 1] += cellStarts[c];
+		}
+		final int[] next = cellStarts.clone();
+		for (int i = 0; i < size; i++) {
+			final int pos = next[cells[i]]++;
+			this.ids[pos] = ids.get(i);
+			this.latitudes[pos] = latitudes[i];
+			this.longitudes[pos] = longitudes[i];
+		}
+	}
+
+	/**
+	 * Indexes the items by the first of their places (in the given field)
+	 * with coordinates.
+	 *
+	 * @param items
+	 *            GND id -> properties, as collected by {@link WriterCollector}
+	 * @param coordinates
+	 *            as collected by {@link PropertyValueCollector}
+	 * @param field
+	 *            e.g., "place_of_birth"
+	 * @param requiredField
+	 *            only items having this field (e.g., "occupation_writer")
+	 *            are indexed, or null for all items
+	 * @return
+	 */
+	public static SpatialIndex build(final Map<String, Map<String, List<PropertyValue>>> items, final Coordinates coordinates, final String field, final String requiredField) {
+		final List<String> ids = new ArrayList<String>();
+		int[] latitudes = new int[1024];
+		int[] longitudes = new int[1024];
+		for (final Entry<String, Map<String, List<PropertyValue>>> item : items.entrySet()) {
+			final Map<String, List<PropertyValue>> properties = item.getValue();
+			if (requiredField != null && !properties.containsKey(requiredField)) {
+				continue;
+			}
+			final int slot = JsonWriter.findLocation(properties.get(field), coordinates);
+			if (slot >= 0) {
+				if (ids.size() == latitudes.length) {
+					latitudes = Arrays.copyOf(latitudes, 2 * latitudes.length);
+					longitudes = Arrays.copyOf(longitudes, 2 * longitudes.length);
+				}
+				latitudes[ids.size()] = coordinates.getFixedLatitude(slot);
+				longitudes[ids.size()] = coordinates.getFixedLongitude(slot);
+				ids.add(item.getKey());
+			}
+		}
+		return new SpatialIndex(ids, latitudes, longitudes);
+	}
+
+	/**
+	 * Indexes the items of a file written by {@link JsonWriter} by the
+	 * location it wrote for the given field.
+	 *
+	 * @param file
+	 * @param field
+	 *            e.g., "place_of_birth"
+	 * @param requiredField
+	 *            only items having this field (e.g., "occupation_writer")
+	 *            are indexed, or null for all items
+	 * @return
+	 * @throws IOException
+	 */
+	public static SpatialIndex read(final File file, final String field, final String requiredField) throws IOException {
+		final String locationField = field + JsonWriter.LOCATION_SUFFIX;
+		final List<String> ids = new ArrayList<String>();
+		int[] latitudes = new int[1024];
+		int[] longitudes = new int[1024];
+		final JsonParser parser = new JsonFactory().createParser(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("expected a JSON object in " + file);
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String gnd = parser.getCurrentName();
+				parser.nextToken();
+				boolean required = requiredField == null;
+				double latitude = Double.NaN;
+				double longitude = Double.NaN;
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					final String name = parser.getCurrentName();
+					final JsonToken value = parser.nextToken();
+					if (name.equals(requiredField)) {
+						required = true;
+					}
+					if (name.equals(locationField) && value == JsonToken.START_OBJECT) {
+						while (parser.nextToken() == JsonToken.FIELD_NAME) {
+							final String coordinate = parser.getCurrentName();
+							parser.nextToken();
+							if ("lat".equals(coordinate)) {
+								latitude = parser.getDoubleValue();
+							} else if ("lon".equals(coordinate)) {
+								longitude = parser.getDoubleValue();
+							}
+						}
+					} else {
+						parser.skipChildren();
+					}
+				}
+				if (required && !Double.isNaN(latitude) && !Double.isNaN(longitude)) {
+					if (ids.size() == latitudes.length) {
+						latitudes = Arrays.copyOf(latitudes, 2 * latitudes.length);
+						longitudes = Arrays.copyOf(longitudes, 2 * longitudes.length);
+					}
+					latitudes[ids.size()] = Coordinates.toFixed(latitude);
+					longitudes[ids.size()] = Coordinates.toFixed(longitude);
+					ids.add(gnd);
+				}
+			}
+		} finally {
+			parser.close();
+		}
+		return new SpatialIndex(ids, latitudes, longitudes);
+	}
+
+	public int size() {
+		return ids.length;
+	}
+
+	/**
+	 * Returns the GND ids of the items within the given distance of the
+	 * point, in no particular order.
+	 *
+	 * @param latitude
+	 * @param longitude
+	 * @param km
+	 * @return
+	 */
+	public List<String> within(final double latitude, final double longitude, final double km) {
+		final List<String> result = new ArrayList<String>();
+		// bounding box of the circle (see Matuschek, "Finding Points Within a
+		// Distance of a Latitude/Longitude Using Bounding Coordinates")
+		final double radius = km / EARTH_RADIUS_KM;
+		// widened by the precision of the coordinates, such that rounding
+		// does not lose the items at the boundary
+		final double minLatitude = latitude - Math.toDegrees(radius) - 1 / Coordinates.SCALE;
+		final double maxLatitude = latitude + Math.toDegrees(radius) + 1 / Coordinates.SCALE;
+		final int fromLongitudeCell;
+		final int longitudeCells;
+		if (minLatitude <= -90 || maxLatitude >= 90 || Math.sin(radius) >= Math.cos(Math.toRadians(latitude))) {
+			// contains a pole
+			fromLongitudeCell = 0;
+			longitudeCells = LONGITUDE_CELLS;
+		} else {
+			final double deltaLongitude = Math.toDegrees(Math.asin(Math.sin(radius) / Math.cos(Math.toRadians(latitude)))) + 1 / Coordinates.SCALE;
+			fromLongitudeCell = (int) Math.floor(longitude - deltaLongitude + 180);
+			longitudeCells = Math.min(LONGITUDE_CELLS, (int) Math.floor(longitude + deltaLongitude + 180) - fromLongitudeCell + 1);
+		}
+		final int fromLatitudeCell = latitudeCell(Math.max(-90, minLatitude));
+		final int toLatitudeCell = latitudeCell(Math.min(90, maxLatitude));
+
+		final double lat = Math.toRadians(latitude);
+		final double lon = Math.toRadians(longitude);
+		for (int latitudeCell = fromLatitudeCell; latitudeCell <= toLatitudeCell; latitudeCell++) {
+			for (int i = 0; i < longitudeCells; i++) {
+				// wrap around the antimeridian
+				final int longitudeCell = ((fromLongitudeCell + i) % LONGITUDE_CELLS + LONGITUDE_CELLS) % LONGITUDE_CELLS;
+				final int cell = latitudeCell * LONGITUDE_CELLS + longitudeCell;
+				for (int item = cellStarts[cell]; item < cellStarts[cell + 1]; item++) {
+					final double itemLatitude = Math.toRadians(latitudes[item] / Coordinates.SCALE);
+					final double itemLongitude = Math.toRadians(longitudes[item] / Coordinates.SCALE);
+					// in km, as distance() computes it
+					if (EARTH_RADIUS_KM * angle(lat, lon, itemLatitude, itemLongitude) <= km) {
+						result.add(ids[item]);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Great-circle distance in km.
+	 *
+	 * @param latitude1
+	 * @param longitude1
+	 * @param latitude2
+	 * @param longitude2
+	 * @return
+	 */
+	public static double distance(final double latitude1, final double longitude1, final double latitude2, final double longitude2) {
+		return EARTH_RADIUS_KM * angle(Math.toRadians(latitude1), Math.toRadians(longitude1), Math.toRadians(latitude2), Math.toRadians(longitude2));
+	}
+
+	/**
+	 * Central angle between two points (in radians), with the haversine
+	 * formula.
+	 */
+	private static double angle(final double latitude1, final double longitude1, final double latitude2, final double longitude2) {
+		final double sinLatitude = Math.sin((latitude2 - latitude1) / 2);
+		final double sinLongitude = Math.sin((longitude2 - longitude1) / 2);
+		final double h = sinLatitude * sinLatitude + Math.cos(latitude1) * Math.cos(latitude2) * sinLongitude * sinLongitude;
+		return 2 * Math.asin(Math.min(1, Math.sqrt(h)));
+	}
+
+	private static int cell(final double latitude, final double longitude) {
+		final int longitudeCell = Math.min(LONGITUDE_CELLS - 1, Math.max(0, (int) Math.floor(longitude + 180)));
+		return latitudeCell(latitude) * LONGITUDE_CELLS + longitudeCell;
+	}
+
+	private static int latitudeCell(final double latitude) {
+		return Math.min(LATITUDE_CELLS - 1, Math.max(0, (int) Math.floor(latitude + 90)));
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 5) {
+			System.err.println("usage: SpatialIndex gnditems.json place_of_birth|place_of_death LATITUDE LONGITUDE KM [REQUIRED_FIELD]");
+			System.exit(1);
+		}
+		long start = System.currentTimeMillis();
+		final SpatialIndex index = read(new File(args[0]), args[1], args.length > 5 ? args[5] : null);
+		System.out.println("indexed " + index.size() + " items in " + (System.currentTimeMillis() - start) + " ms");
+
+		start = System.nanoTime();
+		final List<String> result = index.within(Double.parseDouble(args[2]), Double.parseDouble(args[3]), Double.parseDouble(args[4]));
+		System.out.println("found " + result.size() + " items in " + (System.nanoTime() - start) / 1000 + " us");
+		for (int i = 0; i < Math.min(20, result.size()); i++) {
+			System.out.println(result.get(i));
+		}
+	}
+}
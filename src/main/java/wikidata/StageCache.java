@@ -0,0 +1,309 @@
+package wikidata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Keeps the results of the stages of a long computation (like
+ * {@link WriterExtractor}) such that a later run can reuse those whose
+ * inputs did not change.
+ *
+ * A stage's result is a directory of files named by a key that is derived
+ * from everything the result depends on: the dump, the keys of the stages
+ * whose results it uses, its configuration, and the version of its code
+ * (a hash of the class files, such that any change to the code invalidates
+ * the results without anyone having to remember to bump a version). Results
+ * are thus never updated, only added; old ones can be deleted at any time.
+ *
+ * A result is written into a temporary directory which is renamed once it
+ * is complete, such that interrupted runs leave no partial results behind.
+ *
+ */
+public class StageCache {
+
+	private static final Charset UTF8 = Charset.forName("utf-8");
+	// name of the file of results saved with save()
+	private static final String RESULT_FILE = "result.bin";
+
+	/**
+	 * A result that is saved to and loaded from one file.
+	 */
+	public interface Result {
+		public void save(final DataOutput out) throws IOException;
+
+		public void load(final DataInput in) throws IOException;
+	}
+
+	private final File directory;
+
+	public StageCache(final File directory) throws IOException {
+		this.directory = directory;
+		Files.createDirectories(directory.toPath());
+	}
+
+	/**
+	 * Derives the key of a stage's result.
+	 *
+	 * @param stage
+	 *            name of the stage
+	 * @param inputs
+	 *            everything the result depends on
+	 * @return
+	 */
+	public static String key(final String stage, final String... inputs) {
+		final MessageDigest digest = sha1();
+		for (final String input : inputs) {
+			digest.update(input.getBytes(UTF8));
+			// separate the inputs
+			digest.update((byte) 0);
+		}
+		return stage + "-" + hex(digest.digest());
+	}
+
+	/**
+	 * Returns a hash of the class files of the classes, including their
+	 * nested and anonymous classes.
+	 *
+	 * @param classes
+	 * @return
+	 * @throws IOException
+	 */
+	public static String codeVersion(final Class<?>... classes) throws IOException {
+		final MessageDigest digest = sha1();
+		for (final Class<?> clazz : classes) {
+			update(digest, clazz);
+		}
+		return hex(digest.digest());
+	}
+
+	private static void update(final MessageDigest digest, final Class<?> clazz) throws IOException {
+		final String name = clazz.getName();
+		final InputStream in = clazz.getResourceAsStream("/" + name.replace('.', '/') + ".class");
+		if (in == null) {
+			throw new IOException("no class file for " + name);
+		}
+		update(digest, in);
+		for (final Class<?> nested : clazz.getDeclaredClasses()) {
+			update(digest, nested);
+		}
+		// anonymous classes are numbered from one and not reflected
+		for (int i = 1;; i++) {
+			final Class<?> anonymous;
+			try {
+				anonymous = Class.forName(name + "$" + i, false, clazz.getClassLoader());
+			} catch (final ClassNotFoundException e) {
+				break;
+			}
+			update(digest, anonymous);
+		}
+	}
+
+	/**
+	 * Returns a hash of the file's content.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static String fileVersion(final File file) throws IOException {
+		final MessageDigest digest = sha1();
+		update(digest, new FileInputStream(file));
+		return hex(digest.digest());
+	}
+
+	private static void update(final MessageDigest digest, final InputStream in) throws IOException {
+		try {
+			final byte[] buf = new byte[1 << 16];
+			int read;
+			while ((read = in.read(buf)) > 0) {
+				digest.update(buf, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads a result written by {@link #save(String, Result)}.
+	 *
+	 * @param key
+	 * @param result
+	 *            to load the result into
+	 * @return false if the result is not cached
+	 * @throws IOException
+	 */
+	public boolean load(final String key, final Result result) throws IOException {
+		final File dir = get(key);
+		if (dir == null) {
+			return false;
+		}
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(dir, RESULT_FILE)), 1 << 16));
+		try {
+			result.load(in);
+		} finally {
+			in.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Writes a result that consists of a single file.
+	 *
+	 * @param key
+	 * @param result
+	 * @throws IOException
+	 */
+	public void save(final String key, final Result result) throws IOException {
+		final File temporary = begin(key);
+		try {
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(temporary, RESULT_FILE)), 1 << 16));
+			try {
+				result.save(out);
+			} finally {
+				out.close();
+			}
+		} catch (final IOException e) {
+			delete(temporary);
+			throw e;
+		}
+		commit(key, temporary);
+	}
+
+	/**
+	 * Returns the directory with the files of a stage's result.
+	 *
+	 * @param key
+	 * @return the directory or null if the result is not cached
+	 */
+	public File get(final String key) {
+		final File result = new File(directory, key);
+		return result.isDirectory() ? result : null;
+	}
+
+	/**
+	 * Creates a temporary directory for the files of a stage's result; they
+	 * become visible with {@link #commit(String, File)}.
+	 *
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	public File begin(final String key) throws IOException {
+		return Files.createTempDirectory(directory.toPath(), key + ".tmp").toFile();
+	}
+
+	/**
+	 * Makes the files written into the temporary directory the result of
+	 * the stage.
+	 *
+	 * @param key
+	 * @param temporary
+	 *            as returned by {@link #begin(String)}
+	 * @throws IOException
+	 */
+	public void commit(final String key, final File temporary) throws IOException {
+		final File result = new File(directory, key);
+		if (result.exists()) {
+			// another run was faster - the results are the same
+			delete(temporary);
+			return;
+		}
+		Files.move(temporary.toPath(), result.toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Links (or, where that is not possible, copies) a file into or out of
+	 * the cache. Results are never changed, so sharing them is safe as long
+	 * as the linked files are not changed either: files that may be linked
+	 * must be written anew and then moved over the old one (see
+	 * {@link #replace(File, File)}), never be overwritten in place.
+	 *
+	 * @param source
+	 * @param target
+	 *            is replaced if it exists
+	 * @throws IOException
+	 */
+	public static void link(final File source, final File target) throws IOException {
+		Files.deleteIfExists(target.toPath());
+		try {
+			Files.createLink(target.toPath(), source.toPath());
+		} catch (final IOException e) {
+			Files.copy(source.toPath(), target.toPath());
+		} catch (final UnsupportedOperationException e) {
+			Files.copy(source.toPath(), target.toPath());
+		}
+	}
+
+	/**
+	 * Moves a file that was written completely over the target. Unlike
+	 * writing into the target, this leaves the file the target was linked
+	 * to (e.g., by {@link #link(File, File)}) unchanged, and nobody sees a
+	 * partial file.
+	 *
+	 * @param temporary
+	 *            in the directory of the target
+	 * @param target
+	 * @throws IOException
+	 */
+	public static void replace(final File temporary, final File target) throws IOException {
+		Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void delete(final File file) throws IOException {
+		final File[] files = file.listFiles();
+		if (files != null) {
+			for (final File child : files) {
+				delete(child);
+			}
+		}
+		Files.delete(file.toPath());
+	}
+
+	/*
+	 * helpers for writing results
+	 */
+
+	/**
+	 * Writes a string that may be null (as boolean and UTF).
+	 */
+	static void writeString(final DataOutput out, final String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) {
+			out.writeUTF(s);
+		}
+	}
+
+	static String readString(final DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static MessageDigest sha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-1 is not supported", e);
+		}
+	}
+
+	private static String hex(final byte[] bytes) {
+		final StringBuilder buf = new StringBuilder(2 * bytes.length);
+		for (final byte b : bytes) {
+			buf.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return buf.toString();
+	}
+}
@@ -0,0 +1,383 @@
+package wikidata;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.wikidata.wdtk.datamodel.interfaces.EntityDocumentProcessor;
+import org.wikidata.wdtk.datamodel.interfaces.ItemDocument;
+import org.wikidata.wdtk.datamodel.interfaces.PropertyDocument;
+import org.wikidata.wdtk.datamodel.interfaces.Statement;
+import org.wikidata.wdtk.datamodel.interfaces.StatementGroup;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Collects statistics about a whole dump in one pass: how many items carry
+ * each property (and how many statements they have), how the values of
+ * some properties are distributed, and how often sitelinks appear. This
+ * tells how selective a filter on a property or value is before it is
+ * added to a collector.
+ *
+ * The distributions are estimated with bounded memory: the most frequent
+ * values with a count-min sketch and a small set of candidates, the number
+ * of distinct values with HyperLogLog.
+ *
+ * The processor is thread-safe and scales with the number of threads
+ * calling it: each thread counts into its own shard, without locks or
+ * shared counters, and the shards are merged for the report (which thus
+ * must only be written after processing).
+ *
+ */
+public class StatisticsCollector implements EntityDocumentProcessor {
+
+	/*
+	 * properties whose values we count
+	 */
+	private static final String[] VALUE_PROPERTIES = { "P31", "P106" };
+
+	// number of most frequent values reported
+	private static final int TOP_K = 100;
+	// candidates for the most frequent values kept by each shard
+	private static final int CANDIDATES = 4 * TOP_K;
+
+	/*
+	 * count-min sketch: overestimates counts by at most e/WIDTH of the total
+	 * with probability 1 - exp(-DEPTH)
+	 */
+	private static final int SKETCH_DEPTH = 4;
+	private static final int SKETCH_WIDTH = 1 << 16;
+
+	// HyperLogLog with 2^14 registers: standard error 1.04/sqrt(2^14) = 0.8%
+	private static final int HLL_BITS = 14;
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private final List<Shard> shards = new CopyOnWriteArrayList<Shard>();
+	private final ThreadLocal<Shard> shard = new ThreadLocal<Shard>() {
+		@Override
+		protected Shard initialValue() {
+			final Shard s = new Shard();
+			shards.add(s);
+			return s;
+		}
+	};
+
+	/**
+	 * Returns a parser that materializes only the parts of an entity that
+	 * this collector looks at: statements (of all properties) and sitelinks.
+	 *
+	 * @return
+	 */
+	public static PartialEntityParser createParser() {
+		return new PartialEntityParser(Collections.<String>emptyList(), null, false, false, true);
+	}
+
+	public void processItemDocument(final ItemDocument itemDocument) {
+		final Shard s = shard.get();
+		s.items++;
+		for (final StatementGroup group : itemDocument.getStatementGroups()) {
+			s.countProperty(group.getProperty().getId(), group.size());
+		}
+		for (int i = 0; i < VALUE_PROPERTIES.length; i++) {
+			final StatementGroup group = itemDocument.findStatementGroup(VALUE_PROPERTIES[i]);
+			if (group != null) {
+				for (final Statement statement : group) {
+					final String value = statement.getValue() == null ? null : WikidataUtils.getValue(statement.getValue());
+					if (value != null) {
+						s.values[i].add(value);
+					}
+				}
+			}
+		}
+		if (!itemDocument.getSiteLinks().isEmpty()) {
+			s.itemsWithSiteLinks++;
+			for (final String site : itemDocument.getSiteLinks().keySet()) {
+				increment(s.siteLinks, site, 0, 1);
+			}
+		}
+	}
+
+	public void processPropertyDocument(final PropertyDocument propertyDocument) {
+		shard.get().propertyDocuments++;
+	}
+
+	private static void increment(final Map<String, long[]> counts, final String key, final int index, final long delta) {
+		long[] count = counts.get(key);
+		if (count == null) {
+			count = new long[2];
+			counts.put(key, count);
+		}
+		count[index] += delta;
+	}
+
+	/**
+	 * Writes the statistics as JSON. Must only be called after processing.
+	 *
+	 * @param dumpName
+	 *            name of the dump the statistics are about
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeReport(final String dumpName, final OutputStream out) throws IOException {
+		// merge the shards
+		final Shard total = new Shard();
+		for (final Shard s : shards) {
+			total.merge(s);
+		}
+
+		final JsonGenerator json = JSON_FACTORY.createGenerator(new OutputStreamWriter(out, "utf-8"));
+		json.useDefaultPrettyPrinter();
+		json.writeStartObject();
+		json.writeStringField("dump", dumpName);
+		json.writeNumberField("items", total.items);
+		json.writeNumberField("propertyDocuments", total.propertyDocuments);
+		json.writeNumberField("itemsWithSiteLinks", total.itemsWithSiteLinks);
+
+		// "P31": {"items": 1000, "statements": 1200}
+		json.writeObjectFieldStart("properties");
+		for (final Entry<String, long[]> entry : sortByCount(total.properties)) {
+			json.writeObjectFieldStart(entry.getKey());
+			json.writeNumberField("items", entry.getValue()[0]);
+			json.writeNumberField("statements", entry.getValue()[1]);
+			json.writeEndObject();
+		}
+		json.writeEndObject();
+
+		// "P31": {"values": 1200, "distinct": 80, "top": {"Q5": 900, ...}}
+		json.writeObjectFieldStart("values");
+		for (int i = 0; i < VALUE_PROPERTIES.length; i++) {
+			final ValueStatistics values = total.values[i];
+			json.writeObjectFieldStart(VALUE_PROPERTIES[i]);
+			json.writeNumberField("values", values.total);
+			json.writeNumberField("distinct", values.distinct());
+			json.writeObjectFieldStart("top");
+			for (final Entry<String, long[]> entry : values.top(TOP_K)) {
+				json.writeNumberField(entry.getKey(), entry.getValue()[0]);
+			}
+			json.writeEndObject();
+			json.writeEndObject();
+		}
+		json.writeEndObject();
+
+		// "enwiki": 1000
+		json.writeObjectFieldStart("siteLinks");
+		for (final Entry<String, long[]> entry : sortByCount(total.siteLinks)) {
+			json.writeNumberField(entry.getKey(), entry.getValue()[0]);
+		}
+		json.writeEndObject();
+
+		json.writeEndObject();
+		json.flush();
+	}
+
+	private static List<Entry<String, long[]>> sortByCount(final Map<String, long[]> counts) {
+		final List<Entry<String, long[]>> entries = new ArrayList<Entry<String, long[]>>(counts.entrySet());
+		Collections.sort(entries, new Comparator<Entry<String, long[]>>() {
+			public int compare(final Entry<String, long[]> o1, final Entry<String, long[]> o2) {
+				return Long.compare(o2.getValue()[0], o1.getValue()[0]);
+			}
+		});
+		return entries;
+	}
+
+	/**
+	 * The counts of one thread.
+	 */
+	private static class Shard {
+		private long items = 0;
+		private long propertyDocuments = 0;
+		private long itemsWithSiteLinks = 0;
+		// property -> {items, statements}
+		private final Map<String, long[]> properties = new HashMap<String, long[]>();
+		// site -> {items}
+		private final Map<String, long[]> siteLinks = new HashMap<String, long[]>();
+		private final ValueStatistics[] values = new ValueStatistics[VALUE_PROPERTIES.length];
+
+		public Shard() {
+			for (int i = 0; i < values.length; i++) {
+				values[i] = new ValueStatistics();
+			}
+		}
+
+		private void countProperty(final String property, final int statements) {
+			long[] count = properties.get(property);
+			if (count == null) {
+				count = new long[2];
+				properties.put(property, count);
+			}
+			count[0]++;
+			count[1] += statements;
+		}
+
+		private void merge(final Shard other) {
+			items += other.items;
+			propertyDocuments += other.propertyDocuments;
+			itemsWithSiteLinks += other.itemsWithSiteLinks;
+			for (final Entry<String, long[]> entry : other.properties.entrySet()) {
+				increment(properties, entry.getKey(), 0, entry.getValue()[0]);
+				increment(properties, entry.getKey(), 1, entry.getValue()[1]);
+			}
+			for (final Entry<String, long[]> entry : other.siteLinks.entrySet()) {
+				increment(siteLinks, entry.getKey(), 0, entry.getValue()[0]);
+			}
+			for (int i = 0; i < values.length; i++) {
+				values[i].merge(other.values[i]);
+			}
+		}
+	}
+
+	/**
+	 * Estimates the frequencies and the number of distinct values of one
+	 * property.
+	 */
+	private static class ValueStatistics {
+		private long total = 0;
+		private final long[] sketch = new long[SKETCH_DEPTH * SKETCH_WIDTH];
+		private final byte[] registers = new byte[1 << HLL_BITS];
+		// candidates for the most frequent values -> {estimated count}
+		private final Map<String, long[]> candidates = new HashMap<String, long[]>();
+		// lower bound of the smallest count of the candidates
+		private long minCandidate = 0;
+
+		private void add(final String value) {
+			total++;
+			final long h = EntitySampler.hash(value, 0, value.length());
+
+			// HyperLogLog: register from the first bits, rank from the rest
+			final int register = (int) (h >>> (64 - HLL_BITS));
+			final byte rank = (byte) (Long.numberOfLeadingZeros((h << HLL_BITS) | (1L << (HLL_BITS - 1))) + 1);
+			if (registers[register] < rank) {
+				registers[register] = rank;
+			}
+
+			// count-min sketch, with a column per row derived from the hash
+			final long estimate = count(h, 1);
+
+			final long[] candidate = candidates.get(value);
+			if (candidate != null) {
+				candidate[0] = estimate;
+			} else if (candidates.size() < CANDIDATES) {
+				candidates.put(value, new long[] { estimate });
+			} else if (estimate > minCandidate) {
+				// counts only grow, so the bound might be too small
+				String min = null;
+				long minCount = Long.MAX_VALUE;
+				for (final Entry<String, long[]> entry : candidates.entrySet()) {
+					if (entry.getValue()[0] < minCount) {
+						min = entry.getKey();
+						minCount = entry.getValue()[0];
+					}
+				}
+				if (estimate > minCount) {
+					candidates.remove(min);
+					candidates.put(value, new long[] { estimate });
+					minCount = estimate;
+					for (final long[] count : candidates.values()) {
+						minCount = Math.min(minCount, count[0]);
+					}
+				}
+				minCandidate = minCount;
+			}
+		}
+
+		/**
+		 * Adds to the counts of the value with the given hash and returns its
+		 * estimated count.
+		 */
+		private long count(final long h, final long delta) {
+			final int h1 = (int) h;
+			final int h2 = (int) (h >>> 32);
+			long estimate = Long.MAX_VALUE;
+			for (int i = 0; i < SKETCH_DEPTH; i++) {
+				final int column = (h1 + i * h2) & (SKETCH_WIDTH - 1);
+				final long c = sketch[i * SKETCH_WIDTH + column] += delta;
+				estimate = Math.min(estimate, c);
+			}
+			return estimate;
+		}
+
+		private void merge(final ValueStatistics other) {
+			total += other.total;
+			for (int i = 0; i < sketch.length; i++) {
+				sketch[i] += other.sketch[i];
+			}
+			for (int i = 0; i < registers.length; i++) {
+				registers[i] = (byte) Math.max(registers[i], other.registers[i]);
+			}
+			// the candidates of both, estimated with the merged sketch
+			for (final String value : other.candidates.keySet()) {
+				if (!candidates.containsKey(value)) {
+					candidates.put(value, new long[1]);
+				}
+			}
+			updateCandidates();
+		}
+
+		/**
+		 * Estimates the counts of the candidates anew, since those of values
+		 * not seen for a while are outdated.
+		 */
+		private void updateCandidates() {
+			for (final Entry<String, long[]> entry : candidates.entrySet()) {
+				final String value = entry.getKey();
+				entry.getValue()[0] = count(EntitySampler.hash(value, 0, value.length()), 0);
+			}
+		}
+
+		/**
+		 * Returns the candidates with the highest estimated counts.
+		 */
+		private List<Entry<String, long[]>> top(final int k) {
+			updateCandidates();
+			final List<Entry<String, long[]>> top = sortByCount(candidates);
+			return top.size() > k ? top.subList(0, k) : top;
+		}
+
+		/**
+		 * Estimates the number of distinct values (HyperLogLog, with linear
+		 * counting for small numbers).
+		 */
+		private long distinct() {
+			final int m = registers.length;
+			double sum = 0;
+			int zeros = 0;
+			for (final byte register : registers) {
+				sum += 1.0 / (1L << register);
+				if (register == 0) {
+					zeros++;
+				}
+			}
+			final double alpha = 0.7213 / (1 + 1.079 / m);
+			final double estimate = alpha * m * m / sum;
+			if (estimate <= 2.5 * m && zeros > 0) {
+				return Math.round(m * Math.log((double) m / zeros));
+			}
+			return Math.round(estimate);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		ExampleHelpers.configureLogging();
+
+		final StatisticsCollector collector = new StatisticsCollector();
+		ExampleHelpers.processEntitiesFromWikidataDump(collector, createParser(), ExampleHelpers.PARSER_THREADS, true);
+
+		// one report per dump, in the directory of the dump's results
+		final OutputStream out = ExampleHelpers.openExampleFileOuputStream("statistics.json");
+		try {
+			collector.writeReport(ExampleHelpers.getLastDumpFileName(), out);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -1,6 +1,5 @@
 package wikidata;
 
-import java.text.DecimalFormat;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -15,10 +14,6 @@ import org.wikidata.wdtk.datamodel.interfaces.Value;
 
 public class WikidataUtils {
 
-	// to format months and days for dates
-	private static final DecimalFormat TIME_FORMAT = new DecimalFormat("00");
-
-
 	public static String getValue(final Value val) {
 		if (val instanceof EntityIdValue) {
 			return ((EntityIdValue)val).getId();
@@ -27,9 +22,8 @@ public class WikidataUtils {
 			return ((StringValue)val).getString();
 		}
 		if (val instanceof TimeValue) {
-			final TimeValue time = (TimeValue)val;
-			// FIXME: can we run into problems because we ignore the calendar?
-			return time.getYear() + "-" + TIME_FORMAT.format(time.getMonth()) + "-" + TIME_FORMAT.format(time.getDay()); 
+			// in the proleptic Gregorian calendar, see Dates
+			return Dates.format(Dates.pack((TimeValue)val)); 
 		}
 		if (val instanceof GlobeCoordinatesValue) {
 			final GlobeCoordinatesValue coord = (GlobeCoordinatesValue)val;
@@ -62,6 +56,9 @@ public class WikidataUtils {
 			if (val instanceof EntityIdValue) {
 				return new PropertyValue(((EntityIdValue)val).getId());
 			}
+			if (val instanceof TimeValue) {
+				return new DateValue(Dates.pack((TimeValue)val));
+			}
 			return new PropertyValue(null, getValue(val));
 		}
 		return null;
@@ -94,6 +91,8 @@ public class WikidataUtils {
 		public final String valueId;
 		// resolved value
 		public String value = null;
+		// labels in all configured languages (only if there are several)
+		public Labels labels = null;
 
 		// default constructor: we know the id of the property but not its value 
 		public PropertyValue(final String valueId) {
@@ -137,4 +136,32 @@ public class WikidataUtils {
 
 	}
 
+	/**
+	 * A date, packed into a long (see {@link Dates}) instead of being kept as
+	 * string; it is formatted when needed.
+	 */
+	public static class DateValue extends PropertyValue {
+		public final long date;
+
+		public DateValue(final long date) {
+			super(null);
+			this.date = date;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof DateValue && date == ((DateValue) obj).date;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (date ^ (date >>> 32));
+		}
+
+		@Override
+		public String toString() {
+			return Dates.format(date);
+		}
+	}
+
 }
@@ -1,8 +1,13 @@
 package wikidata;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -14,14 +19,15 @@ import java.util.regex.Pattern;
 import org.wikidata.wdtk.datamodel.interfaces.EntityDocumentProcessor;
 import org.wikidata.wdtk.datamodel.interfaces.EntityIdValue;
 import org.wikidata.wdtk.datamodel.interfaces.ItemDocument;
-import org.wikidata.wdtk.datamodel.interfaces.MonolingualTextValue;
 import org.wikidata.wdtk.datamodel.interfaces.PropertyDocument;
 import org.wikidata.wdtk.datamodel.interfaces.SiteLink;
 import org.wikidata.wdtk.datamodel.interfaces.Statement;
 import org.wikidata.wdtk.datamodel.interfaces.StatementDocument;
 import org.wikidata.wdtk.datamodel.interfaces.StatementGroup;
+import org.wikidata.wdtk.datamodel.interfaces.TimeValue;
 import org.wikidata.wdtk.datamodel.interfaces.Value;
 
+import wikidata.WikidataUtils.DateValue;
 import wikidata.WikidataUtils.PropertyValue;
 
 /**
@@ -32,7 +38,7 @@ import wikidata.WikidataUtils.PropertyValue;
  * @author rja
  *
  */
-public class WriterCollector implements EntityDocumentProcessor {
+public class WriterCollector implements EntityDocumentProcessor, StageCache.Result {
 
 	public Map<String, Map<String, List<PropertyValue>>> getItems() {
 		return items;
@@ -60,6 +66,11 @@ public class WriterCollector implements EntityDocumentProcessor {
 	 */
 	private static final String PROPERTY_GNDID = "P227";
 	private static final String PROPERTY_OCCUPATION = "P106";
+	// items we collect
+	private static final EntityFilter FILTER = EntityFilter.and(
+			EntityFilter.hasProperty(PROPERTY_OCCUPATION),
+			EntityFilter.hasProperty(PROPERTY_GNDID),
+			hasLabel(ExampleHelpers.LANGUAGES));
 	private static final Map<String, String> PROPERTIES = new HashMap<String, String>();
 	static {
 		PROPERTIES.put(PROPERTY_OCCUPATION, "occupation");
@@ -87,15 +98,60 @@ public class WriterCollector implements EntityDocumentProcessor {
 	private final Map<String, PropertyValue> valuesWithMissingLabels = new HashMap<String, PropertyValue>();
 
 
+	/*
+	 * estimated sizes of the maps above
+	 */
+	private final MemoryBudget.Estimate itemsEstimate = new MemoryBudget.Estimate("items");
+	private final MemoryBudget.Estimate valuesWithMissingLabelsEstimate = new MemoryBudget.Estimate("valuesWithMissingLabels");
+
 	public Map<String, PropertyValue> getValuesWithMissingLabels() {
 		return valuesWithMissingLabels;
 	}
 
+	/**
+	 * Returns the estimated sizes of the items and of the values with missing
+	 * labels, kept up to date while processing.
+	 *
+	 * @return
+	 */
+	public List<MemoryBudget.Estimate> getMemoryEstimates() {
+		return Arrays.asList(itemsEstimate, valuesWithMissingLabelsEstimate);
+	}
+
+	/**
+	 * Returns a parser that materializes only the parts of an entity that
+	 * this collector looks at: the labels in {@link ExampleHelpers#LANGUAGES},
+	 * sitelinks, and the statements for GND id, occupation, and
+	 * {@link #PROPERTIES}.
+	 *
+	 * @return
+	 */
+	public static PartialEntityParser createParser() {
+		final List<String> properties = new ArrayList<String>(PROPERTIES.keySet());
+		properties.add(PROPERTY_GNDID);
+		return new PartialEntityParser(Arrays.asList(ExampleHelpers.LANGUAGES), properties, false, false, true);
+	}
+
+	/**
+	 * The item has a label in one of the languages.
+	 *
+	 * @param languages
+	 * @return
+	 */
+	private static EntityFilter hasLabel(final String[] languages) {
+		final EntityFilter[] clauses = new EntityFilter[languages.length];
+		for (int i = 0; i < languages.length; i++) {
+			clauses[i] = EntityFilter.hasLabel(languages[i]);
+		}
+		return clauses.length == 1 ? clauses[0] : EntityFilter.or(clauses);
+	}
+
 	public void processItemDocument(final ItemDocument itemDocument) {
 		/*
-		 * check for occupation (P106) and GND id (P227) properties
+		 * check for occupation (P106) and GND id (P227) properties and a
+		 * label in one of the languages
 		 */
-		if (itemDocument.hasStatement(PROPERTY_OCCUPATION) && itemDocument.hasStatement(PROPERTY_GNDID)) {
+		if (FILTER.accept(itemDocument)) {
 			// extract id
 			final String itemId = itemDocument.getEntityId().getId();
 			// FIXME: debug
@@ -103,10 +159,10 @@ public class WriterCollector implements EntityDocumentProcessor {
 				System.out.println(this.getClass().getSimpleName() + ": found item with id " + itemId + " and " + itemDocument.getStatementGroups().size() + " statements");
 			}
 			
-			// extract label
-			final MonolingualTextValue label = itemDocument.getLabels().get("en");
+			// extract labels
+			final Labels labels = Labels.of(ExampleHelpers.LANGUAGES, itemDocument.getLabels());
 			// ignore items without label
-			if (label != null) {
+			if (labels != null) {
 				/*
 				 * an item can have several GND ids (example: https://www.wikidata.org/wiki/Q19004)
 				 * - get and print them all 
@@ -119,11 +175,15 @@ public class WriterCollector implements EntityDocumentProcessor {
 						// have found valid item -> create entry for it
 						final HashMap<String, List<PropertyValue>> properties = new HashMap<String, List<PropertyValue>>();
 						// map GND id to properties
-						this.items.put(gnd, properties);
+						final Map<String, List<PropertyValue>> previous = this.items.put(gnd, properties);
 						// add Wikidata id
 						properties.put("id", Collections.singletonList(new PropertyValue("", itemId)));
-						// add label
-						properties.put("name", Collections.singletonList(new PropertyValue("", label.getText())));
+						// add label (in the first language, or only in the others if it has none there)
+						final PropertyValue name = new PropertyValue("", labels.get(0));
+						if (labels.size() > 1) {
+							name.labels = labels;
+						}
+						properties.put("name", Collections.singletonList(name));
 						// collect remaining properties
 						for (final Entry<String, String> prop : PROPERTIES.entrySet()) {
 							// get all values
@@ -143,6 +203,11 @@ public class WriterCollector implements EntityDocumentProcessor {
 							}
 						}
 						properties.put("sitelinks", siteKeys);
+
+						itemsEstimate.add(1, estimateItem(gnd, properties));
+						if (previous != null) {
+							itemsEstimate.add(-1, -estimateItem(gnd, previous));
+						}
 					}
 
 					//					
@@ -190,6 +255,116 @@ public class WriterCollector implements EntityDocumentProcessor {
 		}
 	}
 	
+	/**
+	 * Writes the collected items and values with missing labels (as they
+	 * are before {@link PropertyValueCollector} resolves them) such that
+	 * {@link #load(DataInput)} restores them.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void save(final DataOutput out) throws IOException {
+		// the values shared between the items are written once and then referenced by index
+		final Map<PropertyValue, Integer> shared = new IdentityHashMap<PropertyValue, Integer>();
+		out.writeInt(valuesWithMissingLabels.size());
+		for (final PropertyValue value : valuesWithMissingLabels.values()) {
+			shared.put(value, shared.size());
+			out.writeUTF(value.valueId);
+		}
+		out.writeInt(items.size());
+		for (final Entry<String, Map<String, List<PropertyValue>>> item : items.entrySet()) {
+			out.writeUTF(item.getKey());
+			out.writeInt(item.getValue().size());
+			for (final Entry<String, List<PropertyValue>> property : item.getValue().entrySet()) {
+				out.writeUTF(property.getKey());
+				out.writeInt(property.getValue().size());
+				for (final PropertyValue value : property.getValue()) {
+					final Integer index = shared.get(value);
+					if (index != null) {
+						out.writeInt(index);
+					} else if (value instanceof DateValue) {
+						out.writeInt(-2);
+						out.writeLong(((DateValue) value).date);
+					} else {
+						out.writeInt(-1);
+						StageCache.writeString(out, value.valueId);
+						StageCache.writeString(out, value.value);
+						Labels.write(out, value.labels);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the items and values written by {@link #save(DataOutput)}, as if
+	 * they had been collected from the dump.
+	 *
+	 * @param in
+	 * @throws IOException
+	 */
+	public void load(final DataInput in) throws IOException {
+		final PropertyValue[] shared = new PropertyValue[in.readInt()];
+		for (int i = 0; i < shared.length; i++) {
+			shared[i] = createPropertyValue(in.readUTF(), null);
+		}
+		final int itemCount = in.readInt();
+		for (int i = 0; i < itemCount; i++) {
+			final String gnd = in.readUTF();
+			final int propertyCount = in.readInt();
+			final Map<String, List<PropertyValue>> properties = new HashMap<String, List<PropertyValue>>();
+			for (int j = 0; j < propertyCount; j++) {
+				final String property = in.readUTF();
+				final int valueCount = in.readInt();
+				final List<PropertyValue> values = new ArrayList<PropertyValue>(valueCount);
+				for (int k = 0; k < valueCount; k++) {
+					final int index = in.readInt();
+					if (index >= 0) {
+						values.add(shared[index]);
+					} else if (index == -2) {
+						values.add(new DateValue(in.readLong()));
+					} else {
+						final PropertyValue value = new PropertyValue(StageCache.readString(in), StageCache.readString(in));
+						value.labels = Labels.read(in, ExampleHelpers.LANGUAGES);
+						values.add(value);
+					}
+				}
+				properties.put(property, values);
+			}
+			final Map<String, List<PropertyValue>> previous = items.put(gnd, properties);
+			itemsEstimate.add(1, estimateItem(gnd, properties));
+			if (previous != null) {
+				itemsEstimate.add(-1, -estimateItem(gnd, previous));
+			}
+		}
+	}
+
+	/**
+	 * Estimates the size of an item. The values with missing labels are
+	 * shared between the items and thus counted separately.
+	 *
+	 * @param gnd
+	 * @param properties
+	 * @return
+	 */
+	private long estimateItem(final String gnd, final Map<String, List<PropertyValue>> properties) {
+		long bytes = MemoryBudget.LINKED_HASH_MAP_ENTRY + MemoryBudget.string(gnd) + MemoryBudget.HASH_MAP;
+		for (final List<PropertyValue> values : properties.values()) {
+			bytes += MemoryBudget.HASH_MAP_ENTRY + MemoryBudget.list(values);
+			for (final PropertyValue value : values) {
+				if (value instanceof DateValue) {
+					bytes += MemoryBudget.DATE_VALUE;
+				} else if (value.valueId == null || value.valueId.isEmpty()) {
+					bytes += MemoryBudget.PROPERTY_VALUE + MemoryBudget.string(value.value);
+					if (value.labels != null) {
+						bytes += value.labels.estimateBytes();
+					}
+				}
+			}
+		}
+		return bytes;
+	}
+
 	/**
 	 * Retrieves all property values from the document and returns them as a set.  
 	 * 
@@ -226,6 +401,9 @@ public class WriterCollector implements EntityDocumentProcessor {
 			if (val instanceof EntityIdValue) {
 				return createPropertyValue(((EntityIdValue)val).getId(), null);
 			}
+			if (val instanceof TimeValue) {
+				return new DateValue(Dates.pack((TimeValue)val));
+			}
 			return createPropertyValue(null, WikidataUtils.getValue(val));
 		}
 		return null;
@@ -245,6 +423,7 @@ public class WriterCollector implements EntityDocumentProcessor {
 			}
 			final PropertyValue propertyValue = new PropertyValue(valueId);
 			this.valuesWithMissingLabels.put(valueId, propertyValue);
+			valuesWithMissingLabelsEstimate.add(1, MemoryBudget.HASH_MAP_ENTRY + MemoryBudget.PROPERTY_VALUE + MemoryBudget.string(valueId));
 			return propertyValue;
 		}
 		return new PropertyValue(null, value);
@@ -1,10 +1,12 @@
 package wikidata;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -31,6 +33,20 @@ import wikidata.WikidataUtils.PropertyValue;
  */
 public class WriterExtractor {
 
+	/*
+	 * suffixes of the files we write
+	 */
+	private static final String[] OUTPUT_SUFFIXES = { ".json", ".json.idx", ".graph", ".dict", ".date_of_birth.dates", ".date_of_death.dates" };
+	// the files are cached with this name and the suffixes
+	private static final String CACHED_OUTPUT_NAME = "gnditems";
+
+	/*
+	 * stages whose results are cached, see getStageKeys
+	 */
+	private static final int STAGE_ITEMS = 0;
+	private static final int STAGE_LABELS = 1;
+	private static final int STAGE_OUTPUT = 2;
+
 	public static void main(String[] args) throws IOException {
 		ExampleHelpers.configureLogging();
 
@@ -41,32 +57,180 @@ public class WriterExtractor {
 
 
 		final String outputfileName = basedir + "gnditems_" + new SimpleDateFormat("YYYY-MM-dd_HH:mm").format(new Date()) + ".json";
+		final String outputBaseName = outputfileName.substring(0, outputfileName.length() - ".json".length());
+
+		// results of earlier runs on the same dump
+		final String dump = ExampleHelpers.getMostRecentDumpFileName();
+		final StageCache cache = createCache(dump);
+		final String[] keys = cache == null ? null : getStageKeys(dump, new File(subclasses));
+
+		final File cachedOutput = cache == null ? null : cache.get(keys[STAGE_OUTPUT]);
+		if (cachedOutput != null) {
+			System.out.println("reusing output of an earlier run from " + cachedOutput);
+			for (final String suffix : OUTPUT_SUFFIXES) {
+				StageCache.link(new File(cachedOutput, CACHED_OUTPUT_NAME + suffix), new File(outputBaseName + suffix));
+			}
+		} else {
+			extract(subclasses, outputBaseName, dump, cache, keys);
+		}
+
+		if (ExampleHelpers.ELASTIC_URL != null) {
+			final ElasticExporter exporter = new ElasticExporter(ExampleHelpers.ELASTIC_URL, ExampleHelpers.ELASTIC_INDEX, ExampleHelpers.ELASTIC_CONCURRENT_REQUESTS);
+			try {
+				exporter.createIndex();
+				exporter.export(new File(outputfileName));
+			} finally {
+				exporter.close();
+			}
+			System.out.println(exporter);
+		}
 
+	}
+
+	/**
+	 * Runs the stages whose results are not cached and writes the output
+	 * files.
+	 *
+	 * @param subclasses
+	 *            file with the subclasses of writer
+	 * @param outputBaseName
+	 *            name of the output files without suffix
+	 * @param dump
+	 *            name of the dump the stage keys were derived from
+	 * @param cache
+	 *            or null to not cache
+	 * @param keys
+	 *            of the stages' results
+	 * @throws IOException
+	 */
+	private static void extract(final String subclasses, final String outputBaseName, final String dump, final StageCache cache, final String[] keys) throws IOException {
+		final String outputfileName = outputBaseName + ".json";
+
+		// keeps track of the size of the collected data
+		final MemoryBudget memoryBudget = ExampleHelpers.createMemoryBudget();
+		// whether the results computed so far belong to the keys
+		boolean cacheable = cache != null;
 
 		// collect all entities that have a GND id, a label, and an occupation property 
 		final WriterCollector writerCollector = new WriterCollector();
-		ExampleHelpers.processEntitiesFromWikidataDump(writerCollector);
+		memoryBudget.register(writerCollector.getMemoryEstimates());
+		if (cache != null && cache.load(keys[STAGE_ITEMS], writerCollector)) {
+			System.out.println("reusing items of an earlier run");
+		} else {
+			ExampleHelpers.processEntitiesFromWikidataDump(memoryBudget.monitor(writerCollector), WriterCollector.createParser(), 1, true);
+			cacheable = cacheable && isProcessed(dump);
+			if (cacheable) {
+				cache.save(keys[STAGE_ITEMS], writerCollector);
+			}
+		}
+		System.out.println(memoryBudget);
 
 		final Map<String, Map<String, List<PropertyValue>>> items = writerCollector.getItems();
 		final Map<String, PropertyValue> valuesWithMissingLabels = writerCollector.getValuesWithMissingLabels();
 		System.out.println("read " + items.size() + " items and " + valuesWithMissingLabels.size() + " property values with missing labels");
+		if (ExampleHelpers.SAMPLE_RATE < 1) {
+			System.out.println("extrapolated to the whole dump: " + ExampleHelpers.extrapolate(items.size()) + " items");
+		}
 
-		// collect the labels of some of the properties
+		// collect the labels of some of the properties (of all entities, since
+		// the values of the sampled items need not be sampled themselves)
 		final PropertyValueCollector propertyValueCollector = new PropertyValueCollector(valuesWithMissingLabels);
-		ExampleHelpers.processEntitiesFromWikidataDump(propertyValueCollector);
+		memoryBudget.register(propertyValueCollector.getMemoryEstimates());
+		if (cache != null && cache.load(keys[STAGE_LABELS], propertyValueCollector)) {
+			System.out.println("reusing labels of an earlier run");
+		} else {
+			ExampleHelpers.processEntitiesFromWikidataDump(memoryBudget.monitor(propertyValueCollector), PropertyValueCollector.createParser(), 1, false);
+			cacheable = cacheable && isProcessed(dump);
+			if (cacheable) {
+				cache.save(keys[STAGE_LABELS], propertyValueCollector);
+			}
+		}
 
-		final Map<String, String> coordinates = propertyValueCollector.getCoordinates();
+		final Coordinates coordinates = propertyValueCollector.getCoordinates();
 		System.out.println("read " + coordinates.size() + " coordinates");
 		System.out.println(countMissing(valuesWithMissingLabels) + " of " + valuesWithMissingLabels.size() + " still missing");
 
 		// add writer occupations
 		final Map<String, String> writerSubclasses = getSubclasses(subclasses);
+		memoryBudget.register(MemoryBudget.estimate("writer subclasses", writerSubclasses));
+		memoryBudget.check();
+		System.out.println(memoryBudget);
 		addWriterOccupations(items, writerSubclasses);
 
 		// print json
 		final JsonWriter jsonWriter = new JsonWriter(items, coordinates);
 		jsonWriter.write(outputfileName);
 
+		// index for the LookupServer
+		LookupIndex.build(new File(outputfileName));
+
+		// relations for network analysis
+		RelationGraph.write(items, new File(outputBaseName + ".graph"), new File(outputBaseName + ".dict"));
+
+		// indexes for date range queries
+		for (final String field : DateIndex.FIELDS) {
+			DateIndex.build(items, field, null).write(DateIndex.getIndexFile(new File(outputfileName), field));
+		}
+
+		if (cacheable) {
+			final File temporary = cache.begin(keys[STAGE_OUTPUT]);
+			for (final String suffix : OUTPUT_SUFFIXES) {
+				StageCache.link(new File(outputBaseName + suffix), new File(temporary, CACHED_OUTPUT_NAME + suffix));
+			}
+			cache.commit(keys[STAGE_OUTPUT], temporary);
+		}
+	}
+
+	/**
+	 * Returns the cache configured by {@link ExampleHelpers#CACHE_DIRECTORY},
+	 * or null if there is none or results can not be reused (no dump, or
+	 * processing stops after {@link ExampleHelpers#TIMEOUT_SEC}).
+	 *
+	 * @param dump
+	 * @return
+	 * @throws IOException
+	 */
+	private static StageCache createCache(final String dump) throws IOException {
+		if (ExampleHelpers.CACHE_DIRECTORY == null || ExampleHelpers.TIMEOUT_SEC > 0 || dump.isEmpty()) {
+			return null;
+		}
+		return new StageCache(new File(ExampleHelpers.CACHE_DIRECTORY));
+	}
+
+	/**
+	 * Derives the keys of the results of the stages. Each stage depends on
+	 * the previous one, its configuration, and the code that computes it.
+	 *
+	 * @param dump
+	 * @param subclasses
+	 * @return
+	 * @throws IOException
+	 */
+	private static String[] getStageKeys(final String dump, final File subclasses) throws IOException {
+		final String[] keys = new String[3];
+		keys[STAGE_ITEMS] = StageCache.key("items", dump,
+				Arrays.toString(ExampleHelpers.LANGUAGES),
+				Double.toString(ExampleHelpers.SAMPLE_RATE),
+				StageCache.codeVersion(WriterCollector.class, EntityFilter.class, PartialEntityParser.class, EntitySampler.class, WikidataUtils.class, Labels.class, Dates.class));
+		keys[STAGE_LABELS] = StageCache.key("labels", keys[STAGE_ITEMS], "unsampled",
+				StageCache.codeVersion(PropertyValueCollector.class, PartialEntityParser.class, Coordinates.class, Labels.class));
+		keys[STAGE_OUTPUT] = StageCache.key("output", keys[STAGE_LABELS],
+				StageCache.fileVersion(subclasses),
+				StageCache.codeVersion(WriterExtractor.class, JsonWriter.class, LookupIndex.class, RelationGraph.class, DateIndex.class, Dates.class));
+		return keys;
+	}
+
+	/**
+	 * Whether the dump the keys were derived from was processed last.
+	 * Results may only be cached if they were computed from that dump - a
+	 * new dump could have appeared in between.
+	 */
+	private static boolean isProcessed(final String dump) {
+		if (!dump.equals(ExampleHelpers.getLastDumpFileName())) {
+			System.err.println("processed " + ExampleHelpers.getLastDumpFileName() + " instead of " + dump + ", not caching the results");
+			return false;
+		}
+		return true;
 	}
 
 	private static void addWriterOccupations(final Map<String, Map<String, List<PropertyValue>>> items, final Map<String, String> writerSubclasses) {
@@ -76,7 +240,10 @@ public class WriterExtractor {
 			if (properties.containsKey("occupation")) {
 				for (final PropertyValue occup : properties.get("occupation")) {
 					if (writerSubclasses.containsKey(occup.valueId)) {
-						writerOccupations.add(new PropertyValue(occup.valueId, writerSubclasses.get(occup.valueId)));
+						final PropertyValue writerOccupation = new PropertyValue(occup.valueId, writerSubclasses.get(occup.valueId));
+						// the subclass file only has English labels, use the resolved ones for the others
+						writerOccupation.labels = occup.labels;
+						writerOccupations.add(writerOccupation);
 					}
 				}
 				if (!writerOccupations.isEmpty()) {
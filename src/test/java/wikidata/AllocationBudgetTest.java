@@ -0,0 +1,253 @@
+package wikidata;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.wikidata.wdtk.datamodel.helpers.Datamodel;
+import org.wikidata.wdtk.datamodel.helpers.ItemDocumentBuilder;
+import org.wikidata.wdtk.datamodel.helpers.StatementBuilder;
+import org.wikidata.wdtk.datamodel.interfaces.EntityDocumentProcessor;
+import org.wikidata.wdtk.datamodel.interfaces.ItemDocument;
+import org.wikidata.wdtk.datamodel.interfaces.ItemIdValue;
+import org.wikidata.wdtk.datamodel.interfaces.TimeValue;
+import org.wikidata.wdtk.datamodel.interfaces.Value;
+
+import wikidata.WikidataUtils.PropertyValue;
+
+/**
+ * Pushes a fixed corpus of synthetic items through each processor and
+ * measures how many bytes the processor allocates per item. Fails when a
+ * processor exceeds its budget, such that allocation regressions in the hot
+ * paths are noticed before a run over the full dump.
+ *
+ * The budgets are bytes per item of the synthetic corpus (about a third of
+ * which are humans, a tenth writers with a GND id) and include what the
+ * collectors retain. They leave 10-15% above what OpenJDK 17 allocates
+ * (the WriterCollector and the Downloader allocate about 20% less in some
+ * runs, depending on what the JIT inlines; the budgets are above the higher
+ * value). When a change legitimately needs more, raise the budget here in
+ * the same commit.
+ *
+ */
+public class AllocationBudgetTest {
+
+	private static final long BUDGET_WRITER_COLLECTOR = 480;
+	private static final long BUDGET_PROPERTY_VALUE_COLLECTOR = 152;
+	private static final long BUDGET_DOWNLOADER = 568;
+
+	// size of the synthetic corpus
+	private static final int ITEMS = 20000;
+	// fixed seed such that every run sees the same corpus
+	private static final long SEED = 4711;
+	// runs to warm up the JIT before measuring
+	private static final int WARMUP_RUNS = 5;
+	// measured runs, of which the smallest allocation counts (allocations
+	// by the JIT and class loading in between inflate single runs)
+	private static final int MEASURED_RUNS = 3;
+
+	private static final String[] OCCUPATIONS = { "Q36180", "Q49757", "Q28389", "Q1930187", "Q82955", "Q6625963" };
+	private static final String[] PLACES = { "Q64", "Q1794", "Q1726", "Q90", "Q84", "Q1055", "Q2090", "Q3806" };
+	private static final String[] SITES = { "enwiki", "dewiki", "frwiki", "commonswiki", "enwikiquote", "itwiki" };
+
+	private static List<ItemDocument> corpus;
+
+	@BeforeClass
+	public static void setUp() {
+		corpus = createCorpus(ITEMS, SEED);
+	}
+
+	@Test
+	public void testWriterCollector() {
+		check("WriterCollector", BUDGET_WRITER_COLLECTOR, new ProcessorFactory() {
+			public EntityDocumentProcessor create() {
+				return new WriterCollector();
+			}
+		});
+	}
+
+	@Test
+	public void testPropertyValueCollector() {
+		final Map<String, PropertyValue> valuesWithMissingLabels = getValuesWithMissingLabels(corpus);
+		check("PropertyValueCollector", BUDGET_PROPERTY_VALUE_COLLECTOR, new ProcessorFactory() {
+			public EntityDocumentProcessor create() {
+				return new PropertyValueCollector(valuesWithMissingLabels);
+			}
+		});
+	}
+
+	@Test
+	public void testDownloader() {
+		check("Downloader", BUDGET_DOWNLOADER, new ProcessorFactory() {
+			public EntityDocumentProcessor create() {
+				return new Downloader(new BufferedWriter(new NullWriter()));
+			}
+		});
+	}
+
+	/**
+	 * Runs the corpus through processors created by the factory and compares
+	 * the bytes allocated per item with the budget.
+	 */
+	private static void check(final String name, final long budget, final ProcessorFactory factory) {
+		for (int i = 0; i < WARMUP_RUNS; i++) {
+			run(factory.create(), corpus);
+		}
+		final com.sun.management.ThreadMXBean bean = getThreadMXBean();
+		final long threadId = Thread.currentThread().getId();
+		long perItem = Long.MAX_VALUE;
+		for (int i = 0; i < MEASURED_RUNS; i++) {
+			final EntityDocumentProcessor processor = factory.create();
+			final long before = bean.getThreadAllocatedBytes(threadId);
+			run(processor, corpus);
+			final long after = bean.getThreadAllocatedBytes(threadId);
+			perItem = Math.min(perItem, (after - before) / corpus.size());
+		}
+		assertTrue(name + " allocates " + perItem + " bytes/item, more than its budget of " + budget, perItem <= budget);
+	}
+
+	private static void run(final EntityDocumentProcessor processor, final List<ItemDocument> corpus) {
+		for (final ItemDocument item : corpus) {
+			processor.processItemDocument(item);
+		}
+	}
+
+	private static com.sun.management.ThreadMXBean getThreadMXBean() {
+		final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			throw new UnsupportedOperationException("this JVM can not measure allocated bytes per thread");
+		}
+		final com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+		if (!sunBean.isThreadAllocatedMemorySupported()) {
+			throw new UnsupportedOperationException("this JVM can not measure allocated bytes per thread");
+		}
+		sunBean.setThreadAllocatedMemoryEnabled(true);
+		return sunBean;
+	}
+
+	/**
+	 * The values WriterExtractor would hand over to the
+	 * PropertyValueCollector for this corpus.
+	 */
+	private static Map<String, PropertyValue> getValuesWithMissingLabels(final List<ItemDocument> corpus) {
+		final WriterCollector writerCollector = new WriterCollector();
+		run(writerCollector, corpus);
+		return new HashMap<String, PropertyValue>(writerCollector.getValuesWithMissingLabels());
+	}
+
+	/**
+	 * Creates a corpus of items that resembles the dump with respect to what
+	 * the processors look at: a mix of humans (P31=Q5), writers with
+	 * occupation and GND id, and places with coordinates.
+	 *
+	 * @param size
+	 * @param seed
+	 * @return
+	 */
+	static List<ItemDocument> createCorpus(final int size, final long seed) {
+		final Random random = new Random(seed);
+		final List<ItemDocument> corpus = new ArrayList<ItemDocument>(size);
+		for (int i = 0; i < size; i++) {
+			final ItemIdValue id = Datamodel.makeWikidataItemIdValue("Q" + (100 + i));
+			final ItemDocumentBuilder builder = ItemDocumentBuilder.forItemId(id);
+			if (random.nextInt(10) < 9) {
+				builder.withLabel("Label of " + id.getId(), "en");
+			}
+			builder.withLabel("Bezeichnung von " + id.getId(), "de");
+
+			final int kind = random.nextInt(10);
+			if (kind < 3) {
+				// human
+				builder.withStatement(statement(id, "P31", Datamodel.makeWikidataItemIdValue("Q5")));
+				for (int a = random.nextInt(3); a > 0; a--) {
+					builder.withAlias("Alias " + a + " of \"" + id.getId() + "\"", "en");
+				}
+				if (kind == 0) {
+					// writer with GND id
+					builder.withStatement(statement(id, "P227", Datamodel.makeStringValue(String.valueOf(118540000 + i))));
+					for (int o = 1 + random.nextInt(3); o > 0; o--) {
+						builder.withStatement(statement(id, "P106", item(OCCUPATIONS[random.nextInt(OCCUPATIONS.length)])));
+					}
+					builder.withStatement(statement(id, "P21", item(random.nextBoolean() ? "Q6581097" : "Q6581072")));
+					builder.withStatement(statement(id, "P569", date(1700 + random.nextInt(300))));
+					builder.withStatement(statement(id, "P19", item(PLACES[random.nextInt(PLACES.length)])));
+					if (random.nextBoolean()) {
+						builder.withStatement(statement(id, "P570", date(1750 + random.nextInt(250))));
+						builder.withStatement(statement(id, "P20", item(PLACES[random.nextInt(PLACES.length)])));
+					}
+				}
+				for (final String site : SITES) {
+					if (random.nextInt(3) == 0) {
+						builder.withSiteLink("Title of " + id.getId(), site);
+					}
+				}
+			} else if (kind < 5) {
+				// place
+				builder.withStatement(statement(id, "P625", Datamodel.makeGlobeCoordinatesValue(
+						random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180, 0.01, "http://www.wikidata.org/entity/Q2")));
+			} else {
+				builder.withStatement(statement(id, "P31", item("Q" + (1 + random.nextInt(1000)))));
+			}
+			corpus.add(builder.build());
+		}
+		// the places and occupations the writers refer to
+		for (final String place : PLACES) {
+			final ItemIdValue id = item(place);
+			corpus.add(ItemDocumentBuilder.forItemId(id)
+					.withLabel("Place " + place, "en")
+					.withStatement(statement(id, "P625", Datamodel.makeGlobeCoordinatesValue(50, 8, 0.01, "http://www.wikidata.org/entity/Q2")))
+					.build());
+		}
+		for (final String occupation : OCCUPATIONS) {
+			corpus.add(ItemDocumentBuilder.forItemId(item(occupation)).withLabel("Occupation " + occupation, "en").build());
+		}
+		return corpus;
+	}
+
+	private static org.wikidata.wdtk.datamodel.interfaces.Statement statement(final ItemIdValue subject, final String propertyId, final Value value) {
+		return StatementBuilder.forSubjectAndProperty(subject, Datamodel.makeWikidataPropertyIdValue(propertyId)).withValue(value).build();
+	}
+
+	private static ItemIdValue item(final String id) {
+		return Datamodel.makeWikidataItemIdValue(id);
+	}
+
+	private static TimeValue date(final int year) {
+		return Datamodel.makeTimeValue(year, (byte) 1, (byte) 1, TimeValue.CM_GREGORIAN_PRO);
+	}
+
+	private interface ProcessorFactory {
+		EntityDocumentProcessor create();
+	}
+
+	/**
+	 * Discards everything, such that the Downloader's output does not
+	 * distort the measurement.
+	 */
+	private static class NullWriter extends Writer {
+		@Override
+		public void write(final char[] cbuf, final int off, final int len) throws IOException {
+			// discard
+		}
+
+		@Override
+		public void flush() throws IOException {
+			// nothing to do
+		}
+
+		@Override
+		public void close() throws IOException {
+			// nothing to do
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package wikidata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChangeFeedTest {
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testDiff() throws IOException {
+		final File previous = write("previous.json",
+				"\"1\":{\"id\":\"Q1\",\"name\":\"Goethe\",\"occupation\":[\"poet\",\"novelist\"]}",
+				"\"2\":{\"id\":\"Q2\",\"name\":\"Schiller\"}",
+				"\"3\":{\"id\":\"Q3\",\"name\":\"Heine\"}");
+		// the fields and values of 1 in another order
+		final File current = write("current.json",
+				"\"1\":{\"occupation\":[\"novelist\",\"poet\"],\"name\":\"Goethe\",\"id\":\"Q1\"}",
+				"\"2\":{\"id\":\"Q2\",\"name\":\"Friedrich Schiller\"}",
+				"\"4\":{\"id\":\"Q4\",\"name\":\"Fontane\"}");
+		final File changes = new File(folder.getRoot(), "changes.ndjson");
+		new ChangeFeed().diff(previous, current, changes);
+
+		assertEquals(Arrays.asList(
+				"{\"op\":\"updated\",\"gnd\":\"2\",\"record\":{\"id\":\"Q2\",\"name\":\"Friedrich Schiller\"}}",
+				"{\"op\":\"removed\",\"gnd\":\"3\"}",
+				"{\"op\":\"added\",\"gnd\":\"4\",\"record\":{\"id\":\"Q4\",\"name\":\"Fontane\"}}"),
+				Files.readAllLines(changes.toPath()));
+	}
+
+	@Test
+	public void testDiffOfUnsortedFiles() throws IOException {
+		final File previous = write("previous.json",
+				"\"3\":{\"name\":\"Heine\"}",
+				"\"1\":{\"name\":\"Goethe\"}");
+		final File current = write("current.json",
+				"\"2\":{\"name\":\"Schiller\"}",
+				"\"1\":{\"name\":\"Goethe\"}");
+		final File changes = new File(folder.getRoot(), "changes.ndjson");
+		new ChangeFeed().diff(previous, current, changes);
+
+		assertEquals(Arrays.asList(
+				"{\"op\":\"added\",\"gnd\":\"2\",\"record\":{\"name\":\"Schiller\"}}",
+				"{\"op\":\"removed\",\"gnd\":\"3\"}"),
+				Files.readAllLines(changes.toPath()));
+	}
+
+	@Test
+	public void testExternalSort() throws IOException {
+		final List<String> records = new ArrayList<String>();
+		final List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < 10; i++) {
+			// 9, 8, ..., 0
+			final String gnd = Integer.toString(9 - i);
+			records.add("\"" + gnd + "\":{\"n\":" + i + "}");
+			expected.add(0, gnd);
+		}
+		final File file = write("unsorted.json", records.toArray(new String[records.size()]));
+		// four chunks
+		final File sorted = ChangeFeed.sortIfNeeded(file, 3);
+		assertNotEquals(file, sorted);
+		try {
+			final List<String> gnds = new ArrayList<String>();
+			final ChangeFeed.RecordReader reader = new ChangeFeed.RecordReader(sorted);
+			while (reader.hasNext()) {
+				gnds.add(reader.gnd);
+				assertEquals("{\"n\":" + (9 - Integer.parseInt(reader.gnd)) + "}", reader.record);
+				reader.next();
+			}
+			reader.close();
+			assertEquals(expected, gnds);
+			// sorted files are used as they are
+			assertEquals(sorted, ChangeFeed.sortIfNeeded(sorted, 3));
+		} finally {
+			sorted.delete();
+		}
+	}
+
+	private File write(final String name, final String... records) throws IOException {
+		final File file = new File(folder.getRoot(), name);
+		final StringBuilder buf = new StringBuilder("{");
+		for (int i = 0; i < records.length; i++) {
+			buf.append(i > 0 ? ",\n" : "\n").append(records[i]);
+		}
+		buf.append("\n}\n");
+		Files.write(file.toPath(), buf.toString().getBytes("utf-8"));
+		return file;
+	}
+}
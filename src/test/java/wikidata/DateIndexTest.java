@@ -0,0 +1,69 @@
+package wikidata;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.wikidata.wdtk.datamodel.interfaces.TimeValue;
+
+import wikidata.WikidataUtils.DateValue;
+import wikidata.WikidataUtils.PropertyValue;
+
+public class DateIndexTest {
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testBetweenYears() throws IOException {
+		final Map<String, Map<String, List<PropertyValue>>> items = new LinkedHashMap<String, Map<String, List<PropertyValue>>>();
+		addItem(items, "118540238", new DateValue(Dates.pack(1749, 8, 28, TimeValue.PREC_DAY)));
+		addItem(items, "118607626", new DateValue(Dates.pack(1759, 11, 10, TimeValue.PREC_DAY)));
+		addItem(items, "118553569", new DateValue(Dates.pack(1797, 12, 13, TimeValue.PREC_DAY)));
+		addItem(items, "118529579", new DateValue(Dates.pack(1800, 0, 0, TimeValue.PREC_YEAR)));
+		addItem(items, "118572121", new DateValue(Dates.pack(1850, 12, 31, TimeValue.PREC_DAY)));
+		addItem(items, "118500775", new DateValue(Dates.pack(1851, 1, 1, TimeValue.PREC_DAY)));
+		// no date
+		items.put("118613723", new HashMap<String, List<PropertyValue>>());
+
+		final File jsonFile = new File(folder.getRoot(), "gnditems.json");
+		final File indexFile = DateIndex.getIndexFile(jsonFile, "date_of_birth");
+		assertEquals("gnditems.date_of_birth.dates", indexFile.getName());
+		final DateIndex built = DateIndex.build(items, "date_of_birth", null);
+		built.write(indexFile);
+
+		for (final DateIndex index : new DateIndex[] { built, new DateIndex(indexFile) }) {
+			assertEquals(6, index.size());
+			assertEquals(Arrays.asList("118553569", "118529579", "118572121"), index.betweenYears(1790, 1850));
+			assertEquals(Arrays.asList("118540238", "118607626"), index.betweenYears(1700, 1759));
+			assertEquals(Arrays.asList("118529579"), index.betweenYears(1800, 1800));
+			assertEquals(Collections.emptyList(), index.betweenYears(1900, 2000));
+			assertEquals(6, index.between(Long.MIN_VALUE, Long.MAX_VALUE).size());
+		}
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		final File indexFile = folder.newFile("empty.dates");
+		DateIndex.build(new HashMap<String, Map<String, List<PropertyValue>>>(), "date_of_death", null).write(indexFile);
+		final DateIndex index = new DateIndex(indexFile);
+		assertEquals(0, index.size());
+		assertEquals(Collections.emptyList(), index.betweenYears(1700, 1900));
+	}
+
+	private static void addItem(final Map<String, Map<String, List<PropertyValue>>> items, final String gnd, final PropertyValue date) {
+		final Map<String, List<PropertyValue>> properties = new HashMap<String, List<PropertyValue>>();
+		properties.put("date_of_birth", Collections.singletonList(date));
+		items.put(gnd, properties);
+	}
+}
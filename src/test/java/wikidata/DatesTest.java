@@ -0,0 +1,37 @@
+package wikidata;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.wikidata.wdtk.datamodel.helpers.Datamodel;
+import org.wikidata.wdtk.datamodel.interfaces.TimeValue;
+
+public class DatesTest {
+
+	@Test
+	public void testPack() {
+		assertEquals("1749-08-28", Dates.format(Dates.pack(time(1749, 8, 28, TimeValue.PREC_DAY, TimeValue.CM_GREGORIAN_PRO))));
+		assertEquals("1749-00-00", Dates.format(Dates.pack(time(1749, 8, 28, TimeValue.PREC_YEAR, TimeValue.CM_GREGORIAN_PRO))));
+		// the Julian date of Shakespeare's death
+		assertEquals("1616-05-03", Dates.format(Dates.pack(time(1616, 4, 23, TimeValue.PREC_DAY, TimeValue.CM_JULIAN_PRO))));
+	}
+
+	@Test
+	public void testInvalidDatesLosePrecision() {
+		// as found in dumps: unknown month and day with day precision
+		assertDate("1900-00-00", TimeValue.PREC_YEAR, Dates.pack(time(1900, 0, 0, TimeValue.PREC_DAY, TimeValue.CM_GREGORIAN_PRO)));
+		assertDate("1900-00-00", TimeValue.PREC_YEAR, Dates.pack(1900, 13, 1, TimeValue.PREC_DAY));
+		assertDate("1900-05-00", TimeValue.PREC_MONTH, Dates.pack(1900, 5, 32, TimeValue.PREC_DAY));
+		assertDate("1900-05-00", TimeValue.PREC_MONTH, Dates.pack(time(1900, 5, 0, TimeValue.PREC_DAY, TimeValue.CM_JULIAN_PRO)));
+		assertDate("1900-05-01", TimeValue.PREC_SECOND, Dates.pack(1900, 5, 1, 15));
+	}
+
+	private static void assertDate(final String expected, final int precision, final long date) {
+		assertEquals(expected, Dates.format(date));
+		assertEquals(precision, Dates.getPrecision(date));
+	}
+
+	private static TimeValue time(final long year, final int month, final int day, final int precision, final String calendarModel) {
+		return Datamodel.makeTimeValue(year, (byte) month, (byte) day, (byte) 0, (byte) 0, (byte) 0, (byte) precision, 0, 0, 0, calendarModel);
+	}
+}
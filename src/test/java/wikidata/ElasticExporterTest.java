@@ -0,0 +1,283 @@
+package wikidata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the {@link ElasticExporter} against a local HTTP server that stands
+ * in for Elasticsearch and answers bulk requests like it does.
+ */
+public class ElasticExporterTest {
+
+	private static final Pattern ID = Pattern.compile("\"_id\":\"([^\"]+)\"");
+
+	private HttpServer server;
+	private ExecutorService serverThreads;
+	private String url;
+
+	// settings of the stand-in server
+	// status of a document on its first attempt (201 if not given)
+	private final Map<String, Integer> firstStatus = new ConcurrentHashMap<String, Integer>();
+	// number of bulk requests to reject as a whole
+	private volatile int rejectRequests = 0;
+	// status to answer all bulk requests with (0 for none)
+	private volatile int requestStatus = 0;
+	// larger bulk requests are answered with 413 (0 for no limit)
+	private volatile int maxRequestBytes = 0;
+
+	// what the stand-in server got
+	private final List<List<String>> requests = Collections.synchronizedList(new ArrayList<List<String>>());
+	private final AtomicInteger received = new AtomicInteger();
+	private final Map<String, String> documents = new ConcurrentHashMap<String, String>();
+	private volatile String mapping;
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 16);
+		server.createContext("/", new HttpHandler() {
+			public void handle(final HttpExchange exchange) throws IOException {
+				serve(exchange);
+			}
+		});
+		serverThreads = Executors.newCachedThreadPool();
+		server.setExecutor(serverThreads);
+		server.start();
+		url = "http://localhost:" + server.getAddress().getPort();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+		serverThreads.shutdownNow();
+	}
+
+	private void serve(final HttpExchange exchange) throws IOException {
+		final byte[] request = readAll(exchange.getRequestBody());
+		final String body = new String(request, "utf-8");
+		if (!"PUT".equals(exchange.getRequestMethod())) {
+			received.incrementAndGet();
+		}
+		final String response;
+		int code = 200;
+		if ("PUT".equals(exchange.getRequestMethod())) {
+			mapping = body;
+			response = "{\"acknowledged\":true}";
+		} else if (requestStatus > 0) {
+			code = requestStatus;
+			response = "{\"error\":{\"type\":\"illegal_argument_exception\"},\"status\":" + code + "}";
+		} else if (maxRequestBytes > 0 && request.length > maxRequestBytes) {
+			code = 413;
+			response = "";
+		} else if (rejectRequests > 0) {
+			rejectRequests--;
+			code = 429;
+			response = "{\"error\":{\"type\":\"es_rejected_execution_exception\"},\"status\":429}";
+		} else {
+			final String[] lines = body.split("\n");
+			final List<String> ids = new ArrayList<String>();
+			final StringBuilder items = new StringBuilder();
+			boolean errors = false;
+			for (int i = 0; i < lines.length; i += 2) {
+				final Matcher m = ID.matcher(lines[i]);
+				assertTrue(lines[i], m.find());
+				final String id = m.group(1);
+				ids.add(id);
+				final Integer first = firstStatus.remove(id);
+				final int status = first != null ? first.intValue() : 201;
+				items.append(i > 0 ? "," : "").append("{\"index\":{\"_index\":\"gnditems\",\"_id\":\"").append(id).append("\",");
+				if (status < 300) {
+					documents.put(id, lines[i + 1]);
+					items.append("\"_version\":1,\"result\":\"created\",\"_shards\":{\"total\":2,\"successful\":1,\"failed\":0},");
+				} else {
+					errors = true;
+					items.append("\"error\":{\"type\":\"x\",\"reason\":\"rejected\",\"caused_by\":{\"type\":\"y\",\"reason\":\"z\"}},");
+				}
+				items.append("\"status\":").append(status).append("}}");
+			}
+			requests.add(ids);
+			response = "{\"took\":3,\"errors\":" + errors + ",\"items\":[" + items + "]}";
+		}
+		final byte[] bytes = response.getBytes("utf-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(code, bytes.length > 0 ? bytes.length : -1);
+		final OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	@Test
+	public void testExport() throws IOException {
+		final ElasticExporter exporter = new ElasticExporter(url + "/", "gnditems", 2);
+		exporter.createIndex();
+		exporter.add("118540238", "{\"name\":\"Goethe\"}");
+		exporter.add("118607626", "{\"name\":\"Schiller\"}");
+		exporter.close();
+
+		assertTrue(mapping, mapping.contains("\"geo_point\""));
+		assertEquals(1, requests.size());
+		assertEquals(2, exporter.getIndexed());
+		assertEquals(0, exporter.getRejected());
+		assertEquals("{\"name\":\"Goethe\"}", documents.get("118540238"));
+		assertEquals("{\"name\":\"Schiller\"}", documents.get("118607626"));
+	}
+
+	@Test
+	public void testRetryTooMany() throws IOException {
+		firstStatus.put("2", 429);
+		firstStatus.put("4", 429);
+		final ElasticExporter exporter = new ElasticExporter(url, "gnditems", 2);
+		for (int i = 0; i < 5; i++) {
+			exporter.add(Integer.toString(i), "{}");
+		}
+		exporter.close();
+
+		// only the rejected documents are sent again
+		assertEquals(2, requests.size());
+		assertEquals(5, requests.get(0).size());
+		assertEquals(Arrays.asList("2", "4"), requests.get(1));
+		assertEquals(5, exporter.getIndexed());
+		assertEquals(5, documents.size());
+		// halved for the rejection, then grown by a quarter for the fast retry
+		assertEquals((1 << 20) / 2 * 5 / 4, exporter.getBatchBytes());
+	}
+
+	@Test
+	public void testRetryRejectedRequest() throws IOException {
+		rejectRequests = 2;
+		final ElasticExporter exporter = new ElasticExporter(url, "gnditems", 2);
+		exporter.add("1", "{}");
+		exporter.add("2", "{}");
+		exporter.close();
+
+		assertEquals(1, requests.size());
+		assertEquals(2, exporter.getIndexed());
+		assertEquals((1 << 20) / 4 * 5 / 4, exporter.getBatchBytes());
+	}
+
+	@Test
+	public void testOtherErrorsAreNotRetried() throws IOException {
+		firstStatus.put("2", 400);
+		final ElasticExporter exporter = new ElasticExporter(url, "gnditems", 2);
+		for (int i = 0; i < 3; i++) {
+			exporter.add(Integer.toString(i), "{}");
+		}
+		exporter.close();
+
+		assertEquals(1, requests.size());
+		assertEquals(2, exporter.getIndexed());
+		assertEquals(1, exporter.getRejected());
+	}
+
+	@Test
+	public void testClientErrorsFailFast() throws IOException {
+		requestStatus = 400;
+		final ElasticExporter exporter = new ElasticExporter(url, "gnditems", 2);
+		exporter.add("1", "{}");
+		exporter.add("2", "{}");
+		try {
+			exporter.close();
+			fail("error of the request not reported");
+		} catch (final IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("400"));
+		}
+		// not retried
+		assertEquals(1, received.get());
+		assertEquals(0, exporter.getIndexed());
+	}
+
+	@Test
+	public void testTooLargeRequestsAreSplit() throws IOException {
+		final StringBuilder source = new StringBuilder("{\"text\":\"");
+		for (int i = 0; i < 1000; i++) {
+			source.append('x');
+		}
+		source.append("\"}");
+		// room for two documents per request
+		maxRequestBytes = 2500;
+		final ElasticExporter exporter = new ElasticExporter(url, "gnditems", 1);
+		for (int i = 0; i < 8; i++) {
+			exporter.add(Integer.toString(i), source.toString());
+		}
+		exporter.add("large", source.toString() + source.toString() + source.toString());
+		exporter.close();
+
+		// halved until the requests fit, the large document alone does not
+		assertEquals(8, exporter.getIndexed());
+		assertEquals(1, exporter.getRejected());
+		assertEquals(8, documents.size());
+		assertFalse(documents.containsKey("large"));
+		for (final List<String> ids : requests) {
+			assertTrue(ids.toString(), ids.size() <= 2);
+		}
+		assertTrue(exporter.getBatchBytes() < 1 << 20);
+	}
+
+	@Test
+	public void testBatchesGrow() throws IOException {
+		final ElasticExporter exporter = new ElasticExporter(url, "gnditems", 1);
+		final StringBuilder source = new StringBuilder("{\"text\":\"");
+		for (int i = 0; i < 10000; i++) {
+			source.append('x');
+		}
+		source.append("\"}");
+		for (int i = 0; i < 500; i++) {
+			exporter.add(Integer.toString(i), source.toString());
+		}
+		exporter.close();
+
+		assertEquals(500, exporter.getIndexed());
+		// grown by a quarter after each fast request
+		int expected = 1 << 20;
+		for (int r = 0; r < requests.size(); r++) {
+			expected += expected / 4;
+		}
+		assertTrue(requests.size() > 3);
+		// the second batch may have been filled while the first was in flight
+		assertTrue(requests.get(0).size() < requests.get(2).size());
+		assertEquals(expected, exporter.getBatchBytes());
+	}
+
+	private static byte[] readAll(final InputStream in) throws IOException {
+		try {
+			final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			final byte[] b = new byte[1 << 12];
+			int read;
+			while ((read = in.read(b)) > 0) {
+				buf.write(b, 0, read);
+			}
+			return buf.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package wikidata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.wikidata.wdtk.datamodel.helpers.Datamodel;
+import org.wikidata.wdtk.datamodel.helpers.DatamodelMapper;
+import org.wikidata.wdtk.datamodel.interfaces.EntityDocument;
+import org.wikidata.wdtk.datamodel.interfaces.EntityDocumentProcessor;
+import org.wikidata.wdtk.datamodel.interfaces.ItemDocument;
+import org.wikidata.wdtk.datamodel.interfaces.PropertyDocument;
+
+public class EntityPipelineTest {
+
+	private static List<ItemDocument> corpus;
+	private static byte[] dump;
+
+	@BeforeClass
+	public static void setUp() throws IOException {
+		corpus = AllocationBudgetTest.createCorpus(2000, 1);
+		final DatamodelMapper mapper = new DatamodelMapper(Datamodel.SITE_WIKIDATA);
+		final StringBuilder buf = new StringBuilder("[\n");
+		for (final ItemDocument doc : corpus) {
+			buf.append(mapper.writeValueAsString(doc)).append(",\n");
+		}
+		buf.append("]\n");
+		dump = buf.toString().getBytes("utf-8");
+	}
+
+	@Test
+	public void testOrder() throws IOException {
+		final EntityPipeline pipeline = new EntityPipeline(4, 1, 2);
+		final List<String> ids = new ArrayList<String>();
+		pipeline.addStage(collect(ids));
+		pipeline.process(new ByteArrayInputStream(dump));
+
+		final List<String> expected = new ArrayList<String>();
+		for (final ItemDocument doc : corpus) {
+			expected.add(doc.getEntityId().getId());
+		}
+		assertEquals(expected, ids);
+	}
+
+	@Test(timeout = 60000)
+	public void testParserFailureInOrderedMode() throws IOException {
+		final String broken = corpus.get(100).getEntityId().getId();
+		final PartialEntityParser parser = new PartialEntityParser() {
+			@Override
+			public EntityDocument parse(final String json) throws IOException {
+				if (json.startsWith("{\"type\":\"item\",\"id\":\"" + broken + "\"")) {
+					// fail late, when the later batches wait for this one and the reader for permits
+					try {
+						Thread.sleep(1000);
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					throw new IllegalStateException("cannot bind " + broken);
+				}
+				return super.parse(json);
+			}
+		};
+		final EntityPipeline pipeline = new EntityPipeline(4, 1, 2, parser);
+		pipeline.addStage(collect(new ArrayList<String>()));
+		try {
+			pipeline.process(new ByteArrayInputStream(dump));
+			fail("failure of the parser not reported");
+		} catch (final IllegalStateException e) {
+			assertEquals("cannot bind " + broken, e.getMessage());
+		}
+	}
+
+	private static EntityDocumentProcessor collect(final List<String> ids) {
+		return new EntityDocumentProcessor() {
+			public void processItemDocument(final ItemDocument itemDocument) {
+				ids.add(itemDocument.getEntityId().getId());
+			}
+
+			public void processPropertyDocument(final PropertyDocument propertyDocument) {
+				// not in the corpus
+			}
+		};
+	}
+}
@@ -0,0 +1,130 @@
+package wikidata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class GazetteerTaggerTest {
+
+	@Test
+	public void testTokenBoundaries() {
+		final GazetteerTagger tagger = tagger("Goethe", "5879", "Anna", "1");
+		assertTags(tagger, "Goethe", "0-6:Goethe[Q5879]");
+		assertTags(tagger, "Goethe's Faust. (Goethe)", "0-6:Goethe[Q5879]", "17-23:Goethe[Q5879]");
+		// not at a token start or end
+		assertTags(tagger, "Goethes XGoethe Goethe2 Annabelle Marianna");
+		assertTags(tagger, "Anna-Goethe", "0-4:Anna[Q1]", "5-11:Goethe[Q5879]");
+		assertTags(tagger, "\u00dcber Goethe und Anna", "5-11:Goethe[Q5879]", "16-20:Anna[Q1]");
+		assertTags(tagger, "\u00dcberGoethe");
+	}
+
+	@Test
+	public void testLeftmostLongest() {
+		final GazetteerTagger tagger = tagger("Johann Wolfgang", "1", "Johann Wolfgang von Goethe", "5879", "Wolfgang von Goethe", "2", "Goethe", "3");
+		assertTags(tagger, "Johann Wolfgang von Goethe wrote", "0-26:Johann Wolfgang von Goethe[Q5879]");
+		// the longest name does not continue, the shorter one matches
+		assertTags(tagger, "Johann Wolfgang von Schiller", "0-15:Johann Wolfgang[Q1]");
+		assertTags(tagger, "Johann Wolfgang von Goethes", "0-15:Johann Wolfgang[Q1]");
+		assertTags(tagger, "Wolfgang von Goethe", "0-19:Wolfgang von Goethe[Q2]");
+		assertTags(tagger, "von Goethe", "4-10:Goethe[Q3]");
+	}
+
+	@Test
+	public void testCaseFolding() {
+		final GazetteerTagger tagger = tagger("\u00c9mile Zola", "504", "GOETHE", "5879", "goethe", "5879", "Goethe", "100");
+		assertTags(tagger, "\u00c9MILE ZOLA and \u00e9mile zola", "0-10:\u00c9MILE ZOLA[Q504]", "15-25:\u00e9mile zola[Q504]");
+		// the names of all spellings, without duplicates
+		assertTags(tagger, "gOeThE", "0-6:gOeThE[Q100, Q5879]");
+	}
+
+	@Test
+	public void testShortNamesAreIgnored() {
+		final GazetteerTagger tagger = tagger("Li", "1", " Bo ", "2", "Eco", "3");
+		assertTags(tagger, "Li Bo and Eco", "10-13:Eco[Q3]");
+	}
+
+	@Test
+	public void testTagAllKeepsOrder() throws IOException {
+		final GazetteerTagger tagger = tagger("Goethe", "5879", "Schiller", "22670");
+		final StringBuilder documents = new StringBuilder();
+		final StringBuilder expected = new StringBuilder();
+		final Random random = new Random(42);
+		for (int line = 1; line <= 10000; line++) {
+			final String document = random.nextBoolean() ? "Schiller und Goethe" : (random.nextBoolean() ? "Goethe" : "niemand");
+			documents.append(document).append('\n');
+			for (final GazetteerTagger.Mention mention : tagger.tag(document)) {
+				expected.append(line).append('\t').append(mention.start).append('\t').append(mention.end).append('\t').append(mention.text).append('\t').append(mention.ids[0]).append('\n');
+			}
+		}
+		final StringWriter out = new StringWriter();
+		tagger.tagAll(new BufferedReader(new StringReader(documents.toString())), out, 4);
+		assertEquals(expected.toString(), out.toString());
+	}
+
+	@Test
+	public void testThroughput() {
+		// 100000 names of two words from the letters of the text
+		final Random random = new Random(42);
+		final Map<String, List<Integer>> names = new HashMap<String, List<Integer>>();
+		for (int i = 0; i < 100000; i++) {
+			names.put(word(random) + " " + word(random), Arrays.asList(i));
+		}
+		final GazetteerTagger tagger = new GazetteerTagger(names);
+		final StringBuilder text = new StringBuilder();
+		while (text.length() < 4 << 20) {
+			text.append(word(random)).append(random.nextInt(10) == 0 ? ". " : " ");
+		}
+		final String document = text.toString();
+		// warm up
+		int mentions = tagger.tag(document).size();
+		final long start = System.nanoTime();
+		for (int i = 0; i < 4; i++) {
+			mentions += tagger.tag(document).size();
+		}
+		final double seconds = (System.nanoTime() - start) / 1e9;
+		final double mbPerSecond = 4 * document.length() / 1e6 / seconds;
+		assertTrue(mentions > 0);
+		// measured 12-15 MB/s on one core (most words start a name)
+		assertTrue(mbPerSecond + " MB/s", mbPerSecond > 2);
+	}
+
+	private static String word(final Random random) {
+		final char[] word = new char[3 + random.nextInt(5)];
+		for (int i = 0; i < word.length; i++) {
+			word[i] = (char) ('a' + random.nextInt(6));
+		}
+		word[0] = Character.toUpperCase(word[0]);
+		return new String(word);
+	}
+
+	/**
+	 * Builds a tagger from pairs of name and numeric id.
+	 */
+	private static GazetteerTagger tagger(final String... namesAndIds) {
+		final Map<String, List<Integer>> names = new HashMap<String, List<Integer>>();
+		for (int i = 0; i < namesAndIds.length; i += 2) {
+			names.put(namesAndIds[i], new ArrayList<Integer>(Arrays.asList(Integer.valueOf(namesAndIds[i + 1]))));
+		}
+		return new GazetteerTagger(names);
+	}
+
+	private static void assertTags(final GazetteerTagger tagger, final String text, final String... expected) {
+		final List<String> mentions = new ArrayList<String>();
+		for (final GazetteerTagger.Mention mention : tagger.tag(text)) {
+			mentions.add(mention.toString());
+		}
+		assertEquals(text, Arrays.asList(expected), mentions);
+	}
+}
@@ -0,0 +1,140 @@
+package wikidata;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+import org.wikidata.wdtk.datamodel.helpers.Datamodel;
+import org.wikidata.wdtk.datamodel.helpers.DatamodelMapper;
+import org.wikidata.wdtk.datamodel.helpers.ItemDocumentBuilder;
+import org.wikidata.wdtk.datamodel.helpers.StatementBuilder;
+import org.wikidata.wdtk.datamodel.interfaces.ItemIdValue;
+import org.wikidata.wdtk.datamodel.interfaces.Statement;
+import org.wikidata.wdtk.datamodel.interfaces.Value;
+import org.wikidata.wdtk.dumpfiles.MwRevision;
+
+public class HistoryCollectorTest {
+
+	private static final DatamodelMapper MAPPER = new DatamodelMapper(Datamodel.SITE_WIKIDATA);
+
+	@Test
+	public void testChanges() throws IOException {
+		final StringWriter out = new StringWriter();
+		final HistoryCollector collector = new HistoryCollector(out);
+
+		// Goethe
+		collector.processRevision(new Revision(1, "Q5879", 11, json("Q5879", "Goethe", "Q36180", "118540238")));
+		collector.processRevision(new Revision(1, "Q5879", 12, json("Q5879", "Goethe", "Q36180,Q49757", "118540238")));
+		// only the label changed
+		collector.processRevision(new Revision(1, "Q5879", 13, json("Q5879", "Johann Wolfgang von Goethe", "Q36180,Q49757", "118540238")));
+		collector.processRevision(new Revision(1, "Q5879", 14, json("Q5879", "Johann Wolfgang von Goethe", null, "118540238")));
+		// Schiller: the values of Goethe are forgotten
+		collector.processRevision(new Revision(2, "Q22670", 21, "{\"no\":\"properties\"}"));
+		collector.processRevision(new Revision(2, "Q22670", 22, json("Q22670", "Schiller", "Q36180", null)));
+		collector.processRevision(new Revision(2, "Q22670", 23, "{\"P106\":"));
+		collector.processRevision(new Revision(2, "Q22670", 24, json("Q22670", "Friedrich Schiller", "Q36180", null)));
+
+		assertEquals("Q5879\t11\t2014-01-11T00:00:00Z\tP106\t\tQ36180\n"
+				+ "Q5879\t11\t2014-01-11T00:00:00Z\tP227\t\t118540238\n"
+				+ "Q5879\t12\t2014-01-12T00:00:00Z\tP106\tQ36180\tQ36180|Q49757\n"
+				+ "Q5879\t14\t2014-01-14T00:00:00Z\tP106\tQ36180|Q49757\t\n"
+				+ "Q22670\t22\t2014-01-22T00:00:00Z\tP106\t\tQ36180\n", out.toString());
+		// the revision without the properties was skipped, the broken one counted
+		assertEquals(6, collector.getParsedCount());
+		assertEquals(1, collector.getBrokenCount());
+	}
+
+	/**
+	 * Returns the JSON of an item with the label, occupations (comma
+	 * separated), and GND id (or without the statements, if null).
+	 */
+	private static String json(final String id, final String label, final String occupations, final String gnd) throws IOException {
+		final ItemIdValue subject = Datamodel.makeWikidataItemIdValue(id);
+		final ItemDocumentBuilder builder = ItemDocumentBuilder.forItemId(subject).withLabel(label, "en");
+		if (occupations != null) {
+			for (final String occupation : occupations.split(",")) {
+				builder.withStatement(statement(subject, "P106", Datamodel.makeWikidataItemIdValue(occupation)));
+			}
+		}
+		if (gnd != null) {
+			builder.withStatement(statement(subject, "P227", Datamodel.makeStringValue(gnd)));
+		}
+		return MAPPER.writeValueAsString(builder.build());
+	}
+
+	private static Statement statement(final ItemIdValue subject, final String property, final Value value) {
+		return StatementBuilder.forSubjectAndProperty(subject, Datamodel.makeWikidataPropertyIdValue(property)).withValue(value).build();
+	}
+
+	private static class Revision implements MwRevision {
+		private final int pageId;
+		private final String title;
+		private final long revisionId;
+		private final String text;
+
+		public Revision(final int pageId, final String title, final long revisionId, final String text) {
+			this.pageId = pageId;
+			this.title = title;
+			this.revisionId = revisionId;
+			this.text = text;
+		}
+
+		public String getPrefixedTitle() {
+			return title;
+		}
+
+		public String getTitle() {
+			return title;
+		}
+
+		public int getNamespace() {
+			return 0;
+		}
+
+		public int getPageId() {
+			return pageId;
+		}
+
+		public long getRevisionId() {
+			return revisionId;
+		}
+
+		public long getParentRevisionId() {
+			return revisionId - 1;
+		}
+
+		public String getTimeStamp() {
+			return "2014-01-" + revisionId + "T00:00:00Z";
+		}
+
+		public String getText() {
+			return text;
+		}
+
+		public String getModel() {
+			return MwRevision.MODEL_WIKIBASE_ITEM;
+		}
+
+		public String getFormat() {
+			return "application/json";
+		}
+
+		public String getComment() {
+			return "";
+		}
+
+		public String getContributor() {
+			return "Tester";
+		}
+
+		public int getContributorId() {
+			return 1;
+		}
+
+		public boolean hasRegisteredContributor() {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package wikidata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LookupServerTest {
+
+	private static final String JSON = "{\"118540238\":{\"id\":\"Q5879\",\"name\":\"Goethe\"},"
+			+ "\"118540239\":{\"id\":\"Q5879\",\"name\":\"Goethe (2)\"},"
+			+ "\"118607626\":{\"id\":\"Q22670\",\"name\":\"Schiller\"}}";
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private LookupServer server;
+
+	@Before
+	public void setUp() throws IOException {
+		final File jsonFile = folder.newFile("gnditems.json");
+		final OutputStream out = new FileOutputStream(jsonFile);
+		try {
+			out.write(JSON.getBytes("utf-8"));
+		} finally {
+			out.close();
+		}
+		LookupIndex.build(jsonFile);
+		server = new LookupServer(new LookupIndex(jsonFile), 0, 2, 10);
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void testGnd() throws IOException {
+		assertResponse(200, "{\"118607626\":{\"id\":\"Q22670\",\"name\":\"Schiller\"}}", "/gnd/118607626");
+	}
+
+	@Test
+	public void testWikidata() throws IOException {
+		assertResponse(200, "{\"118540238\":{\"id\":\"Q5879\",\"name\":\"Goethe\"},\"118540239\":{\"id\":\"Q5879\",\"name\":\"Goethe (2)\"}}", "/wikidata/Q5879");
+	}
+
+	@Test
+	public void testMissing() throws IOException {
+		assertResponse(404, "{}", "/gnd/1");
+	}
+
+	@Test
+	public void testMissesDoNotEvictRecords() {
+		assertEquals(1, server.lookup("gnd:", "118607626").size());
+		// more misses than the cache holds
+		for (int i = 0; i < 100; i++) {
+			assertEquals(0, server.lookup("gnd:", Integer.toString(i)).size());
+			assertEquals(0, server.lookup("wikidata:", "Q" + i).size());
+		}
+		assertTrue(server.isCached("gnd:", "118607626"));
+		assertFalse(server.isCached("gnd:", "1"));
+		assertEquals(1, server.lookup("gnd:", "118607626").size());
+	}
+
+	@Test
+	public void testLookupReturnsRecordsOnce() throws IOException {
+		// in the order they were first found
+		assertResponse(200, "{\"118540238\":{\"id\":\"Q5879\",\"name\":\"Goethe\"},\"118607626\":{\"id\":\"Q22670\",\"name\":\"Schiller\"},"
+				+ "\"118540239\":{\"id\":\"Q5879\",\"name\":\"Goethe (2)\"}}",
+				"/lookup?gnd=118540238,118607626&wikidata=Q5879,Q22670&gnd=118540238");
+	}
+
+	@Test
+	public void testMalformedRequest() throws IOException {
+		// sent over a plain socket, since URL would reject the escape
+		final Socket socket = new Socket("localhost", server.getPort());
+		try {
+			socket.getOutputStream().write("GET /lookup?gnd=%zz HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes("utf-8"));
+			final String response = new String(readAll(socket.getInputStream()), "utf-8");
+			assertEquals("HTTP/1.1 400", response.substring(0, "HTTP/1.1 400".length()));
+		} finally {
+			socket.close();
+		}
+	}
+
+	private void assertResponse(final int status, final String body, final String path) throws IOException {
+		final HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + path).openConnection();
+		assertEquals(status, connection.getResponseCode());
+		final InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+		assertEquals(body, new String(readAll(in), "utf-8"));
+	}
+
+	private static byte[] readAll(final InputStream in) throws IOException {
+		try {
+			final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			final byte[] b = new byte[4096];
+			int read;
+			while ((read = in.read(b)) > 0) {
+				buf.write(b, 0, read);
+			}
+			return buf.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package wikidata;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class NameIndexTest {
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testBlockBoundaries() throws IOException {
+		// name000 ... name099, three blocks and a partial one
+		final StringBuilder tsv = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			tsv.append("Q").append(1000 + i).append("\t").append(name(i)).append("\n");
+		}
+		final NameIndex index = build(tsv.toString());
+		assertEquals(100, index.getNameCount());
+
+		// the last name of a block, the first and the second of the next one
+		for (final int i : new int[] { 0, 30, 31, 32, 33, 63, 64, 65, 95, 96, 99 }) {
+			assertEquals(name(i), Arrays.asList("Q" + (1000 + i)), index.exact(name(i)));
+			assertEquals(name(i), Arrays.asList("Q" + (1000 + i)), index.caseFolded(name(i).toUpperCase()));
+		}
+		assertEquals(Collections.emptyList(), index.exact("name100"));
+		assertEquals(Collections.emptyList(), index.exact("a"));
+		assertEquals(Collections.emptyList(), index.exact("z"));
+
+		// name030 ... name039 span the first two blocks
+		final List<NameIndex.Match> matches = index.prefix("NAME03", 20);
+		final List<String> names = new ArrayList<String>();
+		for (final NameIndex.Match match : matches) {
+			names.add(match.name);
+			assertEquals(match.name, Arrays.asList("Q" + (1000 + Integer.parseInt(match.name.substring(4)))), match.ids);
+		}
+		final List<String> expected = new ArrayList<String>();
+		for (int i = 30; i < 40; i++) {
+			expected.add(name(i));
+		}
+		assertEquals(expected, names);
+		assertEquals(3, index.prefix("name0", 3).size());
+		assertEquals(100, index.prefix("", 1000).size());
+	}
+
+	@Test
+	public void testSpellingsAcrossBlocks() throws IOException {
+		final StringBuilder tsv = new StringBuilder();
+		for (int i = 0; i < 30; i++) {
+			tsv.append("Q").append(i + 1).append("\t").append(name(i)).append("\n");
+		}
+		// names 30 to 33, with the same case-folded form
+		tsv.append("Q101\toz\nQ102\toZ\nQ103\tOz\nQ104\tOZ\n");
+		final NameIndex index = build(tsv.toString());
+		assertEquals(34, index.getNameCount());
+		assertEquals(Arrays.asList("Q104", "Q103", "Q102", "Q101"), index.caseFolded("oz"));
+		assertEquals(Arrays.asList("Q102"), index.exact("oZ"));
+		assertEquals(4, index.prefix("O", 10).size());
+	}
+
+	@Test
+	public void testDuplicates() throws IOException {
+		final NameIndex index = build(
+				"Q5879\tJohann Wolfgang von Goethe\tGoethe\tGoethe\n"
+				+ "Q90\t\"Goethe\"\n"
+				+ "Q5879\tGoethe\n"
+				+ "Q1\tGOETHE\n"
+				+ "P31\tinstance of\n"
+				+ "Q2\n");
+		assertEquals(3, index.getNameCount());
+		// sorted, without duplicates
+		assertEquals(Arrays.asList("Q90", "Q5879"), index.exact("Goethe"));
+		assertEquals(Arrays.asList("Q1"), index.exact("GOETHE"));
+		assertEquals(Arrays.asList("Q1", "Q90", "Q5879"), index.caseFolded("goethe"));
+		assertEquals(Collections.emptyList(), index.exact("instance of"));
+		assertEquals(2, index.prefix("goe", 10).size());
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		final NameIndex index = build("");
+		assertEquals(0, index.getNameCount());
+		assertEquals(Collections.emptyList(), index.exact("Goethe"));
+		assertEquals(Collections.emptyList(), index.caseFolded("Goethe"));
+		assertEquals(0, index.prefix("G", 10).size());
+	}
+
+	private NameIndex build(final String tsv) throws IOException {
+		final File tsvFile = folder.newFile();
+		Files.write(tsvFile.toPath(), tsv.getBytes("utf-8"));
+		final File indexFile = new File(folder.getRoot(), tsvFile.getName() + ".idx");
+		NameIndex.build(tsvFile, indexFile);
+		return new NameIndex(indexFile);
+	}
+
+	private static String name(final int i) {
+		return String.format("name%03d", i);
+	}
+}
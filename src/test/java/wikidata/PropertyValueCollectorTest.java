@@ -0,0 +1,57 @@
+package wikidata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.wikidata.wdtk.datamodel.helpers.Datamodel;
+import org.wikidata.wdtk.datamodel.helpers.ItemDocumentBuilder;
+
+import wikidata.WikidataUtils.PropertyValue;
+
+public class PropertyValueCollectorTest {
+
+	@Test
+	public void testSaveAndLoad() throws IOException {
+		final Map<String, PropertyValue> values = createValues();
+		final PropertyValueCollector collector = new PropertyValueCollector(values);
+		collector.processItemDocument(ItemDocumentBuilder.forItemId(Datamodel.makeWikidataItemIdValue("Q36180"))
+				.withLabel("writer", "en").withLabel("Schriftsteller", "de").build());
+		// only a German label
+		collector.processItemDocument(ItemDocumentBuilder.forItemId(Datamodel.makeWikidataItemIdValue("Q49757"))
+				.withLabel("Dichter", "de").build());
+		assertNull(values.get("Q49757").value);
+
+		final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(buf);
+		collector.save(out);
+		out.close();
+
+		final Map<String, PropertyValue> loadedValues = createValues();
+		new PropertyValueCollector(loadedValues).load(new DataInputStream(new ByteArrayInputStream(buf.toByteArray())));
+		for (final String id : values.keySet()) {
+			final PropertyValue value = values.get(id);
+			final PropertyValue loaded = loadedValues.get(id);
+			assertEquals(id, value.value, loaded.value);
+			assertEquals(id, String.valueOf(value.labels), String.valueOf(loaded.labels));
+		}
+		assertEquals("Dichter@de", loadedValues.get("Q49757").labels.toString());
+		assertNull(loadedValues.get("Q1").labels);
+	}
+
+	private static Map<String, PropertyValue> createValues() {
+		final Map<String, PropertyValue> values = new HashMap<String, PropertyValue>();
+		for (final String id : new String[] { "Q36180", "Q49757", "Q1" }) {
+			values.put(id, new PropertyValue(id));
+		}
+		return values;
+	}
+}
@@ -0,0 +1,288 @@
+package wikidata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the {@link RangedDownloader} against a local HTTP server that stands
+ * in for the dump server.
+ */
+public class RangedDownloaderTest {
+
+	private static final int PART_SIZE = 64 << 10;
+	private static final int PARTS = 16;
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private final byte[] data = new byte[PARTS * PART_SIZE - 1000];
+	private String md5;
+	private File target;
+
+	private HttpServer server;
+	private ExecutorService serverThreads;
+	private URL url;
+	// settings and counters of the stand-in server
+	private volatile boolean ranges = true;
+	private volatile int failRequest = -1;
+	private volatile CountDownLatch blockLaterParts = null;
+	private final AtomicInteger requests = new AtomicInteger();
+
+	@Before
+	public void setUp() throws Exception {
+		new Random(42).nextBytes(data);
+		md5 = toHex(MessageDigest.getInstance("MD5").digest(data));
+		target = new File(folder.getRoot(), "dump.json.gz");
+
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 16);
+		server.createContext("/dump.json.gz", new HttpHandler() {
+			public void handle(final HttpExchange exchange) throws IOException {
+				serve(exchange);
+			}
+		});
+		// blocked ranges must not hold up the others
+		serverThreads = Executors.newCachedThreadPool();
+		server.setExecutor(serverThreads);
+		server.start();
+		url = new URL("http://localhost:" + server.getAddress().getPort() + "/dump.json.gz");
+	}
+
+	@After
+	public void tearDown() {
+		if (blockLaterParts != null) {
+			blockLaterParts.countDown();
+		}
+		server.stop(0);
+		serverThreads.shutdownNow();
+	}
+
+	private void serve(final HttpExchange exchange) throws IOException {
+		if (ranges) {
+			exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+		}
+		if ("HEAD".equals(exchange.getRequestMethod())) {
+			exchange.getResponseHeaders().set("Content-Length", Integer.toString(data.length));
+			exchange.sendResponseHeaders(200, -1);
+			exchange.close();
+			return;
+		}
+		final int request = requests.getAndIncrement();
+		if (request == failRequest) {
+			exchange.sendResponseHeaders(503, -1);
+			exchange.close();
+			return;
+		}
+		final String range = exchange.getRequestHeaders().getFirst("Range");
+		int from = 0;
+		int to = data.length - 1;
+		if (ranges && range != null) {
+			final String[] bounds = range.substring("bytes=".length()).split("-");
+			from = Integer.parseInt(bounds[0]);
+			to = Integer.parseInt(bounds[1]);
+			if (from > 0 && blockLaterParts != null) {
+				try {
+					blockLaterParts.await(10, TimeUnit.SECONDS);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			exchange.sendResponseHeaders(206, to - from + 1);
+		} else {
+			exchange.sendResponseHeaders(200, data.length);
+		}
+		final OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(data, from, to - from + 1);
+		} finally {
+			out.close();
+		}
+	}
+
+	@Test
+	public void testStream() throws IOException {
+		final RangedDownloader downloader = new RangedDownloader(url, target, PART_SIZE, 4, md5);
+		downloader.start();
+		assertArrayEquals(data, readAll(downloader.openStream()));
+		assertEquals(PARTS, requests.get());
+		assertComplete();
+	}
+
+	@Test
+	public void testAwaitCompletion() throws IOException {
+		final RangedDownloader downloader = new RangedDownloader(url, target, PART_SIZE, 4, md5);
+		downloader.start();
+		downloader.awaitCompletion();
+		assertComplete();
+	}
+
+	@Test
+	public void testStreamsShareDownload() throws IOException {
+		final RangedDownloader downloader = new RangedDownloader(url, target, PART_SIZE, 4, md5);
+		downloader.start();
+		final InputStream first = downloader.openStream();
+		final InputStream second = downloader.openStream();
+		assertArrayEquals(data, readAll(first));
+		assertArrayEquals(data, readAll(second));
+		assertEquals(PARTS, requests.get());
+		assertComplete();
+	}
+
+	@Test
+	public void testResume() throws IOException {
+		// the first five parts are there from an earlier run
+		final OutputStream out = new FileOutputStream(new File(target.getPath() + ".download"));
+		try {
+			out.write(data, 0, 5 * PART_SIZE);
+			out.write(new byte[data.length - 5 * PART_SIZE]);
+		} finally {
+			out.close();
+		}
+		final Writer state = new OutputStreamWriter(new FileOutputStream(new File(target.getPath() + ".parts")), "utf-8");
+		try {
+			state.write("0\n1\n2\n3\n4\n");
+		} finally {
+			state.close();
+		}
+
+		final RangedDownloader downloader = new RangedDownloader(url, target, PART_SIZE, 4, md5);
+		downloader.start();
+		assertArrayEquals(data, readAll(downloader.openStream()));
+		assertEquals(PARTS - 5, requests.get());
+		assertComplete();
+	}
+
+	@Test
+	public void testCompleteTargetIsNotDownloaded() throws IOException {
+		Files.write(target.toPath(), data);
+		final RangedDownloader downloader = new RangedDownloader(url, target, PART_SIZE, 4, md5);
+		downloader.start();
+		assertArrayEquals(data, readAll(downloader.openStream()));
+		assertEquals(0, requests.get());
+	}
+
+	@Test
+	public void testRetry() throws IOException {
+		failRequest = 3;
+		final RangedDownloader downloader = new RangedDownloader(url, target, PART_SIZE, 4, md5);
+		downloader.start();
+		assertArrayEquals(data, readAll(downloader.openStream()));
+		assertEquals(PARTS + 1, requests.get());
+		assertComplete();
+	}
+
+	@Test
+	public void testWithoutRanges() throws IOException {
+		ranges = false;
+		final RangedDownloader downloader = new RangedDownloader(url, target, PART_SIZE, 4, md5);
+		downloader.start();
+		assertArrayEquals(data, readAll(downloader.openStream()));
+		assertEquals(1, requests.get());
+		assertComplete();
+	}
+
+	@Test
+	public void testChecksumMismatch() throws IOException {
+		final RangedDownloader downloader = new RangedDownloader(url, target, PART_SIZE, 4, "0123456789abcdef0123456789abcdef");
+		downloader.start();
+		try {
+			readAll(downloader.openStream());
+			fail("checksum mismatch not detected");
+		} catch (final IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("checksum mismatch"));
+		}
+		assertFalse(target.exists());
+		assertFalse(downloader.isUsable());
+	}
+
+	@Test
+	public void testClosingStreamCancelsDownload() throws Exception {
+		blockLaterParts = new CountDownLatch(1);
+		final RangedDownloader downloader = new RangedDownloader(url, target, PART_SIZE, 2, md5);
+		downloader.start();
+		final InputStream in = downloader.openStream();
+		final byte[] firstPart = new byte[PART_SIZE];
+		int read = 0;
+		while (read < firstPart.length) {
+			read += in.read(firstPart, read, firstPart.length - read);
+		}
+		in.close();
+		assertFalse(downloader.isUsable());
+		for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith("download-")) {
+				assertTrue(thread.getName() + " is not a daemon", thread.isDaemon());
+			}
+		}
+
+		blockLaterParts.countDown();
+		downloader.awaitTermination();
+		// only the parts that were being downloaded when it was closed
+		assertTrue(requests.get() + " requests", requests.get() <= 3);
+		assertFalse(target.exists());
+		try {
+			downloader.openStream();
+			fail("stream over a cancelled download");
+		} catch (final IOException e) {
+			// expected
+		}
+	}
+
+	private void assertComplete() {
+		assertTrue(target.exists());
+		assertFalse(new File(target.getPath() + ".download").exists());
+		assertFalse(new File(target.getPath() + ".parts").exists());
+	}
+
+	private static byte[] readAll(final InputStream in) throws IOException {
+		try {
+			final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			final byte[] b = new byte[10000];
+			int read;
+			while ((read = in.read(b)) >= 0) {
+				buf.write(b, 0, read);
+			}
+			return buf.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String toHex(final byte[] bytes) {
+		final StringBuilder hex = new StringBuilder();
+		for (final byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+}
@@ -0,0 +1,147 @@
+package wikidata;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SpatialIndexTest {
+
+	@Test
+	public void testNearThePoles() {
+		final Points points = new Points();
+		points.add("north0", 89.9, 0);
+		points.add("north180", 89.9, 180);
+		points.add("north-90", 89.95, -90);
+		points.add("pole", 90, 0);
+		points.add("south", -89.99, 45);
+		points.add("arctic", 80, 0);
+		final SpatialIndex index = points.build();
+
+		assertWithin(points, index, 90, 0, 30, "north-90", "north0", "north180", "pole");
+		assertWithin(points, index, 89.9, 90, 20, "north-90", "north0", "north180", "pole");
+		assertWithin(points, index, -90, 0, 5, "south");
+		assertWithin(points, index, 85, 0, 600, "arctic", "north-90", "north0", "north180", "pole");
+	}
+
+	@Test
+	public void testAcrossTheAntimeridian() {
+		final Points points = new Points();
+		points.add("east", 0, 179.95);
+		points.add("west", 0, -179.95);
+		points.add("dateline", 0, 180);
+		points.add("far", 0, 170);
+		points.add("fiji", -17.7, 178.1);
+		points.add("samoa", -13.8, -172.1);
+		final SpatialIndex index = points.build();
+
+		assertWithin(points, index, 0, 180, 10, "dateline", "east", "west");
+		assertWithin(points, index, 0, -180, 10, "dateline", "east", "west");
+		assertWithin(points, index, 0, -179.99, 7, "dateline", "east", "west");
+		assertWithin(points, index, -15, -176, 800, "fiji", "samoa");
+	}
+
+	@Test
+	public void testRadiusBoundary() {
+		final Points points = new Points();
+		points.add("north", 1, 0);
+		points.add("east", 0, 1);
+		points.add("weimar", 50.9795, 11.3235);
+		final SpatialIndex index = points.build();
+
+		// exactly at the distance
+		final double degree = SpatialIndex.distance(0, 0, 1, 0);
+		assertEquals(degree, SpatialIndex.distance(0, 0, 0, 1), 1e-9);
+		assertWithin(points, index, 0, 0, degree, "east", "north");
+		assertWithin(points, index, 0, 0, Math.nextDown(degree));
+		final double weimar = SpatialIndex.distance(50, 11, 50.9795, 11.3235);
+		assertWithin(points, index, 50, 11, weimar, "weimar");
+		assertWithin(points, index, 50, 11, Math.nextDown(weimar));
+	}
+
+	@Test
+	public void testItemsAtTheRadius() {
+		final Random random = new Random(42);
+		for (int i = 0; i < 10000; i++) {
+			final double latitude = 180 * random.nextDouble() - 90;
+			final double longitude = 360 * random.nextDouble() - 180;
+			final Points points = new Points();
+			points.add("item", Math.max(-90, Math.min(90, latitude + random.nextGaussian())), Math.max(-180, Math.min(180, longitude + random.nextGaussian())));
+			final double km = SpatialIndex.distance(latitude, longitude, points.latitudes[0] / Coordinates.SCALE, points.longitudes[0] / Coordinates.SCALE);
+			assertWithin(points, points.build(), latitude, longitude, km, "item");
+		}
+	}
+
+	@Test
+	public void testLikeAFullScan() {
+		final Random random = new Random(42);
+		final Points points = new Points();
+		for (int i = 0; i < 20000; i++) {
+			// more points near the poles and the antimeridian
+			final double latitude = random.nextInt(4) == 0 ? Math.signum(random.nextGaussian()) * (90 - 3 * random.nextDouble()) : 180 * random.nextDouble() - 90;
+			final double longitude = random.nextInt(4) == 0 ? (random.nextBoolean() ? 180 : -180) - Math.signum(random.nextGaussian()) * 3 * random.nextDouble() : 360 * random.nextDouble() - 180;
+			points.add(Integer.toString(i), latitude, Math.max(-180, Math.min(180, longitude)));
+		}
+		final SpatialIndex index = points.build();
+		assertEquals(20000, index.size());
+		for (int q = 0; q < 500; q++) {
+			final int p = random.nextInt(20000);
+			final double km = new double[] { 1, 50, 300, 2000, 25000 }[q % 5];
+			final double latitude = points.latitudes[p] / Coordinates.SCALE + random.nextGaussian();
+			final double longitude = points.longitudes[p] / Coordinates.SCALE + random.nextGaussian();
+			assertWithin(points, index, Math.max(-90, Math.min(90, latitude)), Math.max(-180, Math.min(180, longitude)), km);
+		}
+	}
+
+	/**
+	 * Checks the query against the given ids and against a full scan.
+	 */
+	private static void assertWithin(final Points points, final SpatialIndex index, final double latitude, final double longitude, final double km, final String... expected) {
+		final List<String> found = index.within(latitude, longitude, km);
+		Collections.sort(found);
+		final List<String> scanned = points.within(latitude, longitude, km);
+		final String query = latitude + "," + longitude + " " + km + " km";
+		assertEquals(query, scanned, found);
+		if (expected.length > 0 || scanned.isEmpty()) {
+			final List<String> e = new ArrayList<String>();
+			Collections.addAll(e, expected);
+			assertEquals(query, e, found);
+		}
+	}
+
+	private static class Points {
+		private final List<String> ids = new ArrayList<String>();
+		private int[] latitudes = new int[16];
+		private int[] longitudes = new int[16];
+
+		public void add(final String id, final double latitude, final double longitude) {
+			if (ids.size() == latitudes.length) {
+				latitudes = Arrays.copyOf(latitudes, 2 * latitudes.length);
+				longitudes = Arrays.copyOf(longitudes, 2 * longitudes.length);
+			}
+			latitudes[ids.size()] = Coordinates.toFixed(latitude);
+			longitudes[ids.size()] = Coordinates.toFixed(longitude);
+			ids.add(id);
+		}
+
+		public SpatialIndex build() {
+			return new SpatialIndex(ids, latitudes, longitudes);
+		}
+
+		public List<String> within(final double latitude, final double longitude, final double km) {
+			final List<String> result = new ArrayList<String>();
+			for (int i = 0; i < ids.size(); i++) {
+				if (SpatialIndex.distance(latitude, longitude, latitudes[i] / Coordinates.SCALE, longitudes[i] / Coordinates.SCALE) <= km) {
+					result.add(ids.get(i));
+				}
+			}
+			Collections.sort(result);
+			return result;
+		}
+	}
+}
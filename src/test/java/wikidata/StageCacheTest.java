@@ -0,0 +1,66 @@
+package wikidata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import wikidata.WikidataUtils.PropertyValue;
+
+public class StageCacheTest {
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testWritingOutputKeepsLinkedResult() throws IOException {
+		final StageCache cache = new StageCache(folder.newFolder("cache"));
+		final File output = new File(folder.getRoot(), "gnditems");
+		final File json = new File(output.getPath() + ".json");
+		final File graph = new File(output.getPath() + ".graph");
+		final File dict = new File(output.getPath() + ".dict");
+
+		writeOutput(output, "Goethe");
+		final File temporary = cache.begin("output");
+		for (final File file : new File[] { json, graph, dict }) {
+			StageCache.link(file, new File(temporary, file.getName()));
+		}
+		cache.commit("output", temporary);
+		final File result = cache.get("output");
+		final byte[][] cached = read(result, json, graph, dict);
+
+		// a later run writes its output to the same (linked) files
+		writeOutput(output, "Schiller");
+		assertArrayEquals(cached, read(result, json, graph, dict));
+		assertFalse(new String(Files.readAllBytes(json.toPath()), "utf-8").contains("Goethe"));
+	}
+
+	private static void writeOutput(final File output, final String name) throws IOException {
+		final Map<String, Map<String, List<PropertyValue>>> items = new LinkedHashMap<String, Map<String, List<PropertyValue>>>();
+		final Map<String, List<PropertyValue>> properties = new HashMap<String, List<PropertyValue>>();
+		properties.put("id", Collections.singletonList(new PropertyValue("", "Q1")));
+		properties.put("name", Collections.singletonList(new PropertyValue("", name)));
+		items.put("1", properties);
+		new JsonWriter(items, null).write(output.getPath() + ".json");
+		RelationGraph.write(items, new File(output.getPath() + ".graph"), new File(output.getPath() + ".dict"));
+	}
+
+	private static byte[][] read(final File directory, final File... files) throws IOException {
+		final byte[][] contents = new byte[files.length][];
+		for (int i = 0; i < files.length; i++) {
+			contents[i] = Files.readAllBytes(new File(directory, files[i].getName()).toPath());
+		}
+		return contents;
+	}
+}
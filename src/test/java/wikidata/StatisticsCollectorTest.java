@@ -0,0 +1,129 @@
+package wikidata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.wikidata.wdtk.datamodel.helpers.Datamodel;
+import org.wikidata.wdtk.datamodel.helpers.ItemDocumentBuilder;
+import org.wikidata.wdtk.datamodel.helpers.StatementBuilder;
+import org.wikidata.wdtk.datamodel.interfaces.ItemDocument;
+import org.wikidata.wdtk.datamodel.interfaces.ItemIdValue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class StatisticsCollectorTest {
+
+	private static final int THREADS = 4;
+	// P106 values Q1 ... Q10, Qk on 100 * k items
+	private static final int FREQUENT = 10;
+	// P106 values on one item each
+	private static final int RARE = 5000;
+
+	@Test
+	public void testReport() throws Exception {
+		final List<ItemDocument> items = new ArrayList<ItemDocument>();
+		for (int k = 1; k <= FREQUENT; k++) {
+			for (int i = 0; i < 100 * k; i++) {
+				items.add(item(items.size(), "Q" + k));
+			}
+		}
+		for (int i = 0; i < RARE; i++) {
+			items.add(item(items.size(), "Q" + (1000 + i)));
+		}
+		Collections.shuffle(items, new Random(42));
+
+		// each thread counts into its own shard
+		final StatisticsCollector collector = new StatisticsCollector();
+		final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		final List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int t = 0; t < THREADS; t++) {
+			final int thread = t;
+			futures.add(executor.submit(new Runnable() {
+				public void run() {
+					for (int i = thread; i < items.size(); i += THREADS) {
+						collector.processItemDocument(items.get(i));
+					}
+				}
+			}));
+		}
+		for (final Future<?> future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+
+		final JsonNode report = report(collector);
+		final int count = items.size();
+		assertEquals(count, report.get("items").asLong());
+		assertEquals(count / 2, report.get("itemsWithSiteLinks").asLong());
+		assertEquals(count, report.get("properties").get("P31").get("items").asLong());
+		assertEquals(count, report.get("properties").get("P106").get("statements").asLong());
+		assertEquals(count / 2, report.get("siteLinks").get("dewiki").asLong());
+
+		final JsonNode p31 = report.get("values").get("P31");
+		assertEquals(count, p31.get("values").asLong());
+		assertEquals(1, p31.get("distinct").asLong());
+		assertEquals(count, p31.get("top").get("Q5").asLong());
+
+		final JsonNode p106 = report.get("values").get("P106");
+		assertEquals(count, p106.get("values").asLong());
+		// HyperLogLog, standard error 0.8%
+		final long distinct = p106.get("distinct").asLong();
+		assertTrue(Long.toString(distinct), Math.abs(distinct - (FREQUENT + RARE)) < 0.03 * (FREQUENT + RARE));
+		// the frequent values first, most frequent first, counts overestimated by at most e * values / width
+		final Iterator<Map.Entry<String, JsonNode>> top = p106.get("top").fields();
+		for (int k = FREQUENT; k >= 1; k--) {
+			final Map.Entry<String, JsonNode> entry = top.next();
+			assertEquals("Q" + k, entry.getKey());
+			final long estimate = entry.getValue().asLong();
+			assertTrue(entry.toString(), estimate >= 100 * k && estimate <= 100 * k + 1);
+		}
+		assertEquals(1, top.next().getValue().asLong());
+	}
+
+	@Test
+	public void testReportOfOneThread() throws IOException {
+		final StatisticsCollector collector = new StatisticsCollector();
+		for (int i = 0; i < 100; i++) {
+			collector.processItemDocument(item(i, i < 60 ? "Q36180" : "Q49757"));
+		}
+		final JsonNode p106 = report(collector).get("values").get("P106");
+		assertEquals(2, p106.get("distinct").asLong());
+		assertEquals("{\"Q36180\":60,\"Q49757\":40}", p106.get("top").toString());
+	}
+
+	private static JsonNode report(final StatisticsCollector collector) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		collector.writeReport("test", out);
+		return new ObjectMapper().readTree(out.toByteArray());
+	}
+
+	/**
+	 * A human with the occupation, every other one with a sitelink.
+	 */
+	private static ItemDocument item(final int i, final String occupation) {
+		final ItemIdValue id = Datamodel.makeWikidataItemIdValue("Q" + (100000 + i));
+		final ItemDocumentBuilder builder = ItemDocumentBuilder.forItemId(id);
+		builder.withStatement(StatementBuilder.forSubjectAndProperty(id, Datamodel.makeWikidataPropertyIdValue("P31"))
+				.withValue(Datamodel.makeWikidataItemIdValue("Q5")).build());
+		builder.withStatement(StatementBuilder.forSubjectAndProperty(id, Datamodel.makeWikidataPropertyIdValue("P106"))
+				.withValue(Datamodel.makeWikidataItemIdValue(occupation)).build());
+		if (i % 2 == 0) {
+			builder.withSiteLink("Goethe " + i, "dewiki");
+		}
+		return builder.build();
+	}
+}